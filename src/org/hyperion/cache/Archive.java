@@ -1,17 +1,19 @@
 package org.hyperion.cache;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 
 /**
- * Manages an archive file in the cache.
+ * Manages an archive file in the cache. Entries are only decompressed the
+ * first time they are read, and archives are safe to share between threads.
  * 
  * @author Graham Edgecombe
  * 
@@ -33,6 +35,11 @@ public class Archive {
 	 */
 	private final Map<Integer, ArchiveFile> namedFiles = new HashMap<Integer, ArchiveFile>();
 
+	/**
+	 * The entries which have already been decompressed, by name hash.
+	 */
+	private final Map<Integer, byte[]> decompressedFiles = new ConcurrentHashMap<Integer, byte[]>();
+
 	/**
 	 * Creates the archive.
 	 * 
@@ -49,12 +56,8 @@ public class Archive {
 		final int compressed = (bb.get() & 0xFF) << 16 | (bb.get() & 0xFF) << 8
 				| bb.get() & 0xFF;
 		if (uncompressed != compressed) {
-			final byte[] data = new byte[compressed];
-			bb.get(data);
-			final byte[] decompressed = decompress(data);
-			bb = ByteBuffer.allocate(decompressed.length);
-			bb.put(decompressed);
-			bb.flip();
+			bb = ByteBuffer.wrap(decompress(bb, bb.position(), compressed,
+					uncompressed));
 			this.compressed = true;
 		}
 		final int dataSize = bb.getShort() & 0xFFFF;
@@ -99,20 +102,41 @@ public class Archive {
 	 *             if an I/O error occurs.
 	 */
 	public byte[] getFile(String name) throws IOException {
+		final byte[] data = getDecompressedFile(name);
+		return data == null ? null : data.clone();
+	}
+
+	/**
+	 * Gets the shared decompressed contents of a file, decompressing it if
+	 * it has not been read before.
+	 * 
+	 * @param name
+	 *            The file name.
+	 * @return The file contents, which must not be modified.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private byte[] getDecompressedFile(String name) throws IOException {
 		final int hash = hash(name);
+		byte[] out = decompressedFiles.get(hash);
+		if (out != null) {
+			return out;
+		}
 		final ArchiveFile nf = namedFiles.get(hash);
 		if (nf == null) {
 			return null;
+		}
+		if (compressed) {
+			out = new byte[nf.getCompressedSize()];
+			final ByteBuffer buf = data.duplicate();
+			buf.position(nf.getOffset());
+			buf.get(out);
 		} else {
-			final byte[] buf = new byte[nf.getCompressedSize()];
-			data.position(nf.getOffset());
-			data.get(buf);
-			if (compressed) {
-				return buf;
-			} else {
-				return decompress(buf);
-			}
+			out = decompress(data, nf.getOffset(), nf.getCompressedSize(),
+					nf.getUncompressedSize());
 		}
+		decompressedFiles.put(hash, out);
+		return out;
 	}
 
 	/**
@@ -120,59 +144,60 @@ public class Archive {
 	 * 
 	 * @param name
 	 *            The file name.
-	 * @return The bytebuffer.
+	 * @return The read only bytebuffer.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
 	public ByteBuffer getFileAsByteBuffer(String name) throws IOException {
-		final byte[] data = getFile(name);
+		final byte[] data = getDecompressedFile(name);
 		if (data == null) {
 			return null;
 		} else {
-			final ByteBuffer buf = ByteBuffer.allocate(data.length);
-			buf.put(data);
-			buf.flip();
-			return buf;
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
 		}
 	}
 
 	/**
-	 * Decompresses a byte array using BZIP2.
+	 * Decompresses a BZIP2 stream without its header straight into an array
+	 * of the known uncompressed size.
 	 * 
 	 * @param data
-	 *            The compressed bytes.
+	 *            The buffer holding the compressed bytes.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @param uncompressedSize
+	 *            The uncompressed size.
 	 * @return The uncompressed bytes.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	private byte[] decompress(byte[] data) throws IOException {
-		byte[] out;
-		final byte[] newData = new byte[data.length + 4];
-		System.arraycopy(data, 0, newData, 4, data.length);
+	private static byte[] decompress(ByteBuffer data, int offset, int length,
+			int uncompressedSize) throws IOException {
+		final byte[] newData = new byte[length + 4];
 		newData[0] = 'B';
 		newData[1] = 'Z';
 		newData[2] = 'h';
 		newData[3] = '1';
-		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final ByteBuffer src = data.duplicate();
+		src.position(offset);
+		src.get(newData, 4, length);
+
+		final byte[] out = new byte[uncompressedSize];
+		final InputStream is = new BZip2CompressorInputStream(
+				new ByteArrayInputStream(newData));
 		try {
-			final InputStream is = new BZip2CompressorInputStream(
-					new ByteArrayInputStream(newData));
-			try {
-				while (true) {
-					final byte[] buf = new byte[512];
-					final int read = is.read(buf, 0, buf.length);
-					if (read == -1) {
-						break;
-					}
-					os.write(buf, 0, read);
+			int read = 0;
+			while (read < out.length) {
+				final int count = is.read(out, read, out.length - read);
+				if (count == -1) {
+					throw new EOFException("Archive entry is truncated.");
 				}
-			} finally {
-				is.close();
+				read += count;
 			}
-			os.flush();
-			out = os.toByteArray();
 		} finally {
-			os.close();
+			is.close();
 		}
 		return out;
 	}
@@ -7,12 +7,22 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hyperion.cache.index.IndexTable;
 
 /**
  * Manages the game cache.
  * 
+ * The server shares a single instance, obtained with {@link #acquire()}, so
+ * the files are only mapped and the index table is only built once. Every
+ * call to {@link #acquire()} must be matched by a call to {@link #close()},
+ * which releases a reference. The shared instance is kept open when the last
+ * reference is released, so the next user does not map the files again, and
+ * is only closed by {@link #closeSharedCache()} when the server stops.
+ * 
  * @author Graham Edgecombe
  * 
  */
@@ -39,14 +49,88 @@ public class Cache implements Closeable {
 	public static final int DATA_SIZE = DATA_BLOCK_SIZE + DATA_HEADER_SIZE;
 
 	/**
-	 * The data random access file.
+	 * The directory the shared cache is loaded from.
+	 */
+	public static final File CACHE_DIRECTORY = new File("./data/cache/");
+
+	/**
+	 * The shared cache instance, or <code>null</code> if it has not been
+	 * opened yet.
+	 */
+	private static volatile Cache sharedCache;
+
+	/**
+	 * The number of references to the shared cache instance.
+	 */
+	private static int sharedReferences = 0;
+
+	/**
+	 * Gets a reference to the shared cache, opening it if necessary. The
+	 * reference must be released by calling {@link #close()}.
+	 * 
+	 * @return The shared cache.
+	 * @throws InvalidCacheException
+	 *             if the cache is corrupt or invalid.
+	 */
+	public static Cache acquire() throws InvalidCacheException {
+		synchronized (Cache.class) {
+			if (sharedCache == null) {
+				sharedCache = new Cache(CACHE_DIRECTORY);
+			}
+			sharedReferences++;
+			return sharedCache;
+		}
+	}
+
+	/**
+	 * Closes the shared cache, whether or not references to it remain. This
+	 * is called when the server stops.
+	 */
+	public static void closeSharedCache() {
+		synchronized (Cache.class) {
+			if (sharedCache != null) {
+				sharedCache.closed = true;
+				sharedCache = null;
+				sharedReferences = 0;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of references to the shared cache.
+	 * 
+	 * @return The number of references.
+	 */
+	public static int getSharedReferenceCount() {
+		synchronized (Cache.class) {
+			return sharedReferences;
+		}
+	}
+
+	/**
+	 * Gets the shared cache without opening it.
+	 * 
+	 * @return The shared cache, or <code>null</code> if it has not been
+	 *         opened yet.
+	 */
+	public static Cache getSharedCache() {
+		return sharedCache;
+	}
+
+	/**
+	 * The data file, mapped into memory.
 	 */
-	private final RandomAccessFile dataFile;
+	private final ByteBuffer dataBuffer;
 
 	/**
-	 * The index random access files.
+	 * The index files, mapped into memory.
 	 */
-	private final RandomAccessFile[] indexFiles;
+	private final ByteBuffer[] indexBuffers;
+
+	/**
+	 * The archives in the first cache which have been opened, by file id.
+	 */
+	private final ConcurrentMap<Integer, Archive> archives = new ConcurrentHashMap<Integer, Archive>();
 
 	/**
 	 * The index table.
@@ -54,7 +138,29 @@ public class Cache implements Closeable {
 	private final IndexTable indexTable;
 
 	/**
-	 * Creates the cache.
+	 * A flag indicating the cache has been closed.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * The number of files read.
+	 */
+	private final AtomicLong reads = new AtomicLong();
+
+	/**
+	 * The number of bytes read.
+	 */
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/**
+	 * The total time spent reading files, in nanoseconds.
+	 */
+	private final AtomicLong totalLatency = new AtomicLong();
+
+	/**
+	 * Creates the cache. Each file is mapped into memory once, so reads do
+	 * not need any system calls and the cache may be used by many threads at
+	 * once.
 	 * 
 	 * @param directory
 	 *            The directory where the cache is stored.
@@ -76,13 +182,12 @@ public class Cache implements Closeable {
 			if (count == 0) {
 				throw new InvalidCacheException("No index files present.");
 			}
-			indexFiles = new RandomAccessFile[count];
-			dataFile = new RandomAccessFile(directory.getAbsolutePath()
-					+ "/main_file_cache.dat", "r");
-			for (int i = 0; i < indexFiles.length; i++) {
-				indexFiles[i] = new RandomAccessFile(
-						directory.getAbsolutePath() + "/main_file_cache.idx"
-								+ i, "r");
+			indexBuffers = new ByteBuffer[count];
+			dataBuffer = map(new File(directory.getAbsolutePath()
+					+ "/main_file_cache.dat"));
+			for (int i = 0; i < indexBuffers.length; i++) {
+				indexBuffers[i] = map(new File(directory.getAbsolutePath()
+						+ "/main_file_cache.idx" + i));
 			}
 			indexTable = new IndexTable(this);
 		} catch (final FileNotFoundException ex) {
@@ -92,6 +197,25 @@ public class Cache implements Closeable {
 		}
 	}
 
+	/**
+	 * Maps a whole file into memory. The mapping stays valid after the file
+	 * is closed.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The read only buffer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
 	/**
 	 * Gets the index table.
 	 * 
@@ -101,6 +225,28 @@ public class Cache implements Closeable {
 		return indexTable;
 	}
 
+	/**
+	 * Gets an archive from the first cache. Archives are only read once, and
+	 * then shared, so their entries are only decompressed once.
+	 * 
+	 * @param file
+	 *            The file id.
+	 * @return The archive.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public Archive getArchive(int file) throws IOException {
+		Archive archive = archives.get(file);
+		if (archive == null) {
+			archive = new Archive(getFile(0, file));
+			final Archive existing = archives.putIfAbsent(file, archive);
+			if (existing != null) {
+				archive = existing;
+			}
+		}
+		return archive;
+	}
+
 	/**
 	 * Gets a file from the cache.
 	 * 
@@ -113,91 +259,191 @@ public class Cache implements Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public CacheFile getFile(int cache, int file) throws IOException {
-		if (cache < 0 || cache >= indexFiles.length) {
+		final long start = System.nanoTime();
+		final CacheFile cacheFile = readFile(cache, file);
+		reads.incrementAndGet();
+		bytesRead.addAndGet(cacheFile.getBuffer().remaining());
+		totalLatency.addAndGet(System.nanoTime() - start);
+		return cacheFile;
+	}
+
+	/**
+	 * Reads a file from the cache.
+	 * 
+	 * @param cache
+	 *            The cache id.
+	 * @param file
+	 *            The file id.
+	 * @return The file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private CacheFile readFile(int cache, int file) throws IOException {
+		if (closed) {
+			throw new IOException("Cache is closed.");
+		}
+		if (cache < 0 || cache >= indexBuffers.length) {
 			throw new IOException("Cache does not exist.");
 		}
 
-		final RandomAccessFile indexFile = indexFiles[cache];
+		final ByteBuffer index = indexBuffers[cache];
 		cache += 1;
 
-		if (file < 0 || file >= indexFile.length() * INDEX_SIZE) {
+		if (file < 0 || file >= index.capacity() / INDEX_SIZE) {
 			throw new IOException("File does not exist.");
 		}
 
-		final ByteBuffer index = indexFile.getChannel().map(MapMode.READ_ONLY,
-				INDEX_SIZE * file, INDEX_SIZE);
-		final int fileSize = (index.get() & 0xFF) << 16
-				| (index.get() & 0xFF) << 8 | index.get() & 0xFF;
-		final int fileBlock = (index.get() & 0xFF) << 16
-				| (index.get() & 0xFF) << 8 | index.get() & 0xFF;
+		/*
+		 * Only absolute reads are used on the shared buffers, so they are
+		 * safe to use from many threads.
+		 */
+		final int indexOffset = file * INDEX_SIZE;
+		final int fileSize = (index.get(indexOffset) & 0xFF) << 16
+				| (index.get(indexOffset + 1) & 0xFF) << 8
+				| index.get(indexOffset + 2) & 0xFF;
+		final int fileBlock = (index.get(indexOffset + 3) & 0xFF) << 16
+				| (index.get(indexOffset + 4) & 0xFF) << 8
+				| index.get(indexOffset + 5) & 0xFF;
+
+		/*
+		 * A file which fits in a single block is returned as a slice of the
+		 * mapped data, otherwise the blocks are copied straight into one
+		 * buffer.
+		 */
+		if (fileSize == 0) {
+			return new CacheFile(cache, file, ByteBuffer.allocate(0));
+		} else if (fileSize <= DATA_BLOCK_SIZE) {
+			final int offset = checkBlock(fileBlock, fileSize, cache, file, 0,
+					true);
+			final ByteBuffer slice = dataBuffer.duplicate();
+			slice.limit(offset + DATA_HEADER_SIZE + fileSize).position(
+					offset + DATA_HEADER_SIZE);
+			return new CacheFile(cache, file, slice.slice());
+		}
 
+		final ByteBuffer fileBuffer = ByteBuffer.allocate(fileSize);
+		final ByteBuffer block = dataBuffer.duplicate();
 		int remainingBytes = fileSize;
 		int currentBlock = fileBlock;
-
-		final ByteBuffer fileBuffer = ByteBuffer.allocate(fileSize);
 		int cycles = 0;
 
 		while (remainingBytes > 0) {
-
-			int size = DATA_SIZE;
-			final int rem = (int) (dataFile.length() - currentBlock * DATA_SIZE);
-			if (rem < DATA_SIZE) {
-				size = rem;
-			}
-
-			final ByteBuffer block = dataFile.getChannel().map(
-					MapMode.READ_ONLY, currentBlock * DATA_SIZE, size);
-			final int nextFileId = block.getShort() & 0xFFFF;
-			final int currentPartId = block.getShort() & 0xFFFF;
-			final int nextBlockId = (block.get() & 0xFF) << 16
-					| (block.get() & 0xFF) << 8 | block.get() & 0xFF;
-			final int nextCacheId = block.get() & 0xFF;
-
-			size -= 8;
-
 			int bytesThisCycle = remainingBytes;
 			if (bytesThisCycle > DATA_BLOCK_SIZE) {
 				bytesThisCycle = DATA_BLOCK_SIZE;
 			}
+			final int offset = checkBlock(currentBlock, bytesThisCycle, cache,
+					file, cycles, remainingBytes == bytesThisCycle);
 
-			final byte[] temp = new byte[bytesThisCycle];
-			block.get(temp);
-
-			fileBuffer.put(temp, 0, bytesThisCycle);
+			block.limit(offset + DATA_HEADER_SIZE + bytesThisCycle).position(
+					offset + DATA_HEADER_SIZE);
+			fileBuffer.put(block);
 
 			remainingBytes -= bytesThisCycle;
+			cycles++;
+			currentBlock = (dataBuffer.get(offset + 4) & 0xFF) << 16
+					| (dataBuffer.get(offset + 5) & 0xFF) << 8
+					| dataBuffer.get(offset + 6) & 0xFF;
+		}
+		return new CacheFile(cache, file, (ByteBuffer) fileBuffer.flip());
+	}
 
-			if (cycles != currentPartId) {
-				throw new IOException("Cycle does not match part id.");
+	/**
+	 * Checks the header of a data block.
+	 * 
+	 * @param block
+	 *            The block.
+	 * @param length
+	 *            The number of bytes of the file held in the block.
+	 * @param cache
+	 *            The cache id, plus one, as stored in the header.
+	 * @param file
+	 *            The file id.
+	 * @param part
+	 *            The expected part id.
+	 * @param last
+	 *            A flag indicating this is the last block of the file, the
+	 *            file and cache ids of which are not checked.
+	 * @return The offset of the block in the data file.
+	 * @throws IOException
+	 *             if the block is out of bounds or belongs to another file.
+	 */
+	private int checkBlock(int block, int length, int cache, int file,
+			int part, boolean last) throws IOException {
+		final long offset = (long) block * DATA_SIZE;
+		if (block < 0
+				|| offset + DATA_HEADER_SIZE + length > dataBuffer.capacity()) {
+			throw new IOException("Block out of bounds.");
+		}
+		final int position = (int) offset;
+		final int fileId = (dataBuffer.get(position) & 0xFF) << 8
+				| dataBuffer.get(position + 1) & 0xFF;
+		final int partId = (dataBuffer.get(position + 2) & 0xFF) << 8
+				| dataBuffer.get(position + 3) & 0xFF;
+		final int cacheId = dataBuffer.get(position + 7) & 0xFF;
+		if (partId != part) {
+			throw new IOException("Cycle does not match part id.");
+		}
+		if (!last) {
+			if (cacheId != cache) {
+				throw new IOException("Unexpected next cache id.");
 			}
-
-			if (remainingBytes > 0) {
-				if (nextCacheId != cache) {
-					throw new IOException("Unexpected next cache id.");
-				}
-				if (nextFileId != file) {
-					throw new IOException("Unexpected next file id.");
-				}
+			if (fileId != file) {
+				throw new IOException("Unexpected next file id.");
 			}
-
-			cycles++;
-			currentBlock = nextBlockId;
 		}
-		return new CacheFile(cache, file, (ByteBuffer) fileBuffer.flip());
+		return position;
 	}
 
 	/**
-	 * Closes the cache.
+	 * Closes the cache. If this is the shared cache, this only releases a
+	 * reference, and the cache stays open when no references remain.
 	 * 
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
 	@Override
 	public void close() throws IOException {
-		dataFile.close();
-		for (final RandomAccessFile indexFile : indexFiles) {
-			indexFile.close();
+		synchronized (Cache.class) {
+			if (this == sharedCache) {
+				if (sharedReferences > 0) {
+					sharedReferences--;
+				}
+				return;
+			}
+		}
+		closed = true;
+	}
+
+	/**
+	 * Gets the number of files read.
+	 * 
+	 * @return The number of files read.
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * Gets the number of bytes read.
+	 * 
+	 * @return The number of bytes read.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Gets the average time taken to read a file.
+	 * 
+	 * @return The average latency, in microseconds.
+	 */
+	public double getAverageLatency() {
+		final long count = reads.get();
+		if (count == 0) {
+			return 0;
 		}
+		return (double) totalLatency.get() / (double) count / 1000D;
 	}
 
 	/**
@@ -208,7 +454,7 @@ public class Cache implements Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public int getCacheCount() throws IOException {
-		return indexFiles.length;
+		return indexBuffers.length;
 	}
 
 	/**
@@ -221,10 +467,10 @@ public class Cache implements Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public int getFileCount(int cache) throws IOException {
-		if (cache < 0 || cache >= indexFiles.length) {
+		if (cache < 0 || cache >= indexBuffers.length) {
 			throw new IOException("Cache does not exist.");
 		}
-		return (int) (indexFiles[cache].length() / INDEX_SIZE) - 1;
+		return indexBuffers[cache].capacity() / INDEX_SIZE - 1;
 	}
 
 }
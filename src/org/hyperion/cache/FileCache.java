@@ -0,0 +1,599 @@
+package org.hyperion.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps assembled cache files in memory, up to a budget in bytes, so that
+ * popular files do not have to be read from the cache every time they are
+ * requested.
+ * 
+ * Entries are evicted in approximately least recently used order, but a new
+ * file is only admitted if it has been requested more often than the
+ * entries it would evict (TinyLFU). The request frequencies are estimated
+ * with a small count-min sketch which is halved periodically, so files which
+ * were once popular eventually age out.
+ * 
+ * Files in memory are found without taking a lock. A hit only marks its
+ * entry as referenced, and entries are kept in the order they were admitted;
+ * when room is needed, referenced entries are given a second chance and
+ * moved to the back instead of being evicted (CLOCK). Only the sketch, and
+ * admissions and evictions, are guarded by locks.
+ * 
+ * Concurrent requests for a file which is not in memory are coalesced: the
+ * first request loads the file, and the others wait for that load to finish
+ * instead of reading the file again.
+ * 
+ * An {@link Encoder} may be given to store each file in the form it is sent
+ * in, so the work of encoding it is only done when it is first loaded.
+ */
+public class FileCache {
+
+	/**
+	 * Logger instance.
+	 */
+	private static final Logger logger = Logger.getLogger(FileCache.class
+			.getName());
+
+	/**
+	 * The average file size assumed when sizing the frequency sketch.
+	 */
+	private static final int AVERAGE_FILE_SIZE = 4096;
+
+	/**
+	 * Converts files into the form they are kept in memory and served in.
+	 */
+	public interface Encoder {
+
+		/**
+		 * Encodes a file. This method must be thread safe.
+		 * 
+		 * @param file
+		 *            The file.
+		 * @return The encoded data, from position zero to the limit.
+		 */
+		public ByteBuffer encode(CacheFile file);
+
+	}
+
+	/**
+	 * An entry in the cache.
+	 */
+	private static final class Entry {
+
+		/**
+		 * The cache id, as stored in the <code>CacheFile</code>.
+		 */
+		private final int cache;
+
+		/**
+		 * The file id.
+		 */
+		private final int file;
+
+		/**
+		 * The read only file data, encoded if the cache has an encoder.
+		 */
+		private final ByteBuffer data;
+
+		/**
+		 * A flag indicating the entry has been requested since it was last
+		 * considered for eviction.
+		 */
+		private volatile boolean referenced = false;
+
+		/**
+		 * Creates the entry.
+		 * 
+		 * @param cacheFile
+		 *            The cache file.
+		 * @param encoder
+		 *            The encoder, or <code>null</code> to keep the file
+		 *            as it is.
+		 */
+		public Entry(CacheFile cacheFile, Encoder encoder) {
+			this.cache = cacheFile.getCache();
+			this.file = cacheFile.getFile();
+			final ByteBuffer buf;
+			if (encoder == null) {
+				buf = cacheFile.getBuffer().duplicate();
+				buf.position(0);
+			} else {
+				buf = encoder.encode(cacheFile);
+			}
+			this.data = buf.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Gets the size of the entry.
+		 * 
+		 * @return The size, in bytes.
+		 */
+		public int getSize() {
+			return data.limit();
+		}
+
+		/**
+		 * Creates a cache file backed by this entry's data.
+		 * 
+		 * @return The cache file.
+		 */
+		public CacheFile toCacheFile() {
+			return new CacheFile(cache, file, data.duplicate());
+		}
+
+	}
+
+	/**
+	 * Estimates how often each key has been requested, using a count-min
+	 * sketch of four rows of counters which saturate at 15. The sketch is
+	 * thread safe.
+	 */
+	private static final class FrequencySketch {
+
+		/**
+		 * The seeds of each row's hash.
+		 */
+		private static final long[] SEEDS = { 0xC3A5C85C97CB3127L,
+				0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L };
+
+		/**
+		 * The maximum value of a counter.
+		 */
+		private static final int MAXIMUM_COUNT = 15;
+
+		/**
+		 * The counters, one row after another.
+		 */
+		private final byte[] counters;
+
+		/**
+		 * The width of each row.
+		 */
+		private final int width;
+
+		/**
+		 * The number of increments after which all counters are halved.
+		 */
+		private final int sampleSize;
+
+		/**
+		 * The number of increments since the counters were last halved.
+		 */
+		private int additions = 0;
+
+		/**
+		 * Creates the sketch.
+		 * 
+		 * @param capacity
+		 *            The expected number of entries in the cache.
+		 */
+		public FrequencySketch(int capacity) {
+			int w = 16;
+			while (w < capacity) {
+				w <<= 1;
+			}
+			width = w;
+			counters = new byte[SEEDS.length * width];
+			sampleSize = 10 * width;
+		}
+
+		/**
+		 * Gets the index of a key's counter in a row.
+		 * 
+		 * @param key
+		 *            The key.
+		 * @param row
+		 *            The row.
+		 * @return The index into the counters array.
+		 */
+		private int indexOf(long key, int row) {
+			long hash = (key + SEEDS[row]) * SEEDS[row];
+			hash ^= hash >>> 32;
+			return row * width + ((int) hash & width - 1);
+		}
+
+		/**
+		 * Estimates the frequency of a key.
+		 * 
+		 * @param key
+		 *            The key.
+		 * @return The estimated frequency.
+		 */
+		public synchronized int frequency(long key) {
+			int min = MAXIMUM_COUNT;
+			for (int row = 0; row < SEEDS.length; row++) {
+				min = Math.min(min, counters[indexOf(key, row)]);
+			}
+			return min;
+		}
+
+		/**
+		 * Records a request for a key.
+		 * 
+		 * @param key
+		 *            The key.
+		 */
+		public synchronized void increment(long key) {
+			for (int row = 0; row < SEEDS.length; row++) {
+				final int index = indexOf(key, row);
+				if (counters[index] < MAXIMUM_COUNT) {
+					counters[index]++;
+				}
+			}
+			if (++additions >= sampleSize) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+	}
+
+	/**
+	 * The underlying cache.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The budget, in bytes.
+	 */
+	private final long budget;
+
+	/**
+	 * The encoder, or <code>null</code> if files are kept as they are.
+	 */
+	private final Encoder encoder;
+
+	/**
+	 * The entries, by key.
+	 */
+	private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+	/**
+	 * The entries in the order they are considered for eviction. Changes to
+	 * this map, to {@link #entries} and to {@link #size} are made while
+	 * holding its lock.
+	 */
+	private final LinkedHashMap<Long, Entry> evictionOrder = new LinkedHashMap<Long, Entry>();
+
+	/**
+	 * The loads in progress, by key.
+	 */
+	private final ConcurrentMap<Long, FutureTask<Entry>> loads = new ConcurrentHashMap<Long, FutureTask<Entry>>();
+
+	/**
+	 * The request frequency sketch.
+	 */
+	private final FrequencySketch sketch;
+
+	/**
+	 * The total size of the entries, in bytes.
+	 */
+	private volatile long size = 0;
+
+	/**
+	 * The number of requests served from memory.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * The number of requests which had to be read from the cache.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The number of requests which waited for another request's load of the
+	 * same file.
+	 */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * The number of entries evicted.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates the file cache.
+	 * 
+	 * @param cache
+	 *            The underlying cache.
+	 * @param budget
+	 *            The budget, in bytes.
+	 */
+	public FileCache(Cache cache, long budget) {
+		this(cache, budget, null);
+	}
+
+	/**
+	 * Creates a file cache which keeps files in their encoded form.
+	 * 
+	 * @param cache
+	 *            The underlying cache.
+	 * @param budget
+	 *            The budget, in bytes, which is compared with the size of
+	 *            the encoded files.
+	 * @param encoder
+	 *            The encoder, or <code>null</code> to keep files as they
+	 *            are.
+	 */
+	public FileCache(Cache cache, long budget, Encoder encoder) {
+		this.cache = cache;
+		this.budget = budget;
+		this.encoder = encoder;
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, budget
+				/ AVERAGE_FILE_SIZE));
+	}
+
+	/**
+	 * Gets a file, from memory if possible.
+	 * 
+	 * @param cacheId
+	 *            The cache id.
+	 * @param fileId
+	 *            The file id.
+	 * @return The file, the buffer of which is read only and holds the
+	 *         encoded data if the cache has an encoder.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CacheFile getFile(final int cacheId, final int fileId)
+			throws IOException {
+		final long key = (long) cacheId << 32 | fileId & 0xFFFFFFFFL;
+		sketch.increment(key);
+		final Entry cached = entries.get(key);
+		if (cached != null) {
+			cached.referenced = true;
+			hits.incrementAndGet();
+			return cached.toCacheFile();
+		}
+		final FutureTask<Entry> load = new FutureTask<Entry>(
+				new Callable<Entry>() {
+					@Override
+					public Entry call() throws Exception {
+						return new Entry(cache.getFile(cacheId, fileId),
+								encoder);
+					}
+				});
+		final FutureTask<Entry> existing = loads.putIfAbsent(key, load);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return get(existing).toCacheFile();
+		}
+		misses.incrementAndGet();
+		Entry entry = null;
+		try {
+			load.run();
+			entry = get(load);
+			admit(key, entry);
+		} finally {
+			loads.remove(key);
+		}
+		return entry.toCacheFile();
+	}
+
+	/**
+	 * Waits for a load to finish.
+	 * 
+	 * @param load
+	 *            The load.
+	 * @return The entry.
+	 * @throws IOException
+	 *             if the load failed or the thread was interrupted.
+	 */
+	private static Entry get(FutureTask<Entry> load) throws IOException {
+		try {
+			return load.get();
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for a file.");
+		} catch (final ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Loads a list of files into the cache, so they are served from memory
+	 * from the first request. Each line of the file holds a cache id and a
+	 * file id separated by a space; blank lines and lines starting with
+	 * <code>#</code> are ignored.
+	 * 
+	 * @param hotSet
+	 *            The file listing the files to load.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void warm(File hotSet) throws IOException {
+		int loaded = 0;
+		final BufferedReader reader = new BufferedReader(new FileReader(hotSet));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				final String[] parts = line.split("\\s+");
+				final int cacheId = Integer.parseInt(parts[0]);
+				final int fileId = Integer.parseInt(parts[1]);
+				final long key = (long) cacheId << 32 | fileId & 0xFFFFFFFFL;
+				final Entry entry = new Entry(cache.getFile(cacheId, fileId),
+						encoder);
+				synchronized (evictionOrder) {
+					if (size + entry.getSize() > budget) {
+						break;
+					}
+					sketch.increment(key);
+					if (!entries.containsKey(key)) {
+						evictionOrder.put(key, entry);
+						entries.put(key, entry);
+						size += entry.getSize();
+						loaded++;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		logger.info("Warmed file cache with " + loaded + " files.");
+	}
+
+	/**
+	 * Adds an entry to the cache if it is requested more often than the
+	 * entries which have to be evicted to make room for it. Entries which
+	 * have been referenced since they were last considered are skipped, and
+	 * moved to the back of the eviction order with their flag cleared.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param entry
+	 *            The entry.
+	 */
+	private void admit(long key, Entry entry) {
+		if (entry.getSize() > budget) {
+			return;
+		}
+		final int frequency = sketch.frequency(key);
+		synchronized (evictionOrder) {
+			if (entries.containsKey(key)) {
+				return;
+			}
+			final List<Long> victims = new ArrayList<Long>();
+			final List<Long> referenced = new ArrayList<Long>();
+			long freed = 0;
+			boolean admitted = true;
+			for (final Map.Entry<Long, Entry> candidate : evictionOrder
+					.entrySet()) {
+				if (size - freed + entry.getSize() <= budget) {
+					break;
+				}
+				if (candidate.getValue().referenced) {
+					referenced.add(candidate.getKey());
+					continue;
+				}
+				if (sketch.frequency(candidate.getKey()) >= frequency) {
+					admitted = false; // not popular enough to be admitted
+					break;
+				}
+				freed += candidate.getValue().getSize();
+				victims.add(candidate.getKey());
+			}
+			if (size - freed + entry.getSize() > budget) {
+				admitted = false; // the rest were all recently used
+			}
+			for (final Long victim : referenced) {
+				final Entry e = evictionOrder.remove(victim);
+				e.referenced = false;
+				evictionOrder.put(victim, e);
+			}
+			if (!admitted) {
+				return;
+			}
+			for (final Long victim : victims) {
+				size -= evictionOrder.remove(victim).getSize();
+				entries.remove(victim);
+				evictions.incrementAndGet();
+			}
+			evictionOrder.put(key, entry);
+			entries.put(key, entry);
+			size += entry.getSize();
+		}
+	}
+
+	/**
+	 * Gets the number of requests served from memory.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of requests which were read from the cache.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of requests which waited for another request's load of
+	 * the same file.
+	 * 
+	 * @return The number of coalesced requests.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Gets the proportion of requests which waited for another request's
+	 * load of the same file instead of reading it from the cache.
+	 * 
+	 * @return The coalesce rate, between <code>0</code> and <code>1</code>.
+	 */
+	public double getCoalesceRate() {
+		final long coalesced = this.coalesced.get();
+		final long requests = hits.get() + misses.get() + coalesced;
+		if (requests == 0) {
+			return 0;
+		}
+		return (double) coalesced / (double) requests;
+	}
+
+	/**
+	 * Gets the proportion of requests served from memory.
+	 * 
+	 * @return The hit rate, between <code>0</code> and <code>1</code>.
+	 */
+	public double getHitRate() {
+		final long hits = this.hits.get();
+		final long requests = hits + misses.get() + coalesced.get();
+		if (requests == 0) {
+			return 0;
+		}
+		return (double) hits / (double) requests;
+	}
+
+	/**
+	 * Gets the number of entries evicted.
+	 * 
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the total size of the entries.
+	 * 
+	 * @return The size, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+}
@@ -36,10 +36,10 @@ public class IndexTable {
 	 *             if an I/O error occurs.
 	 */
 	public IndexTable(Cache cache) throws IOException {
-		final Archive configArchive = new Archive(cache.getFile(0, 2));
+		final Archive configArchive = cache.getArchive(2);
 		initObjectDefIndices(configArchive);
 
-		final Archive versionListArchive = new Archive(cache.getFile(0, 5));
+		final Archive versionListArchive = cache.getArchive(5);
 		initMapIndices(versionListArchive);
 	}
 
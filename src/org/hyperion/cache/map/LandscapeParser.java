@@ -57,13 +57,20 @@ public class LandscapeParser {
 	 *             if an I/O error occurs.
 	 */
 	public void parse() throws IOException {
+		final MapIndex index = cache.getIndexTable().getMapIndex(area);
+		parse(ZipUtils.unzip(cache.getFile(4, index.getLandscapeFile())));
+	}
+
+	/**
+	 * Parses a landscape file which has already been read and unzipped.
+	 * 
+	 * @param buf
+	 *            The unzipped landscape file.
+	 */
+	public void parse(ByteBuffer buf) {
 		final int x = (area >> 8 & 0xFF) * 64;
 		final int y = (area & 0xFF) * 64;
 
-		final MapIndex index = cache.getIndexTable().getMapIndex(area);
-
-		final ByteBuffer buf = ZipUtils.unzip(cache.getFile(4,
-				index.getLandscapeFile()));
 		int objId = -1;
 		while (true) {
 			final int objIdOffset = ByteBufferUtils.getSmart(buf);
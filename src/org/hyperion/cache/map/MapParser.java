@@ -1,6 +1,13 @@
 package org.hyperion.cache.map;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.hyperion.cache.Cache;
+import org.hyperion.cache.index.impl.MapIndex;
+import org.hyperion.cache.util.ZipUtils;
+import org.hyperion.rs2.model.Location;
+import org.hyperion.rs2.model.region.Tile;
 
 /**
  * A class which parses map files in the game cache.
@@ -10,6 +17,31 @@ import org.hyperion.cache.Cache;
  */
 public class MapParser {
 
+	/**
+	 * The number of planes in a map file.
+	 */
+	private static final int PLANES = 4;
+
+	/**
+	 * The width and height of a map file, in tiles.
+	 */
+	private static final int SIZE = 64;
+
+	/**
+	 * The cache.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The area id.
+	 */
+	private final int area;
+
+	/**
+	 * The listener.
+	 */
+	private final MapListener listener;
+
 	/**
 	 * Creates the map parser.
 	 * 
@@ -21,13 +53,74 @@ public class MapParser {
 	 *            The listener.
 	 */
 	public MapParser(Cache cache, int area, MapListener listener) {
+		this.cache = cache;
+		this.area = area;
+		this.listener = listener;
 	}
 
 	/**
-	 * Parses the map file.
+	 * Parses the map file. The listener is only notified of tiles which have
+	 * settings, and bridge tiles are reported before any others so the tiles
+	 * below them can be lowered correctly.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
 	 */
-	public void parse() {
+	public void parse() throws IOException {
+		final MapIndex index = cache.getIndexTable().getMapIndex(area);
+		parse(ZipUtils.unzip(cache.getFile(4, index.getMapFile())));
+	}
+
+	/**
+	 * Parses a map file which has already been read and unzipped.
+	 * 
+	 * @param buf
+	 *            The unzipped map file.
+	 */
+	public void parse(ByteBuffer buf) {
+		final int x = (area >> 8 & 0xFF) * 64;
+		final int y = (area & 0xFF) * 64;
+
+		final byte[][][] settings = new byte[PLANES][SIZE][SIZE];
+		for (int z = 0; z < PLANES; z++) {
+			for (int localX = 0; localX < SIZE; localX++) {
+				for (int localY = 0; localY < SIZE; localY++) {
+					while (true) {
+						final int opcode = buf.get() & 0xFF;
+						if (opcode == 0) {
+							break;
+						} else if (opcode == 1) {
+							buf.get(); // height
+							break;
+						} else if (opcode <= 49) {
+							buf.get(); // overlay
+						} else if (opcode <= 81) {
+							settings[z][localX][localY] = (byte) (opcode - 49);
+						} else {
+							// underlay
+						}
+					}
+				}
+			}
+		}
 
+		for (int pass = 0; pass < 2; pass++) {
+			for (int z = 0; z < PLANES; z++) {
+				for (int localX = 0; localX < SIZE; localX++) {
+					for (int localY = 0; localY < SIZE; localY++) {
+						final int tileSettings = settings[z][localX][localY];
+						if (tileSettings == 0) {
+							continue;
+						}
+						final boolean bridge = (tileSettings & Tile.BRIDGE) != 0;
+						if (bridge == (pass == 0)) {
+							listener.tileParsed(new Tile(Location.create(x
+									+ localX, y + localY, z), tileSettings));
+						}
+					}
+				}
+			}
+		}
 	}
 
 }
@@ -3,7 +3,6 @@ package org.hyperion.cache.obj;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import org.hyperion.cache.Archive;
 import org.hyperion.cache.Cache;
 import org.hyperion.cache.index.impl.StandardIndex;
 import org.hyperion.cache.util.ByteBufferUtils;
@@ -18,9 +17,9 @@ import org.hyperion.rs2.model.GameObjectDefinition;
 public class ObjectDefinitionParser {
 
 	/**
-	 * The cache.
+	 * The decoded <code>loc.dat</code> file.
 	 */
-	private final Cache cache;
+	private final ByteBuffer data;
 
 	/**
 	 * The index.
@@ -41,179 +40,219 @@ public class ObjectDefinitionParser {
 	 *            The indices in the cache.
 	 * @param listener
 	 *            The object definition listener.
+	 * @throws IOException
+	 *             if an I/O error occurs.
 	 */
 	public ObjectDefinitionParser(Cache cache, StandardIndex[] indices,
-			ObjectDefinitionListener listener) {
-		this.cache = cache;
+			ObjectDefinitionListener listener) throws IOException {
+		this.data = cache.getArchive(2).getFileAsByteBuffer("loc.dat");
 		this.indices = indices;
 		this.listener = listener;
 	}
 
 	/**
-	 * Parses the object definitions in the cache.
+	 * Parses all of the object definitions in the cache. Only the fields
+	 * needed for collision are decoded, the name and description are left to
+	 * be decoded when they are first used.
+	 */
+	public void parse() {
+		final ByteBuffer buf = data.duplicate();
+		for (final StandardIndex index : indices) {
+			listener.objectDefinitionParsed(parse(buf, index, false));
+		}
+	}
+
+	/**
+	 * Parses a single object definition. This method is thread safe.
 	 * 
-	 * @throws IOException
-	 *             if an I/O error occurs.
+	 * @param id
+	 *            The id.
+	 * @param text
+	 *            A flag indicating the name and description should be
+	 *            decoded.
+	 * @return The definition, or <code>null</code> if there is no definition
+	 *         with the id.
 	 */
-	public void parse() throws IOException {
-		final ByteBuffer buf = new Archive(cache.getFile(0, 2))
-				.getFileAsByteBuffer("loc.dat");
+	public GameObjectDefinition parse(int id, boolean text) {
+		if (id < 0 || id >= indices.length || indices[id] == null) {
+			return null;
+		}
+		return parse(data.duplicate(), indices[id], text);
+	}
 
-		for (final StandardIndex index : indices) {
-			final int id = index.getIdentifier();
-			final int offset = index.getFile(); // bad naming, should be
-												// getOffset()
-			buf.position(offset);
-
-			// TODO read the object definition now
-
-			String name = "null";
-			String desc = "null";
-			int sizeX = 1;
-			int sizeY = 1;
-			boolean isSolid = true;
-			boolean isWalkable = true;
-			boolean hasActions = false;
-
-			outer_loop: do {
-				int configCode;
-				do {
-					configCode = buf.get() & 0xFF;
-					if (configCode == 0) {
-						break outer_loop;
+	/**
+	 * Parses an object definition.
+	 * 
+	 * @param buf
+	 *            The buffer holding the <code>loc.dat</code> file.
+	 * @param index
+	 *            The index of the definition.
+	 * @param text
+	 *            A flag indicating the name and description should be
+	 *            decoded.
+	 * @return The definition.
+	 */
+	private GameObjectDefinition parse(ByteBuffer buf, StandardIndex index,
+			boolean text) {
+		final int id = index.getIdentifier();
+		final int offset = index.getFile(); // bad naming, should be
+											// getOffset()
+		buf.position(offset);
+
+		String name = text ? "null" : null;
+		String desc = text ? "null" : null;
+		int sizeX = 1;
+		int sizeY = 1;
+		boolean isSolid = true;
+		boolean isWalkable = true;
+		boolean hasActions = false;
+
+		outer_loop: do {
+			int configCode;
+			do {
+				configCode = buf.get() & 0xFF;
+				if (configCode == 0) {
+					break outer_loop;
+				}
+				switch (configCode) {
+				case 1:
+					int someCounter = buf.get() & 0xFF;
+					for (int i = 0; i < someCounter; i++) {
+						buf.getShort();
+						buf.get();
 					}
-					switch (configCode) {
-					case 1:
-						int someCounter = buf.get() & 0xFF;
-						for (int i = 0; i < someCounter; i++) {
-							buf.getShort();
-							buf.get();
-						}
-						break;
-					case 2:
+					break;
+				case 2:
+					if (text) {
 						name = ByteBufferUtils.getString(buf);
-						break;
-					case 3:
+					} else {
+						ByteBufferUtils.skipString(buf);
+					}
+					break;
+				case 3:
+					if (text) {
 						desc = ByteBufferUtils.getString(buf);
-						break;
-					case 5:
-						someCounter = buf.get() & 0xFF;
-						for (int i = 0; i < someCounter; i++) {
-							buf.getShort();
-						}
-						break;
-					case 14:
-						sizeX = buf.get() & 0xFF;
-						break;
-					case 15:
-						sizeY = buf.get() & 0xFF;
-						break;
-					case 17:
-						isSolid = false;
-						break;
-					case 18:
-						isWalkable = false;
-						break;
-					case 19:
-						// has actions?
-						if (buf.get() == 1) {
-							hasActions = true;
-						}
-						break;
-					case 21:
-						// some boolean
-						break;
-					case 22:
-						// some boolean
-						break;
-					case 23:
-						// some boolean
-						break;
-					case 24:
-						buf.getShort();
-						break;
-					case 28:
-						buf.get();
-						break;
-					case 29:
-						buf.get();
-						break;
-					case 39:
-						buf.get();
-						break;
-					case 30:
-					case 31:
-					case 32:
-					case 33:
-					case 34:
-					case 35:
-					case 36:
-					case 37:
-					case 38:
-						ByteBufferUtils.getString(buf); // actions
-						break;
-					case 40:
-						someCounter = buf.get() & 0xFF; // model colours
-						for (int i = 0; i < someCounter; i++) {
-							buf.getShort();
-							buf.getShort();
-						}
-						break;
-					case 60:
-						buf.getShort();
-						break;
-					case 62:
-						break;
-					case 64:
-						break;
-					case 65:
-						buf.getShort();
-						break;
-					case 66:
-						buf.getShort();
-						break;
-					case 67:
-						buf.getShort();
-						break;
-					case 68:
-						buf.getShort();
-						break;
-					case 69:
-						buf.get();
-						break;
-					case 70:
+					} else {
+						ByteBufferUtils.skipString(buf);
+					}
+					break;
+				case 5:
+					someCounter = buf.get() & 0xFF;
+					for (int i = 0; i < someCounter; i++) {
 						buf.getShort();
-						break;
-					case 71:
+					}
+					break;
+				case 14:
+					sizeX = buf.get() & 0xFF;
+					break;
+				case 15:
+					sizeY = buf.get() & 0xFF;
+					break;
+				case 17:
+					isSolid = false;
+					break;
+				case 18:
+					isWalkable = false;
+					break;
+				case 19:
+					// has actions?
+					if (buf.get() == 1) {
+						hasActions = true;
+					}
+					break;
+				case 21:
+					// some boolean
+					break;
+				case 22:
+					// some boolean
+					break;
+				case 23:
+					// some boolean
+					break;
+				case 24:
+					buf.getShort();
+					break;
+				case 28:
+					buf.get();
+					break;
+				case 29:
+					buf.get();
+					break;
+				case 39:
+					buf.get();
+					break;
+				case 30:
+				case 31:
+				case 32:
+				case 33:
+				case 34:
+				case 35:
+				case 36:
+				case 37:
+				case 38:
+					ByteBufferUtils.skipString(buf); // actions
+					break;
+				case 40:
+					someCounter = buf.get() & 0xFF; // model colours
+					for (int i = 0; i < someCounter; i++) {
 						buf.getShort();
-						break;
-					case 72:
 						buf.getShort();
-						break;
-					case 73:
-						break;
-					case 74:
-						break;
-					case 75:
-						break;
-					default:
-						buf.get();
-						break;
 					}
-				} while (configCode != 77);
-
-				buf.getShort();
-				buf.getShort();
-
-				final int counter = buf.get();
-				for (int i = 0; i <= counter; i++) {
+					break;
+				case 60:
+					buf.getShort();
+					break;
+				case 62:
+					break;
+				case 64:
+					break;
+				case 65:
+					buf.getShort();
+					break;
+				case 66:
+					buf.getShort();
+					break;
+				case 67:
+					buf.getShort();
+					break;
+				case 68:
+					buf.getShort();
+					break;
+				case 69:
+					buf.get();
+					break;
+				case 70:
 					buf.getShort();
+					break;
+				case 71:
+					buf.getShort();
+					break;
+				case 72:
+					buf.getShort();
+					break;
+				case 73:
+					break;
+				case 74:
+					break;
+				case 75:
+					break;
+				default:
+					buf.get();
+					break;
 				}
-			} while (true);
+			} while (configCode != 77);
 
-			listener.objectDefinitionParsed(new GameObjectDefinition(id, name,
-					desc, sizeX, sizeY, isSolid, isWalkable, hasActions));
-		}
+			buf.getShort();
+			buf.getShort();
+
+			final int counter = buf.get();
+			for (int i = 0; i <= counter; i++) {
+				buf.getShort();
+			}
+		} while (true);
+
+		return new GameObjectDefinition(id, name, desc, sizeX, sizeY,
+				isSolid, isWalkable, hasActions);
 	}
 
 }
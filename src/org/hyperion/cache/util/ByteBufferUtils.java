@@ -42,4 +42,17 @@ public class ByteBufferUtils {
 		return bldr.toString();
 	}
 
+	/**
+	 * Skips over an RS2 string in the buffer.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 */
+	public static void skipString(ByteBuffer buf) {
+		byte b;
+		do {
+			b = buf.get();
+		} while (b != 10);
+	}
+
 }
@@ -1,7 +1,6 @@
 package org.hyperion.cache.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -17,6 +16,31 @@ import org.hyperion.cache.CacheFile;
  */
 public class ZipUtils {
 
+	/**
+	 * The largest uncompressed size trusted from a GZIP trailer.
+	 */
+	private static final int MAXIMUM_TRUSTED_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The largest ratio of uncompressed to compressed size trusted from a
+	 * GZIP trailer. Map files, the most compressible files in the cache,
+	 * are well within this.
+	 */
+	private static final int MAXIMUM_TRUSTED_RATIO = 64;
+
+	/**
+	 * The id of the cache which holds the archives, as returned by
+	 * {@link CacheFile#getCache()}, which is one more than the index it was
+	 * read from.
+	 */
+	private static final int ARCHIVE_CACHE = 1;
+
+	/**
+	 * The length of the version which follows the GZIP stream of a file in
+	 * one of the ondemand caches.
+	 */
+	private static final int VERSION_LENGTH = 2;
+
 	/**
 	 * Unzips a cache file.
 	 * 
@@ -27,33 +51,92 @@ public class ZipUtils {
 	 *             if an I/O error occurs.
 	 */
 	public static ByteBuffer unzip(CacheFile file) throws IOException {
-		final byte[] data = new byte[file.getBuffer().remaining()];
-		file.getBuffer().get(data);
+		final ByteBuffer buf = file.getBuffer().duplicate();
+		buf.position(0);
+		final int length = buf.limit();
+		final byte[] data;
+		final int offset;
+		if (buf.hasArray()) {
+			data = buf.array();
+			offset = buf.arrayOffset();
+		} else {
+			data = new byte[length];
+			offset = 0;
+			buf.get(data);
+		}
+
+		/*
+		 * The last four bytes of a GZIP stream hold the uncompressed size, so
+		 * the output can usually be read straight into an array of the right
+		 * size. Files in the ondemand caches may have a version after the
+		 * stream, so the size is looked for before it first. Only the
+		 * archives, in the first cache, never have one.
+		 */
+		int size = -1;
+		if (file.getCache() != ARCHIVE_CACHE) {
+			size = readSize(data, offset, length - VERSION_LENGTH);
+		}
+		if (size == -1) {
+			size = readSize(data, offset, length);
+		}
+		if (size == -1) {
+			size = length * 4;
+		}
+
+		byte[] out = new byte[Math.max(size, 1)];
+		int read = 0;
 		final InputStream is = new GZIPInputStream(new ByteArrayInputStream(
-				data));
-		byte[] out;
+				data, offset, length));
 		try {
-			final ByteArrayOutputStream os = new ByteArrayOutputStream();
-			try {
-				while (true) {
-					final byte[] buf = new byte[1024];
-					final int read = is.read(buf, 0, buf.length);
-					if (read == -1) {
+			while (true) {
+				if (read == out.length) {
+					final int next = is.read();
+					if (next == -1) {
 						break;
 					}
-					os.write(buf, 0, read);
+					final byte[] bigger = new byte[out.length * 2];
+					System.arraycopy(out, 0, bigger, 0, read);
+					out = bigger;
+					out[read++] = (byte) next;
+				}
+				final int count = is.read(out, read, out.length - read);
+				if (count == -1) {
+					break;
 				}
-			} finally {
-				os.close();
+				read += count;
 			}
-			out = os.toByteArray();
 		} finally {
 			is.close();
 		}
-		final ByteBuffer newBuf = ByteBuffer.allocate(out.length);
-		newBuf.put(out);
-		newBuf.flip();
-		return newBuf;
+		return ByteBuffer.wrap(out, 0, read);
+	}
+
+	/**
+	 * Reads the uncompressed size from the trailer of a GZIP stream, if it
+	 * is realistic for the stream's length. As deflate never makes data much
+	 * larger, the size must be at least half of the compressed length.
+	 * 
+	 * @param data
+	 *            The data.
+	 * @param offset
+	 *            The offset of the stream.
+	 * @param end
+	 *            The length of the stream, including the trailer.
+	 * @return The size, or <code>-1</code> if the trailer is not realistic.
+	 */
+	private static int readSize(byte[] data, int offset, int end) {
+		if (end < 4) {
+			return -1;
+		}
+		final int size = (data[offset + end - 4] & 0xFF)
+				| (data[offset + end - 3] & 0xFF) << 8
+				| (data[offset + end - 2] & 0xFF) << 16
+				| (data[offset + end - 1] & 0xFF) << 24;
+		if (size < end / 2 || size > MAXIMUM_TRUSTED_SIZE
+				|| (long) size > (long) end * MAXIMUM_TRUSTED_RATIO) {
+			return -1;
+		}
+		return size;
 	}
 
 }
@@ -4,6 +4,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
@@ -49,10 +50,18 @@ public class ConnectionHandler extends IoHandlerAdapter {
 		((UpdateSession) session.getAttribute("session")).readLine((String) in);
 	}
 
+	@Override
+	public void sessionIdle(IoSession session, IdleStatus status)
+			throws Exception {
+		session.close(false);
+	}
+
 	@Override
 	public void sessionOpened(IoSession session) throws Exception {
 		session.getFilterChain().addFirst("textFilter",
 				new ProtocolCodecFilter(new TextLineCodecFactory()));
+		session.getConfig().setIdleTime(IdleStatus.BOTH_IDLE,
+				UpdateSession.KEEP_ALIVE_TIMEOUT);
 		session.setAttribute("session", new UpdateSession(type, session));
 	}
 
@@ -6,6 +6,7 @@ import java.util.logging.Logger;
 
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.hyperion.cache.InvalidCacheException;
 import org.hyperion.fileserver.UpdateSession.Type;
 
 /**
@@ -62,8 +63,12 @@ public class FileServer {
 	 * 
 	 * @return The server instance, for chaining.
 	 * @throws IOException
+	 * @throws InvalidCacheException
+	 *             if the cache is corrupt or invalid.
 	 */
-	public FileServer bind() throws IOException {
+	public FileServer bind() throws IOException, InvalidCacheException {
+		logger.info("Building file server responses...");
+		RequestHandler.init();
 		logger.info("Binding to port : " + JAGGRAB_PORT + "...");
 		jaggrabAcceptor.bind(new InetSocketAddress(JAGGRAB_PORT));
 		logger.info("Binding to port : " + HTTP_PORT + "...");
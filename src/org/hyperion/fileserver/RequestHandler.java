@@ -6,14 +6,27 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.CRC32;
 
 import org.hyperion.Server;
 import org.hyperion.cache.Cache;
+import org.hyperion.cache.InvalidCacheException;
 
 /**
  * Handles update requests and creates a response.
  * 
+ * The responses for the CRC table and the archives in the cache never change
+ * while the server is running, so they are built once by {@link #init()} and
+ * shared by every session. Files in the <code>htdocs</code> directory are
+ * mapped into memory the first time they are requested, and mapped again if
+ * they are changed. No locks are held while a request is handled, so many
+ * sessions can be served at once.
+ * 
  * @author Graham Edgecombe
  * 
  */
@@ -26,75 +39,234 @@ public class RequestHandler {
 			.getAbsolutePath();
 
 	/**
-	 * The cached CRC table.
+	 * The path under which requests for files which do not exist are
+	 * recorded in the metrics.
+	 */
+	public static final String NOT_FOUND_PATH = "(not found)";
+
+	/**
+	 * The paths of the archives in the first cache, by file id. File 0 is the
+	 * CRC table, which is calculated rather than read from the cache.
+	 */
+	private static final String[] ARCHIVE_PATHS = { "/crc", "/title",
+			"/config", "/interface", "/media", "/versionlist", "/textures",
+			"/wordenc", "/sounds" };
+
+	/**
+	 * The prebuilt responses for the CRC table and the archives, by path, or
+	 * <code>null</code> if {@link #init()} has not been called.
+	 */
+	private static volatile Map<String, Response> archives = null;
+
+	/**
+	 * The files in the <code>htdocs</code> directory which have been mapped
+	 * into memory, by absolute path.
 	 */
-	private static ByteBuffer crcTable = null;
+	private static final ConcurrentMap<String, MappedFile> files = new ConcurrentHashMap<String, MappedFile>();
+
+	/**
+	 * The metrics of each path which has been requested.
+	 */
+	private static final ConcurrentMap<String, RequestMetrics> metrics = new ConcurrentHashMap<String, RequestMetrics>();
+
+	/**
+	 * A file in the <code>htdocs</code> directory which has been mapped into
+	 * memory.
+	 */
+	private static final class MappedFile {
+
+		/**
+		 * The time the file was last modified when it was mapped.
+		 */
+		private final long lastModified;
+
+		/**
+		 * The length of the file when it was mapped.
+		 */
+		private final long length;
+
+		/**
+		 * The response.
+		 */
+		private final Response response;
+
+		/**
+		 * Creates the mapped file.
+		 * 
+		 * @param lastModified
+		 *            The time the file was last modified.
+		 * @param length
+		 *            The length of the file.
+		 * @param response
+		 *            The response.
+		 */
+		private MappedFile(long lastModified, long length, Response response) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.response = response;
+		}
+
+	}
 
 	/**
-	 * The cache instance.
+	 * Builds the responses for the CRC table and the archives in the cache.
+	 * This must be called before any requests are handled.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 * @throws InvalidCacheException
+	 *             if the cache is corrupt or invalid.
 	 */
-	private static Cache cache;
+	public static void init() throws IOException, InvalidCacheException {
+		final byte[][] data = new byte[ARCHIVE_PATHS.length][];
+		final Cache cache = Cache.acquire();
+		try {
+			for (int i = 1; i < data.length; i++) {
+				data[i] = cache.getFile(0, i).getBytes();
+			}
+		} finally {
+			cache.close();
+		}
+		final long lastModified = new File(Cache.CACHE_DIRECTORY,
+				"main_file_cache.dat").lastModified();
+		final Map<String, Response> responses = new HashMap<String, Response>();
+		responses.put(ARCHIVE_PATHS[0], new Response(ARCHIVE_PATHS[0],
+				calculateCrcTable(data), getMimeType(ARCHIVE_PATHS[0]),
+				lastModified));
+		for (int i = 1; i < data.length; i++) {
+			responses.put(ARCHIVE_PATHS[i], new Response(ARCHIVE_PATHS[i],
+					data[i], getMimeType(ARCHIVE_PATHS[i]), lastModified));
+		}
+		archives = Collections.unmodifiableMap(responses);
+	}
 
 	/**
-	 * Handles a single request.
+	 * Handles a single request. This method is thread safe.
 	 * 
 	 * @param request
 	 *            The request.
-	 * @return The response.
-	 */
-	public static synchronized Response handle(Request request) {
-		if (cache == null) {
-			try {
-				cache = new Cache(new File("./data/cache/"));
-			} catch (final Exception e) {
-				throw new RuntimeException(e);
-			}
+	 * @return The response, or <code>null</code> if the file does not exist.
+	 */
+	public static Response handle(Request request) {
+		final Map<String, Response> archives = RequestHandler.archives;
+		if (archives == null) {
+			throw new IllegalStateException("Request handler not initialised.");
 		}
 		String path = request.getPath();
 		if (path.equals("/")) {
 			path = "/index.html";
 		}
-		final String mime = getMimeType(path);
+		final Response response = archives.get(getArchivePath(path));
+		if (response != null) {
+			return response;
+		}
 		try {
-			if (crcTable == null) {
-				crcTable = calculateCrcTable();
-			}
-			if (path.startsWith("/crc")) {
-				return new Response(crcTable.asReadOnlyBuffer(), mime);
-			} else if (path.startsWith("/title")) {
-				return new Response(cache.getFile(0, 1).getBytes(), mime);
-			} else if (path.startsWith("/config")) {
-				return new Response(cache.getFile(0, 2).getBytes(), mime);
-			} else if (path.startsWith("/interface")) {
-				return new Response(cache.getFile(0, 3).getBytes(), mime);
-			} else if (path.startsWith("/media")) {
-				return new Response(cache.getFile(0, 4).getBytes(), mime);
-			} else if (path.startsWith("/versionlist")) {
-				return new Response(cache.getFile(0, 5).getBytes(), mime);
-			} else if (path.startsWith("/textures")) {
-				return new Response(cache.getFile(0, 6).getBytes(), mime);
-			} else if (path.startsWith("/wordenc")) {
-				return new Response(cache.getFile(0, 7).getBytes(), mime);
-			} else if (path.startsWith("/sounds")) {
-				return new Response(cache.getFile(0, 8).getBytes(), mime);
-			}
-			path = new File(FILES_DIRECTORY + path).getAbsolutePath();
-			if (!path.startsWith(FILES_DIRECTORY)) {
-				return null;
-			}
-			final RandomAccessFile f = new RandomAccessFile(path, "r");
-			try {
-				final MappedByteBuffer data = f.getChannel().map(
-						MapMode.READ_ONLY, 0, f.length());
-				return new Response(data, mime);
-			} finally {
-				f.close();
-			}
+			return getFile(path);
 		} catch (final IOException ex) {
 			return null;
 		}
 	}
 
+	/**
+	 * Gets the path of the archive a path requests. The client adds a number
+	 * to the name of each archive so that proxies do not cache it: the CRC
+	 * table is requested as e.g. <code>/crc5838123-317</code>, and the other
+	 * archives with their expected CRC, e.g. <code>/title-1924281926</code>
+	 * or <code>/config81349612</code>. Like the {@link Request} itself, any
+	 * path starting with the name of an archive requests that archive.
+	 * 
+	 * @param path
+	 *            The requested path.
+	 * @return The path of the archive, or the path itself if it does not
+	 *         request an archive.
+	 */
+	private static String getArchivePath(String path) {
+		for (final String archivePath : ARCHIVE_PATHS) {
+			if (path.startsWith(archivePath)) {
+				return archivePath;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Gets the response for a file in the <code>htdocs</code> directory,
+	 * mapping the file into memory if it has not been mapped or has changed
+	 * since. Two sessions may map the same file at once, in which case the
+	 * last mapping is kept.
+	 * 
+	 * @param path
+	 *            The requested path.
+	 * @return The response, or <code>null</code> if the file does not exist.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static Response getFile(String path) throws IOException {
+		final File file = new File(FILES_DIRECTORY + path).getAbsoluteFile();
+		final String absolutePath = file.getPath();
+		if (!absolutePath.startsWith(FILES_DIRECTORY)) {
+			return null;
+		}
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		final MappedFile cached = files.get(absolutePath);
+		if (cached != null && cached.lastModified == lastModified
+				&& cached.length == length) {
+			return cached.response;
+		}
+		if (!file.isFile()) {
+			files.remove(absolutePath);
+			return null;
+		}
+		final RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			final MappedByteBuffer data = f.getChannel().map(
+					MapMode.READ_ONLY, 0, f.length());
+			final Response response = new Response(absolutePath
+					.substring(FILES_DIRECTORY.length()), data,
+					getMimeType(absolutePath), lastModified);
+			files.put(absolutePath, new MappedFile(lastModified, length,
+					response));
+			return response;
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Records a request which has been served in the metrics of its path.
+	 * 
+	 * @param response
+	 *            The response, or <code>null</code> if the file did not exist.
+	 * @param length
+	 *            The number of bytes of file data sent, which is less than
+	 *            the length of the file for range and conditional requests.
+	 * @param latency
+	 *            The time taken to serve the request, in nanoseconds.
+	 */
+	public static void record(Response response, long length, long latency) {
+		final String path = response == null ? NOT_FOUND_PATH : response
+				.getPath();
+		RequestMetrics pathMetrics = metrics.get(path);
+		if (pathMetrics == null) {
+			final RequestMetrics newMetrics = new RequestMetrics();
+			pathMetrics = metrics.putIfAbsent(path, newMetrics);
+			if (pathMetrics == null) {
+				pathMetrics = newMetrics;
+			}
+		}
+		pathMetrics.record(length, latency);
+	}
+
+	/**
+	 * Gets the metrics of every path which has been requested.
+	 * 
+	 * @return An unmodifiable view of the metrics, by path.
+	 */
+	public static Map<String, RequestMetrics> getMetrics() {
+		return Collections.unmodifiableMap(metrics);
+	}
+
 	/*
 	 * The following code is where it downloads the /crc file from JAGGRAB.
 	 */
@@ -174,13 +346,13 @@ public class RequestHandler {
 	 * forum post I found on the web archive.
 	 * </p>
 	 * 
+	 * @param files
+	 *            The data of the files in the first cache, by file id.
 	 * @return The crc table.
-	 * @throws IOException
-	 *             if an I/O error occurs.
 	 */
-	private static ByteBuffer calculateCrcTable() throws IOException {
+	private static byte[] calculateCrcTable(byte[][] files) {
 		final CRC32 crc = new CRC32();
-		final int[] checksums = new int[9];
+		final int[] checksums = new int[files.length];
 
 		/*
 		 * Set the first checksum. As 0 is the CRC table itself (which we are
@@ -192,9 +364,8 @@ public class RequestHandler {
 		 * Calculate the checksums.
 		 */
 		for (int i = 1; i < checksums.length; i++) {
-			final byte[] file = cache.getFile(0, i).getBytes(); // each of these
-																// maps to the
-																// files above
+			final byte[] file = files[i]; // each of these maps to the files
+											// above
 			crc.reset();
 			crc.update(file, 0, file.length);
 			checksums[i] = (int) crc.getValue();
@@ -220,8 +391,7 @@ public class RequestHandler {
 			bb.putInt(checksums[i]);
 		}
 		bb.putInt(hash);
-		bb.flip();
-		return bb;
+		return bb.array();
 	}
 
 	/**
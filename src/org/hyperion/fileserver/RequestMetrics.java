@@ -0,0 +1,92 @@
+package org.hyperion.fileserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the throughput and latency statistics of the requests for a single
+ * path. The statistics are updated without locking, so they can be recorded
+ * by many sessions at once.
+ */
+public class RequestMetrics {
+
+	/**
+	 * The number of requests served.
+	 */
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * The number of bytes served.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * The total time taken to serve all requests, in nanoseconds.
+	 */
+	private final AtomicLong totalLatency = new AtomicLong();
+
+	/**
+	 * The longest time taken to serve a request, in nanoseconds.
+	 */
+	private final AtomicLong maximumLatency = new AtomicLong();
+
+	/**
+	 * Records a request which has been served.
+	 * 
+	 * @param length
+	 *            The number of bytes served.
+	 * @param latency
+	 *            The time taken to serve the request, in nanoseconds.
+	 */
+	public void record(long length, long latency) {
+		requests.incrementAndGet();
+		bytes.addAndGet(length);
+		totalLatency.addAndGet(latency);
+		long max;
+		while (latency > (max = maximumLatency.get())) {
+			if (maximumLatency.compareAndSet(max, latency)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of requests served.
+	 * 
+	 * @return The number of requests.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the number of bytes served.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getBytesServed() {
+		return bytes.get();
+	}
+
+	/**
+	 * Gets the average time taken to serve a request.
+	 * 
+	 * @return The average latency, in milliseconds.
+	 */
+	public double getAverageLatency() {
+		final long count = requests.get();
+		if (count == 0) {
+			return 0;
+		}
+		return (double) totalLatency.get() / (double) count / 1000000D;
+	}
+
+	/**
+	 * Gets the longest time taken to serve a request.
+	 * 
+	 * @return The maximum latency, in milliseconds.
+	 */
+	public double getMaximumLatency() {
+		return (double) maximumLatency.get() / 1000000D;
+	}
+
+}
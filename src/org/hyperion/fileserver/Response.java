@@ -1,15 +1,32 @@
 package org.hyperion.fileserver;
 
 import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
 
 /**
- * Represents a response to either a JAGGRAB or HTTP request.
+ * Represents a response to either a JAGGRAB or HTTP request. Responses are
+ * immutable, so a single response may be served to many sessions at once.
  * 
  * @author Graham Edgecombe
  * 
  */
 public class Response {
 
+	/**
+	 * The format of dates in HTTP headers.
+	 */
+	public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	/**
+	 * The path of the file.
+	 */
+	private final String path;
+
 	/**
 	 * The data in the file.
 	 */
@@ -21,41 +38,178 @@ public class Response {
 	private final String mimeType;
 
 	/**
-	 * Creates the response.
+	 * The entity tag, which is the quoted CRC of the file data.
+	 */
+	private final String entityTag;
+
+	/**
+	 * The time the file was last modified, rounded down to the second.
+	 */
+	private final long lastModified;
+
+	/**
+	 * The HTTP response header for a persistent connection.
+	 */
+	private final ByteBuffer keepAliveHeader;
+
+	/**
+	 * The HTTP response header for a connection which is closed after the
+	 * response.
+	 */
+	private final ByteBuffer closeHeader;
+
+	/**
+	 * Creates the response. The data is copied into a direct buffer, which
+	 * sessions can write to the socket without copying it again.
 	 * 
+	 * @param path
+	 *            The path of the file.
 	 * @param bytes
 	 *            The data.
 	 * @param mimeType
 	 *            The MIME type.
+	 * @param lastModified
+	 *            The time the file was last modified.
 	 */
-	public Response(byte[] bytes, String mimeType) {
-		final ByteBuffer buf = ByteBuffer.allocate(bytes.length);
-		buf.put(bytes);
-		buf.flip();
-		fileData = buf;
-		this.mimeType = mimeType;
+	public Response(String path, byte[] bytes, String mimeType,
+			long lastModified) {
+		this(path, (ByteBuffer) ByteBuffer.allocateDirect(bytes.length).put(
+				bytes).flip(), mimeType, lastModified);
 	}
 
 	/**
-	 * Creates the response.
+	 * Creates the response. The buffer must not be modified afterwards.
 	 * 
+	 * @param path
+	 *            The path of the file.
 	 * @param fileData
-	 *            The file data.
+	 *            The file data, from its position to its limit.
 	 * @param mimeType
 	 *            The MIME type.
+	 * @param lastModified
+	 *            The time the file was last modified.
 	 */
-	public Response(ByteBuffer fileData, String mimeType) {
-		this.fileData = fileData;
+	public Response(String path, ByteBuffer fileData, String mimeType,
+			long lastModified) {
+		this.path = path;
+		this.fileData = fileData.asReadOnlyBuffer();
 		this.mimeType = mimeType;
+		this.entityTag = "\"" + Integer.toHexString(calculateCrc(fileData))
+				+ "\"";
+		this.lastModified = lastModified / 1000 * 1000;
+		keepAliveHeader = buildHeader(true);
+		closeHeader = buildHeader(false);
 	}
 
 	/**
-	 * Gets the file data.
+	 * Calculates the CRC of the file data.
 	 * 
-	 * @return The file dtaa.
+	 * @param fileData
+	 *            The file data.
+	 * @return The CRC.
+	 */
+	private static int calculateCrc(ByteBuffer fileData) {
+		final ByteBuffer buf = fileData.duplicate();
+		final CRC32 crc = new CRC32();
+		final byte[] chunk = new byte[8192];
+		while (buf.hasRemaining()) {
+			final int length = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Builds the HTTP response header for the whole file.
+	 * 
+	 * @param keepAlive
+	 *            Whether the connection is kept open after the response.
+	 * @return The header.
+	 */
+	private ByteBuffer buildHeader(boolean keepAlive) {
+		final StringBuilder header = new StringBuilder();
+		header.append("HTTP/1.1 200 OK\r\n");
+		appendHeaders(header, keepAlive);
+		header.append("Content-Length: ").append(getLength()).append("\r\n");
+		header.append("\r\n");
+		return ByteBuffer.wrap(header.toString().getBytes())
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Appends the headers which are sent with every response for this file,
+	 * apart from the content length.
+	 * 
+	 * @param header
+	 *            The header being built.
+	 * @param keepAlive
+	 *            Whether the connection is kept open after the response.
+	 */
+	public void appendHeaders(StringBuilder header, boolean keepAlive) {
+		header.append("Connection: ").append(
+				keepAlive ? "keep-alive" : "close").append("\r\n");
+		header.append("Server: JaGeX/3.1\r\n");
+		header.append("Content-Type: ").append(mimeType).append("\r\n");
+		header.append("Accept-Ranges: bytes\r\n");
+		header.append("ETag: ").append(entityTag).append("\r\n");
+		header.append("Last-Modified: ").append(formatDate(lastModified))
+				.append("\r\n");
+	}
+
+	/**
+	 * Formats a date for a HTTP header.
+	 * 
+	 * @param time
+	 *            The time.
+	 * @return The formatted date.
+	 */
+	public static String formatDate(long time) {
+		final DateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT,
+				Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * Gets the path of the file.
+	 * 
+	 * @return The path.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Gets the file data. Each call returns a new read-only buffer, so the
+	 * caller may change its position.
+	 * 
+	 * @return The file data.
 	 */
 	public ByteBuffer getFileData() {
-		return fileData;
+		return fileData.duplicate();
+	}
+
+	/**
+	 * Gets the HTTP response header for the whole file, which is built when
+	 * the response is created. Each call returns a new read-only buffer, so
+	 * the caller may change its position.
+	 * 
+	 * @param keepAlive
+	 *            Whether the connection is kept open after the response.
+	 * @return The HTTP response header.
+	 */
+	public ByteBuffer getHttpHeader(boolean keepAlive) {
+		return (keepAlive ? keepAliveHeader : closeHeader).duplicate();
+	}
+
+	/**
+	 * Gets the length of the file data.
+	 * 
+	 * @return The length, in bytes.
+	 */
+	public int getLength() {
+		return fileData.remaining();
 	}
 
 	/**
@@ -67,4 +221,22 @@ public class Response {
 		return mimeType;
 	}
 
+	/**
+	 * Gets the entity tag.
+	 * 
+	 * @return The entity tag, including the quotes.
+	 */
+	public String getEntityTag() {
+		return entityTag;
+	}
+
+	/**
+	 * Gets the time the file was last modified.
+	 * 
+	 * @return The time, rounded down to the second.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
 }
@@ -1,11 +1,17 @@
 package org.hyperion.fileserver;
 
 import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.logging.Logger;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.future.IoFuture;
 import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
 /**
@@ -42,6 +48,23 @@ public class UpdateSession {
 		JAGGRAB;
 	}
 
+	/**
+	 * The maximum number of requests served on one HTTP connection before
+	 * it is closed.
+	 */
+	public static final int MAX_REQUESTS_PER_CONNECTION = 100;
+
+	/**
+	 * The time, in seconds, an idle connection is kept open for.
+	 */
+	public static final int KEEP_ALIVE_TIMEOUT = 15;
+
+	/**
+	 * The range returned by {@link #parseRange(String, int)} if the range
+	 * cannot be satisfied.
+	 */
+	private static final int[] UNSATISFIABLE_RANGE = new int[0];
+
 	/**
 	 * The <code>IoSession</code> we are serving.
 	 */
@@ -57,6 +80,43 @@ public class UpdateSession {
 	 */
 	private Request request;
 
+	/**
+	 * The HTTP method of the request.
+	 */
+	private String method;
+
+	/**
+	 * Whether the HTTP connection should be kept open after the request.
+	 */
+	private boolean keepAlive;
+
+	/**
+	 * The value of the <code>If-None-Match</code> header, or
+	 * <code>null</code>.
+	 */
+	private String ifNoneMatch;
+
+	/**
+	 * The value of the <code>If-Modified-Since</code> header, or
+	 * <code>null</code>.
+	 */
+	private String ifModifiedSince;
+
+	/**
+	 * The value of the <code>Range</code> header, or <code>null</code>.
+	 */
+	private String range;
+
+	/**
+	 * The value of the <code>If-Range</code> header, or <code>null</code>.
+	 */
+	private String ifRange;
+
+	/**
+	 * The number of requests served on this connection.
+	 */
+	private int served = 0;
+
 	/**
 	 * Creates the update session.
 	 * 
@@ -71,7 +131,9 @@ public class UpdateSession {
 	}
 
 	/**
-	 * Reads a line of input data.
+	 * Reads a line of input data. HTTP requests may be pipelined: the lines
+	 * of the next request are read while the previous response is still
+	 * being written, and the responses are written in order.
 	 * 
 	 * @param line
 	 *            The line.
@@ -83,13 +145,17 @@ public class UpdateSession {
 				readJaggrabPath(line);
 				break;
 			case HTTP:
-				readHttpPath(line);
+				if (line.length() != 0) {
+					readHttpPath(line);
+				}
 				break;
 			}
 		} else {
 			if (type == Type.HTTP) {
 				if (line.length() == 0) {
 					serve();
+				} else {
+					readHttpHeader(line);
 				}
 			}
 		}
@@ -104,39 +170,247 @@ public class UpdateSession {
 			return;
 		}
 		logger.fine("Serving " + type + " request : " + request.getPath());
+		final long start = System.nanoTime();
 		final Response resp = RequestHandler.handle(request);
+		if (type == Type.HTTP) {
+			serveHttp(resp, start);
+			return;
+		}
 		if (resp == null) {
+			RequestHandler.record(null, 0, System.nanoTime() - start);
 			session.close(false);
 			return;
 		}
+		write(null, resp, resp.getFileData(), start, false);
+	}
 
-		final StringBuilder header = new StringBuilder();
-		if (type == Type.HTTP) {
-			header.append("HTTP/1.0 200 OK\r\n");
-			header.append("Content-Length: ")
-					.append(resp.getFileData().remaining()).append("\r\n");
-			header.append("Connection: close\r\n");
-			header.append("Server: JaGeX/3.1\r\n");
-			header.append("Content-Type: " + resp.getMimeType() + "\r\n");
-			header.append("\r\n");
-		}
-		final byte[] headerBytes = header.toString().getBytes();
-
-		final ByteBuffer bb = resp.getFileData();
-		final IoBuffer ib = IoBuffer.allocate(bb.remaining()
-				+ headerBytes.length);
-		ib.put(headerBytes).put(bb);
-		ib.flip();
-		session.write(ib).addListener(new IoFutureListener<IoFuture>() {
+	/**
+	 * Serves a HTTP request, and then prepares for the next request on the
+	 * connection.
+	 * 
+	 * @param resp
+	 *            The response, or <code>null</code> if the file does not
+	 *            exist.
+	 * @param start
+	 *            The time the request started being served, in nanoseconds.
+	 */
+	private void serveHttp(Response resp, long start) {
+		final boolean keepAlive = this.keepAlive
+				&& ++served < MAX_REQUESTS_PER_CONNECTION;
+		ByteBuffer header = null;
+		ByteBuffer data = null;
+		final StringBuilder bldr = new StringBuilder();
+		if (resp == null) {
+			bldr.append("HTTP/1.1 404 Not Found\r\n");
+			bldr.append("Connection: ").append(
+					keepAlive ? "keep-alive" : "close").append("\r\n");
+			bldr.append("Server: JaGeX/3.1\r\n");
+			bldr.append("Content-Length: 0\r\n");
+		} else if (isNotModified(resp)) {
+			bldr.append("HTTP/1.1 304 Not Modified\r\n");
+			resp.appendHeaders(bldr, keepAlive);
+		} else {
+			int[] bounds = null;
+			if (ifRange == null || matches(ifRange, resp)) {
+				bounds = parseRange(range, resp.getLength());
+			}
+			if (bounds == UNSATISFIABLE_RANGE) {
+				bldr.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+				resp.appendHeaders(bldr, keepAlive);
+				bldr.append("Content-Range: bytes */").append(
+						resp.getLength()).append("\r\n");
+				bldr.append("Content-Length: 0\r\n");
+			} else if (bounds != null) {
+				bldr.append("HTTP/1.1 206 Partial Content\r\n");
+				resp.appendHeaders(bldr, keepAlive);
+				bldr.append("Content-Range: bytes ").append(bounds[0]).append(
+						'-').append(bounds[1]).append('/').append(
+						resp.getLength()).append("\r\n");
+				bldr.append("Content-Length: ").append(
+						bounds[1] - bounds[0] + 1).append("\r\n");
+				data = resp.getFileData();
+				data.position(data.position() + bounds[0]);
+				data.limit(data.position() + bounds[1] - bounds[0] + 1);
+			} else {
+				header = resp.getHttpHeader(keepAlive);
+				data = resp.getFileData();
+			}
+		}
+		if (header == null) {
+			bldr.append("\r\n");
+			header = ByteBuffer.wrap(bldr.toString().getBytes());
+		}
+		if (method.equals("HEAD")) {
+			data = null;
+		}
+		write(header, resp, data, start, keepAlive);
+
+		request = null;
+		method = null;
+		this.keepAlive = false;
+		ifNoneMatch = null;
+		ifModifiedSince = null;
+		range = null;
+		ifRange = null;
+	}
+
+	/**
+	 * Writes a response. The header and the file data are written as two
+	 * buffers which wrap the response's own buffers, so the file is never
+	 * copied and the memory used does not grow with the number of downloads.
+	 * 
+	 * @param header
+	 *            The header, or <code>null</code> if there is no header.
+	 * @param resp
+	 *            The response, or <code>null</code> if the file does not
+	 *            exist.
+	 * @param data
+	 *            The file data to write, or <code>null</code> if there is no
+	 *            file data.
+	 * @param start
+	 *            The time the request started being served, in nanoseconds.
+	 * @param keepAlive
+	 *            Whether the connection is kept open after the response.
+	 */
+	private void write(ByteBuffer header, final Response resp,
+			ByteBuffer data, final long start, final boolean keepAlive) {
+		final int length = data == null ? 0 : data.remaining();
+		WriteFuture future = null;
+		if (header != null) {
+			future = session.write(IoBuffer.wrap(header));
+		}
+		if (data != null) {
+			future = session.write(IoBuffer.wrap(data));
+		}
+		future.addListener(new IoFutureListener<IoFuture>() {
 			@Override
 			public void operationComplete(IoFuture arg0) {
-				session.close(false);
+				RequestHandler.record(resp, length, System.nanoTime() - start);
+				if (!keepAlive) {
+					session.close(false);
+				}
 			}
 		});
 	}
 
 	/**
-	 * Reads the path from a HTTP request line.
+	 * Checks if a conditional request can be answered with
+	 * <code>304 Not Modified</code>. The <code>If-None-Match</code> header
+	 * takes precedence over the <code>If-Modified-Since</code> header.
+	 * 
+	 * @param resp
+	 *            The response.
+	 * @return <code>true</code> if the client's copy is up to date,
+	 *         <code>false</code> if not.
+	 */
+	private boolean isNotModified(Response resp) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(resp.getEntityTag())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (ifModifiedSince != null) {
+			final long time = parseDate(ifModifiedSince);
+			return time != -1 && resp.getLastModified() <= time;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the value of an <code>If-Range</code> header matches a
+	 * response.
+	 * 
+	 * @param value
+	 *            The entity tag or date.
+	 * @param resp
+	 *            The response.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	private static boolean matches(String value, Response resp) {
+		if (value.startsWith("\"")) {
+			return value.equals(resp.getEntityTag());
+		}
+		return parseDate(value) == resp.getLastModified();
+	}
+
+	/**
+	 * Parses the value of a <code>Range</code> header. Only single byte
+	 * ranges are supported: the whole file is sent if several ranges are
+	 * requested.
+	 * 
+	 * @param value
+	 *            The value, or <code>null</code>.
+	 * @param length
+	 *            The length of the file.
+	 * @return The first and last byte of the range,
+	 *         {@link #UNSATISFIABLE_RANGE} if the range starts past the end
+	 *         of the file, or <code>null</code> if the whole file should be
+	 *         sent.
+	 */
+	private static int[] parseRange(String value, int length) {
+		if (value == null || !value.startsWith("bytes=")) {
+			return null;
+		}
+		final String spec = value.substring(6).trim();
+		final int dash = spec.indexOf('-');
+		if (dash == -1 || spec.indexOf(',') != -1) {
+			return null;
+		}
+		final String first = spec.substring(0, dash).trim();
+		final String last = spec.substring(dash + 1).trim();
+		try {
+			if (first.length() == 0) {
+				final long suffix = Long.parseLong(last);
+				if (suffix <= 0 || length == 0) {
+					return UNSATISFIABLE_RANGE;
+				}
+				return new int[] { (int) Math.max(0, length - suffix),
+						length - 1 };
+			}
+			final long from = Long.parseLong(first);
+			final long to = last.length() == 0 ? Long.MAX_VALUE : Long
+					.parseLong(last);
+			if (from < 0 || to < from) {
+				return null;
+			}
+			if (from >= length) {
+				return UNSATISFIABLE_RANGE;
+			}
+			return new int[] { (int) from, (int) Math.min(to, length - 1) };
+		} catch (final NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a date in a HTTP header.
+	 * 
+	 * @param value
+	 *            The value.
+	 * @return The time, or <code>-1</code> if the date is invalid.
+	 */
+	private static long parseDate(String value) {
+		final DateFormat format = new SimpleDateFormat(
+				Response.HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (final ParseException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the method, path and version from a HTTP request line.
+	 * HTTP/1.1 connections are kept open by default, HTTP/1.0 connections
+	 * are not.
 	 * 
 	 * @param line
 	 *            The request line.
@@ -146,7 +420,39 @@ public class UpdateSession {
 		if (parts.length != 3) {
 			session.close(false);
 		} else {
+			method = parts[0];
 			request = new Request(parts[1].trim());
+			keepAlive = parts[2].trim().equals("HTTP/1.1");
+		}
+	}
+
+	/**
+	 * Reads a HTTP request header.
+	 * 
+	 * @param line
+	 *            The header line.
+	 */
+	private void readHttpHeader(String line) {
+		final int colon = line.indexOf(':');
+		if (colon == -1) {
+			return;
+		}
+		final String name = line.substring(0, colon).trim();
+		final String value = line.substring(colon + 1).trim();
+		if (name.equalsIgnoreCase("Connection")) {
+			if (value.equalsIgnoreCase("close")) {
+				keepAlive = false;
+			} else if (value.equalsIgnoreCase("keep-alive")) {
+				keepAlive = true;
+			}
+		} else if (name.equalsIgnoreCase("If-None-Match")) {
+			ifNoneMatch = value;
+		} else if (name.equalsIgnoreCase("If-Modified-Since")) {
+			ifModifiedSince = value;
+		} else if (name.equalsIgnoreCase("Range")) {
+			range = value;
+		} else if (name.equalsIgnoreCase("If-Range")) {
+			ifRange = value;
 		}
 	}
 
@@ -99,4 +99,73 @@ public class Constants {
 	 */
 	public static final int MAX_ITEMS = Integer.MAX_VALUE;
 
+	/**
+	 * Whether a route is found by the server when a walk sent by the client
+	 * is blocked by an obstacle. If disabled the entity just stops.
+	 */
+	public static final boolean REPATH_BLOCKED_WALKS = true;
+
+	/**
+	 * Whether the time taken to tick every entity, which includes checking
+	 * each step they take against the collision flags, is measured and
+	 * logged every 100 cycles.
+	 */
+	public static final boolean BENCHMARK_TICKS = false;
+
+	/**
+	 * Whether the collision fields of every object definition are decoded
+	 * when the server starts. If disabled each definition is decoded when it
+	 * is first used. Names and descriptions are always decoded when they are
+	 * first used.
+	 */
+	public static final boolean EAGER_OBJECT_DEFINITIONS = false;
+
+	/**
+	 * Whether regions are loaded from the world snapshot when they are first
+	 * used, instead of all being loaded when the server starts.
+	 */
+	public static final boolean DEMAND_LOAD_REGIONS = false;
+
+	/**
+	 * The time, in milliseconds, a region loaded on demand must have had no
+	 * players or NPCs in or next to it before it may be unloaded.
+	 */
+	public static final long REGION_IDLE_TIME = 300000;
+
+	/**
+	 * The memory, in bytes, regions loaded on demand may use before idle
+	 * regions are unloaded.
+	 */
+	public static final long REGION_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+	/**
+	 * Whether Nagle's algorithm is disabled on game connections. Packets are
+	 * sent once per cycle in a single write, so delaying them only adds
+	 * latency.
+	 */
+	public static final boolean TCP_NO_DELAY = true;
+
+	/**
+	 * The size of the socket send buffer of game connections, in bytes, or
+	 * <code>0</code> to use the operating system's default.
+	 */
+	public static final int SOCKET_SEND_BUFFER_SIZE = 0;
+
+	/**
+	 * The size of the socket receive buffer of game connections, in bytes,
+	 * or <code>0</code> to use the operating system's default.
+	 */
+	public static final int SOCKET_RECEIVE_BUFFER_SIZE = 0;
+
+	/**
+	 * The number of bytes of ondemand files kept in memory.
+	 */
+	public static final long CACHE_BUDGET = 32 * 1024 * 1024;
+
+	/**
+	 * The file listing the ondemand files loaded into memory at startup, if
+	 * it exists.
+	 */
+	public static final String HOT_SET_FILE = "./data/hotset.txt";
+
 }
@@ -9,6 +9,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.hyperion.cache.Cache;
 import org.hyperion.rs2.model.World;
 import org.hyperion.rs2.task.Task;
 import org.hyperion.util.BlockingExecutorService;
@@ -120,6 +121,7 @@ public class GameEngine implements Runnable {
 			logicService.shutdown();
 			taskService.shutdown();
 			workService.shutdown();
+			Cache.closeSharedCache();
 		}
 	}
 
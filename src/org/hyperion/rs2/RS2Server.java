@@ -6,6 +6,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.hyperion.rs2.model.World;
 
@@ -55,6 +56,15 @@ public class RS2Server {
 			InstantiationException, IllegalAccessException {
 		World.getWorld().init(engine);
 		acceptor.setHandler(new ConnectionHandler());
+		final SocketSessionConfig config = (SocketSessionConfig) acceptor
+				.getSessionConfig();
+		config.setTcpNoDelay(Constants.TCP_NO_DELAY);
+		if (Constants.SOCKET_SEND_BUFFER_SIZE > 0) {
+			config.setSendBufferSize(Constants.SOCKET_SEND_BUFFER_SIZE);
+		}
+		if (Constants.SOCKET_RECEIVE_BUFFER_SIZE > 0) {
+			config.setReceiveBufferSize(Constants.SOCKET_RECEIVE_BUFFER_SIZE);
+		}
 		// acceptor.getFilterChain().addFirst("throttleFilter", new
 		// ConnectionThrottleFilter());
 	}
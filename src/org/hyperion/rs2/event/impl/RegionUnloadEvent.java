@@ -0,0 +1,43 @@
+package org.hyperion.rs2.event.impl;
+
+import java.util.logging.Logger;
+
+import org.hyperion.rs2.Constants;
+import org.hyperion.rs2.event.Event;
+import org.hyperion.rs2.model.World;
+
+/**
+ * An event which runs periodically and unloads regions which have been idle
+ * for some time, if regions are loaded on demand.
+ */
+public class RegionUnloadEvent extends Event {
+
+	/**
+	 * The logger instance.
+	 */
+	private static final Logger logger = Logger
+			.getLogger(RegionUnloadEvent.class.getName());
+
+	/**
+	 * The delay in milliseconds between consecutive checks.
+	 */
+	public static final int UNLOAD_CYCLE_TIME = 60000;
+
+	/**
+	 * Creates the region unload event to run every minute.
+	 */
+	public RegionUnloadEvent() {
+		super(UNLOAD_CYCLE_TIME);
+	}
+
+	@Override
+	public void execute() {
+		final int unloaded = World.getWorld().getRegionManager()
+				.unloadIdleRegions(Constants.REGION_IDLE_TIME,
+						Constants.REGION_MEMORY_BUDGET);
+		if (unloaded > 0) {
+			logger.info("Unloaded " + unloaded + " idle regions.");
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.hyperion.rs2.Constants;
 import org.hyperion.rs2.event.Event;
 import org.hyperion.rs2.model.NPC;
 import org.hyperion.rs2.model.Player;
@@ -11,9 +12,12 @@ import org.hyperion.rs2.model.World;
 import org.hyperion.rs2.task.ConsecutiveTask;
 import org.hyperion.rs2.task.ParallelTask;
 import org.hyperion.rs2.task.Task;
+import org.hyperion.rs2.task.impl.BenchmarkTask;
 import org.hyperion.rs2.task.impl.NPCResetTask;
 import org.hyperion.rs2.task.impl.NPCTickTask;
 import org.hyperion.rs2.task.impl.NPCUpdateTask;
+import org.hyperion.rs2.task.impl.PathResultTask;
+import org.hyperion.rs2.task.impl.PlayerFlushTask;
 import org.hyperion.rs2.task.impl.PlayerResetTask;
 import org.hyperion.rs2.task.impl.PlayerTickTask;
 import org.hyperion.rs2.task.impl.PlayerUpdateTask;
@@ -40,9 +44,12 @@ public class UpdateEvent extends Event {
 
 	@Override
 	public void execute() {
+		World.getWorld().getRegionManager().getLineOfSight().nextCycle();
+
 		final List<Task> tickTasks = new ArrayList<Task>();
 		final List<Task> updateTasks = new ArrayList<Task>();
 		final List<Task> resetTasks = new ArrayList<Task>();
+		final List<Task> flushTasks = new ArrayList<Task>();
 
 		for (final NPC npc : World.getWorld().getNPCs()) {
 			tickTasks.add(new NPCTickTask(npc));
@@ -60,18 +67,23 @@ public class UpdateEvent extends Event {
 						.add(new ConsecutiveTask(new PlayerUpdateTask(player),
 								new NPCUpdateTask(player)));
 				resetTasks.add(new PlayerResetTask(player));
+				flushTasks.add(new PlayerFlushTask(player));
 			}
 		}
 
 		// ticks can no longer be parallel due to region code
-		final Task tickTask = new ConsecutiveTask(
-				tickTasks.toArray(new Task[0]));
+		Task tickTask = new ConsecutiveTask(tickTasks.toArray(new Task[0]));
+		if (Constants.BENCHMARK_TICKS) {
+			tickTask = new BenchmarkTask(tickTask);
+		}
 		final Task updateTask = new ParallelTask(
 				updateTasks.toArray(new Task[0]));
 		final Task resetTask = new ParallelTask(resetTasks.toArray(new Task[0]));
+		final Task flushTask = new ParallelTask(flushTasks.toArray(new Task[0]));
 
 		World.getWorld().submit(
-				new ConsecutiveTask(tickTask, updateTask, resetTask));
+				new ConsecutiveTask(new PathResultTask(), tickTask, updateTask,
+						resetTask, flushTask));
 	}
 
 }
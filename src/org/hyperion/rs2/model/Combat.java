@@ -247,6 +247,11 @@ public class Combat {
 		if (!canAttack(source, victim)) {
 			return;
 		}
+		if (attackType != AttackType.MELEE
+				&& !World.getWorld().getRegionManager().getLineOfSight()
+						.canSee(source.getLocation(), victim.getLocation())) {
+			return;
+		}
 		source.setInteractingEntity(victim);
 		source.playAnimation(Animation.create(422, 1));
 		inflictDamage(victim, source,
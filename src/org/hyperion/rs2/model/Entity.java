@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.hyperion.rs2.model.UpdateFlags.UpdateFlag;
 import org.hyperion.rs2.model.region.Region;
+import org.hyperion.rs2.model.region.RegionManager;
 
 /**
  * Represents a character in the game world, i.e. a <code>Player</code> or an
@@ -502,14 +503,15 @@ public abstract class Entity {
 	public void setLocation(Location location) {
 		this.location = location;
 
-		final Region newRegion = World.getWorld().getRegionManager()
-				.getRegionByLocation(location);
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		final Region newRegion = mgr.getRegionByLocation(location);
 		if (newRegion != currentRegion) {
 			if (currentRegion != null) {
 				removeFromRegion(currentRegion);
 			}
 			currentRegion = newRegion;
 			addToRegion(currentRegion);
+			mgr.prefetch(currentRegion);
 		}
 	}
 
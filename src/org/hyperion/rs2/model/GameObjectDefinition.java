@@ -1,5 +1,9 @@
 package org.hyperion.rs2.model;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.hyperion.cache.obj.ObjectDefinitionParser;
+
 /**
  * Represents a single type of object.
  * 
@@ -14,9 +18,27 @@ public class GameObjectDefinition {
 	public static final int MAX_DEFINITIONS = 9399;
 
 	/**
-	 * The definitions array.
+	 * The definitions which have been decoded, by id.
+	 */
+	private static final AtomicReferenceArray<GameObjectDefinition> definitions = new AtomicReferenceArray<GameObjectDefinition>(
+			MAX_DEFINITIONS);
+
+	/**
+	 * The parser used to decode definitions, or parts of definitions, when
+	 * they are first used.
 	 */
-	private static GameObjectDefinition[] definitions = new GameObjectDefinition[MAX_DEFINITIONS];
+	private static volatile ObjectDefinitionParser parser;
+
+	/**
+	 * Sets the parser used to decode definitions which have not been added
+	 * when they are first used.
+	 * 
+	 * @param parser
+	 *            The parser.
+	 */
+	static void setParser(ObjectDefinitionParser parser) {
+		GameObjectDefinition.parser = parser;
+	}
 
 	/**
 	 * Adds a definition. TODO better way?
@@ -25,18 +47,42 @@ public class GameObjectDefinition {
 	 *            The definition.
 	 */
 	static void addDefinition(GameObjectDefinition def) {
-		definitions[def.getId()] = def;
+		definitions.set(def.getId(), def);
 	}
 
 	/**
-	 * Gets an object definition by its id.
+	 * Gets an object definition by its id if it has already been decoded or
+	 * added, without decoding it.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The definition, or <code>null</code> if it has not been
+	 *         decoded or added.
+	 */
+	static GameObjectDefinition getLoaded(int id) {
+		return definitions.get(id);
+	}
+
+	/**
+	 * Gets an object definition by its id, decoding it if it has not been
+	 * used before. This method is thread safe.
 	 * 
 	 * @param id
 	 *            The id.
 	 * @return The definition.
 	 */
 	public static GameObjectDefinition forId(int id) {
-		return definitions[id];
+		GameObjectDefinition def = definitions.get(id);
+		if (def == null) {
+			final ObjectDefinitionParser parser = GameObjectDefinition.parser;
+			if (parser != null) {
+				def = parser.parse(id, false);
+				if (def != null && !definitions.compareAndSet(id, null, def)) {
+					def = definitions.get(id); // decoded by another thread
+				}
+			}
+		}
+		return def;
 	}
 
 	/**
@@ -45,14 +91,14 @@ public class GameObjectDefinition {
 	private final int id;
 
 	/**
-	 * The name.
+	 * The name, or <code>null</code> if it has not been decoded yet.
 	 */
-	private final String name;
+	private volatile String name;
 
 	/**
-	 * The description.
+	 * The description, or <code>null</code> if it has not been decoded yet.
 	 */
-	private final String desc;
+	private volatile String desc;
 
 	/**
 	 * X size.
@@ -85,9 +131,11 @@ public class GameObjectDefinition {
 	 * @param id
 	 *            The id.
 	 * @param name
-	 *            The name of the object.
+	 *            The name of the object, or <code>null</code> to decode it
+	 *            when it is first used.
 	 * @param desc
-	 *            The description of the object.
+	 *            The description of the object, or <code>null</code> to
+	 *            decode it when it is first used.
 	 * @param sizeX
 	 *            The x size of the object.
 	 * @param sizeY
@@ -126,6 +174,9 @@ public class GameObjectDefinition {
 	 * @return The name.
 	 */
 	public String getName() {
+		if (name == null) {
+			decodeText();
+		}
 		return name;
 	}
 
@@ -135,9 +186,29 @@ public class GameObjectDefinition {
 	 * @return The description.
 	 */
 	public String getDescription() {
+		if (desc == null) {
+			decodeText();
+		}
 		return desc;
 	}
 
+	/**
+	 * Decodes the name and description, which are rarely used so are not
+	 * decoded with the rest of the definition.
+	 */
+	private void decodeText() {
+		final ObjectDefinitionParser parser = GameObjectDefinition.parser;
+		final GameObjectDefinition def = parser == null ? null : parser.parse(
+				id, true);
+		if (def == null) {
+			desc = "null";
+			name = "null";
+		} else {
+			desc = def.desc;
+			name = def.name;
+		}
+	}
+
 	/**
 	 * Gets the x size.
 	 * 
@@ -1,17 +1,35 @@
 package org.hyperion.rs2.model;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.hyperion.cache.Cache;
 import org.hyperion.cache.InvalidCacheException;
 import org.hyperion.cache.index.impl.MapIndex;
-import org.hyperion.cache.index.impl.StandardIndex;
 import org.hyperion.cache.map.LandscapeListener;
 import org.hyperion.cache.map.LandscapeParser;
+import org.hyperion.cache.map.MapListener;
+import org.hyperion.cache.map.MapParser;
 import org.hyperion.cache.obj.ObjectDefinitionListener;
 import org.hyperion.cache.obj.ObjectDefinitionParser;
+import org.hyperion.cache.util.ZipUtils;
+import org.hyperion.rs2.Constants;
+import org.hyperion.rs2.model.region.CollisionMap;
+import org.hyperion.rs2.model.region.Region;
+import org.hyperion.rs2.model.region.RegionCoordinates;
+import org.hyperion.rs2.model.region.RegionManager;
+import org.hyperion.rs2.model.region.StaticObjectTable;
+import org.hyperion.rs2.model.region.Tile;
 
 /**
  * Manages all of the in-game objects.
@@ -19,7 +37,7 @@ import org.hyperion.cache.obj.ObjectDefinitionParser;
  * @author Graham Edgecombe
  * 
  */
-public class ObjectManager implements LandscapeListener,
+public class ObjectManager implements LandscapeListener, MapListener,
 		ObjectDefinitionListener {
 
 	/**
@@ -39,7 +57,64 @@ public class ObjectManager implements LandscapeListener,
 	private int objectCount = 0;
 
 	/**
-	 * Loads the objects in the map.
+	 * The count of tiles with settings loaded.
+	 */
+	private int tileCount = 0;
+
+	/**
+	 * The decoded contents of a map area, built by a loading thread before
+	 * being merged into the world.
+	 */
+	private static final class DecodedArea implements MapListener,
+			LandscapeListener {
+
+		/**
+		 * The tiles with settings, in the order they were parsed.
+		 */
+		private final List<Tile> tiles = new ArrayList<Tile>();
+
+		/**
+		 * The objects, grouped by region.
+		 */
+		private final Map<Region, StaticObjectTable> objects = new LinkedHashMap<Region, StaticObjectTable>();
+
+		/**
+		 * The number of objects.
+		 */
+		private int objectCount = 0;
+
+		@Override
+		public void tileParsed(Tile tile) {
+			tiles.add(tile);
+		}
+
+		@Override
+		public void objectParsed(GameObject obj) {
+			final Region region = World.getWorld().getRegionManager()
+					.getRegionByLocation(obj.getLocation());
+			StaticObjectTable table = objects.get(region);
+			if (table == null) {
+				final RegionCoordinates coords = region.getCoordinates();
+				table = new StaticObjectTable(coords.getX()
+						* RegionManager.REGION_SIZE, coords.getY()
+						* RegionManager.REGION_SIZE, 64);
+				objects.put(region, table);
+			}
+			table.add(obj);
+			objectCount++;
+		}
+
+	}
+
+	/**
+	 * Loads the objects in the map, from the world snapshot if it is up to
+	 * date, or from the cache if not. The snapshot is rebuilt after the map is
+	 * loaded from the cache. If {@link Constants#DEMAND_LOAD_REGIONS} is set,
+	 * only the object definitions are loaded from the snapshot, and each
+	 * region is loaded from it when it is first used. In every case the
+	 * object definition parser is set up, so definitions which are not in
+	 * the snapshot, and the names and descriptions of those which are, are
+	 * decoded from the cache when they are first used.
 	 * 
 	 * @throws IOException
 	 *             if an I/O error occurs.
@@ -47,30 +122,260 @@ public class ObjectManager implements LandscapeListener,
 	 *             if the cache is invalid.
 	 */
 	public void load() throws IOException, InvalidCacheException {
-		final Cache cache = new Cache(new File("./data/cache/"));
+		final Cache cache = Cache.acquire();
+		try {
+			final long start = System.nanoTime();
+			final WorldSnapshot snapshot = new WorldSnapshot(
+					WorldSnapshot.SNAPSHOT_FILE);
+			final int checksum = WorldSnapshot.calculateChecksum(cache);
+			final ObjectDefinitionParser definitionParser = new ObjectDefinitionParser(
+					cache, cache.getIndexTable().getObjectDefinitionIndices(),
+					this);
+			GameObjectDefinition.setParser(definitionParser);
+			if (Constants.DEMAND_LOAD_REGIONS) {
+				if (snapshot.open(checksum)) {
+					snapshot.loadDefinitions();
+					World.getWorld().getRegionManager().setLoader(snapshot);
+					logger.info("Opened the world snapshot in "
+							+ elapsed(start)
+							+ "ms, regions will be loaded on demand.");
+					return;
+				}
+			} else if (snapshot.load(checksum)) {
+				logger.info("Loaded the world snapshot in " + elapsed(start)
+						+ "ms.");
+				return;
+			}
+			parse(cache, definitionParser);
+			try {
+				snapshot.save(checksum);
+			} catch (final IOException ex) {
+				logger.log(Level.WARNING, "Could not save the world snapshot.",
+						ex);
+				return;
+			}
+			if (Constants.DEMAND_LOAD_REGIONS && snapshot.open(checksum)) {
+				/*
+				 * Every region has just been loaded, but idle regions can now
+				 * be unloaded and later loaded again from the snapshot.
+				 */
+				final RegionManager mgr = World.getWorld().getRegionManager();
+				for (final Region region : mgr.getRegions()) {
+					region.markLoaded();
+				}
+				mgr.setLoader(snapshot);
+			}
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Parses the objects in the map from the cache.
+	 * 
+	 * Loading is split into stages. If
+	 * {@link Constants#EAGER_OBJECT_DEFINITIONS} is set, every definition is
+	 * decoded while the map files are decoded by a pool of threads, then the
+	 * landscape files are decoded by the same pool. Each area is decoded
+	 * into its own lists, which are finally merged into the regions and
+	 * collision maps on this thread, in area order.
+	 * 
+	 * @param cache
+	 *            The cache.
+	 * @param definitionParser
+	 *            The object definition parser.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void parse(final Cache cache,
+			ObjectDefinitionParser definitionParser) throws IOException {
+		final ExecutorService loaders = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
 		try {
-			logger.info("Loading definitions...");
-			final StandardIndex[] defIndices = cache.getIndexTable()
-					.getObjectDefinitionIndices();
-			new ObjectDefinitionParser(cache, defIndices, this).parse();
-			logger.info("Loaded " + definitionCount + " object definitions.");
-			logger.info("Loading map...");
 			final MapIndex[] mapIndices = cache.getIndexTable().getMapIndices();
+			final List<Future<DecodedArea>> maps = new ArrayList<Future<DecodedArea>>(
+					mapIndices.length);
+			long start = System.nanoTime();
 			for (final MapIndex index : mapIndices) {
-				new LandscapeParser(cache, index.getIdentifier(), this).parse();
+				maps.add(loaders.submit(new Callable<DecodedArea>() {
+					@Override
+					public DecodedArea call() throws IOException {
+						final DecodedArea area = new DecodedArea();
+						new MapParser(cache, index.getIdentifier(), area)
+								.parse(ZipUtils.unzip(cache.getFile(4, index
+										.getMapFile())));
+						return area;
+					}
+				}));
 			}
-			logger.info("Loaded " + objectCount + " objects.");
+			if (Constants.EAGER_OBJECT_DEFINITIONS) {
+				definitionParser.parse();
+				logger.info("Loaded " + definitionCount
+						+ " object definitions in " + elapsed(start) + "ms.");
+			}
+
+			start = System.nanoTime();
+			final List<Future<DecodedArea>> landscapes = new ArrayList<Future<DecodedArea>>(
+					mapIndices.length);
+			for (int i = 0; i < mapIndices.length; i++) {
+				final MapIndex index = mapIndices[i];
+				final Future<DecodedArea> map = maps.get(i);
+				landscapes.add(loaders.submit(new Callable<DecodedArea>() {
+					@Override
+					public DecodedArea call() throws Exception {
+						final DecodedArea area = map.get();
+						new LandscapeParser(cache, index.getIdentifier(), area)
+								.parse(ZipUtils.unzip(cache.getFile(4, index
+										.getLandscapeFile())));
+						return area;
+					}
+				}));
+			}
+			final DecodedArea[] areas = new DecodedArea[mapIndices.length];
+			for (int i = 0; i < areas.length; i++) {
+				areas[i] = get(landscapes.get(i));
+			}
+			logger.info("Decoded " + areas.length + " map areas in "
+					+ elapsed(start) + "ms.");
+
+			start = System.nanoTime();
+			for (final DecodedArea area : areas) {
+				merge(area);
+			}
+			World.getWorld().getRegionManager().getLineOfSight().nextCycle();
+			logger.info("Loaded " + objectCount + " objects and " + tileCount
+					+ " tiles in " + elapsed(start) + "ms.");
 		} finally {
-			cache.close();
+			loaders.shutdownNow();
+		}
+	}
+
+	/**
+	 * Merges a decoded area into the world. The tiles are merged first, as
+	 * the bridges they mark decide which plane the collision of the objects
+	 * above them is stored on.
+	 * 
+	 * @param area
+	 *            The decoded area.
+	 */
+	private void merge(DecodedArea area) {
+		for (final Tile tile : area.tiles) {
+			tileParsed(tile);
+		}
+		for (final Map.Entry<Region, StaticObjectTable> entry : area.objects
+				.entrySet()) {
+			final StaticObjectTable table = entry.getValue();
+			entry.getKey().getStaticObjects().addAll(table);
+			for (int i = 0; i < table.size(); i++) {
+				updateCollision(table.getDefinition(i), table.getX(i), table
+						.getY(i), table.getZ(i), table.getType(i), table
+						.getRotation(i), true);
+			}
+		}
+		objectCount += area.objectCount;
+	}
+
+	/**
+	 * Waits for an area to be decoded.
+	 * 
+	 * @param future
+	 *            The future.
+	 * @return The decoded area.
+	 * @throws IOException
+	 *             if an I/O error occurred while decoding the area.
+	 */
+	private static DecodedArea get(Future<DecodedArea> future)
+			throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException ex) {
+			throw new IOException("Interrupted while loading the map.");
+		} catch (final ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof ExecutionException) {
+				cause = cause.getCause(); // the map file failed
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Gets the time elapsed since a stage started.
+	 * 
+	 * @param start
+	 *            The start time, in nanoseconds.
+	 * @return The elapsed time, in milliseconds.
+	 */
+	private static long elapsed(long start) {
+		return (System.nanoTime() - start) / 1000000L;
+	}
+
+	/**
+	 * Adds a dynamically spawned object to the world, updating the collision
+	 * flags of the tiles it covers.
+	 * 
+	 * @param obj
+	 *            The object.
+	 */
+	public void addObject(GameObject obj) {
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		final Region region = mgr.getRegionByLocation(obj.getLocation());
+		mgr.modify(region);
+		region.getGameObjects().add(obj);
+		updateCollision(obj, true);
+		World.getWorld().getPathFindingService().invalidate(obj.getLocation());
+		World.getWorld().getRegionManager().getLineOfSight().nextCycle();
+	}
+
+	/**
+	 * Removes an object from the world, clearing the collision flags it set.
+	 * Static objects are matched by their definition, location, type and
+	 * rotation, so a <code>GameObject</code> created to describe a static
+	 * object can be used to remove it. Like the client, the flags are
+	 * cleared outright, even if another object on the same tiles also set
+	 * them.
+	 * 
+	 * @param obj
+	 *            The object.
+	 */
+	public void removeObject(GameObject obj) {
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		final Region region = mgr.getRegionByLocation(obj.getLocation());
+		mgr.modify(region);
+		if (!region.getGameObjects().remove(obj)) {
+			region.getStaticObjects().remove(obj);
 		}
+		updateCollision(obj, false);
+		World.getWorld().getPathFindingService().invalidate(obj.getLocation());
+		World.getWorld().getRegionManager().getLineOfSight().nextCycle();
 	}
 
 	@Override
 	public void objectParsed(GameObject obj) {
 		objectCount++;
-		World.getWorld().getRegionManager()
-				.getRegionByLocation(obj.getLocation()).getGameObjects()
-				.add(obj);
+		addObject(obj);
+	}
+
+	@Override
+	public void tileParsed(Tile tile) {
+		tileCount++;
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		final Location loc = tile.getLocation();
+		if (tile.isBridge() && loc.getZ() == 1) {
+			mgr.addCollisionFlags(loc.getX(), loc.getY(), 1,
+					CollisionMap.BRIDGE);
+		}
+		if (tile.isBlocked()) {
+			final int z = getCollisionPlane(loc.getX(), loc.getY(), loc
+					.getZ());
+			if (z >= 0) {
+				mgr.addCollisionFlags(loc.getX(), loc.getY(), z,
+						CollisionMap.BLOCKED);
+			}
+		}
 	}
 
 	@Override
@@ -79,4 +384,247 @@ public class ObjectManager implements LandscapeListener,
 		GameObjectDefinition.addDefinition(def);
 	}
 
+	/**
+	 * Gets the plane the collision of a tile is stored on, which is one lower
+	 * than the tile's own plane if it is above a bridge.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The plane, or <code>-1</code> if the location has no collision.
+	 */
+	private int getCollisionPlane(int x, int y, int z) {
+		final int flags = World.getWorld().getRegionManager()
+				.getCollisionFlags(x, y, 1);
+		if ((flags & CollisionMap.BRIDGE) != 0) {
+			return z - 1;
+		}
+		return z;
+	}
+
+	/**
+	 * Sets or clears the collision flags of an object.
+	 * 
+	 * @param obj
+	 *            The object.
+	 * @param add
+	 *            <code>true</code> to set the flags, <code>false</code> to
+	 *            clear them.
+	 */
+	private void updateCollision(GameObject obj, boolean add) {
+		final Location loc = obj.getLocation();
+		updateCollision(obj.getDefinition(), loc.getX(), loc.getY(), loc
+				.getZ(), obj.getType(), obj.getRotation(), add);
+	}
+
+	/**
+	 * Sets or clears the collision flags of an object.
+	 * 
+	 * @param def
+	 *            The definition, or <code>null</code>.
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param plane
+	 *            The plane.
+	 * @param type
+	 *            The type.
+	 * @param rotation
+	 *            The rotation.
+	 * @param add
+	 *            <code>true</code> to set the flags, <code>false</code> to
+	 *            clear them.
+	 */
+	private void updateCollision(GameObjectDefinition def, int x, int y,
+			int plane, int type, int rotation, boolean add) {
+		if (def == null || !def.isSolid()) {
+			return;
+		}
+		final int z = getCollisionPlane(x, y, plane);
+		if (z < 0) {
+			return;
+		}
+		/*
+		 * The walkable flag is cleared by definitions which projectiles can
+		 * pass over.
+		 */
+		final boolean projectiles = def.isWalkable();
+		if (type >= 0 && type <= 3) {
+			updateWallCollision(x, y, z, type, rotation, projectiles, add);
+		} else if (type >= 9 && type <= 21) {
+			int sizeX = def.getSizeX();
+			int sizeY = def.getSizeY();
+			if (rotation == 1 || rotation == 3) {
+				// switch sizes if rotated
+				final int temp = sizeX;
+				sizeX = sizeY;
+				sizeY = temp;
+			}
+			int flags = CollisionMap.OBJECT;
+			if (projectiles) {
+				flags |= CollisionMap.PROJECTILE_OBJECT;
+			}
+			for (int offX = 0; offX < sizeX; offX++) {
+				for (int offY = 0; offY < sizeY; offY++) {
+					updateFlags(x + offX, y + offY, z, flags, add);
+				}
+			}
+		} else if (type == 22) {
+			// floor decoration
+			if (def.hasActions()) {
+				updateFlags(x, y, z, CollisionMap.BLOCKED, add);
+			}
+		} else {
+			// 4-8 are wall decorations, we can ignore those
+		}
+	}
+
+	/**
+	 * Sets or clears the collision flags of a wall. Walls are marked on both
+	 * the tile they are on and the neighbouring tile on the other side.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param z
+	 *            The collision plane.
+	 * @param type
+	 *            The object type, between 0 and 3.
+	 * @param rotation
+	 *            The rotation, 0 = west, 1 = north, 2 = east, 3 = south.
+	 * @param projectiles
+	 *            A flag indicating the wall also blocks projectiles.
+	 * @param add
+	 *            <code>true</code> to set the flags, <code>false</code> to
+	 *            clear them.
+	 */
+	private void updateWallCollision(int x, int y, int z, int type,
+			int rotation, boolean projectiles, boolean add) {
+		final int shift = projectiles ? CollisionMap.PROJECTILE_SHIFT : -1;
+		if (type == 0) {
+			// straight walls
+			if (rotation == 0) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_WEST, shift, add);
+				updateWallFlags(x - 1, y, z, CollisionMap.WALL_EAST, shift, add);
+			} else if (rotation == 1) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_NORTH, shift, add);
+				updateWallFlags(x, y + 1, z, CollisionMap.WALL_SOUTH, shift,
+						add);
+			} else if (rotation == 2) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_EAST, shift, add);
+				updateWallFlags(x + 1, y, z, CollisionMap.WALL_WEST, shift, add);
+			} else {
+				updateWallFlags(x, y, z, CollisionMap.WALL_SOUTH, shift, add);
+				updateWallFlags(x, y - 1, z, CollisionMap.WALL_NORTH, shift,
+						add);
+			}
+		} else if (type == 1 || type == 3) {
+			// wall corners
+			if (rotation == 0) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_NORTHWEST, shift,
+						add);
+				updateWallFlags(x - 1, y + 1, z, CollisionMap.WALL_SOUTHEAST,
+						shift, add);
+			} else if (rotation == 1) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_NORTHEAST, shift,
+						add);
+				updateWallFlags(x + 1, y + 1, z, CollisionMap.WALL_SOUTHWEST,
+						shift, add);
+			} else if (rotation == 2) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_SOUTHEAST, shift,
+						add);
+				updateWallFlags(x + 1, y - 1, z, CollisionMap.WALL_NORTHWEST,
+						shift, add);
+			} else {
+				updateWallFlags(x, y, z, CollisionMap.WALL_SOUTHWEST, shift,
+						add);
+				updateWallFlags(x - 1, y - 1, z, CollisionMap.WALL_NORTHEAST,
+						shift, add);
+			}
+		} else {
+			// L-shaped walls
+			if (rotation == 0) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_WEST
+						| CollisionMap.WALL_NORTH, shift, add);
+				updateWallFlags(x - 1, y, z, CollisionMap.WALL_EAST, shift, add);
+				updateWallFlags(x, y + 1, z, CollisionMap.WALL_SOUTH, shift,
+						add);
+			} else if (rotation == 1) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_NORTH
+						| CollisionMap.WALL_EAST, shift, add);
+				updateWallFlags(x, y + 1, z, CollisionMap.WALL_SOUTH, shift,
+						add);
+				updateWallFlags(x + 1, y, z, CollisionMap.WALL_WEST, shift, add);
+			} else if (rotation == 2) {
+				updateWallFlags(x, y, z, CollisionMap.WALL_EAST
+						| CollisionMap.WALL_SOUTH, shift, add);
+				updateWallFlags(x + 1, y, z, CollisionMap.WALL_WEST, shift, add);
+				updateWallFlags(x, y - 1, z, CollisionMap.WALL_NORTH, shift,
+						add);
+			} else {
+				updateWallFlags(x, y, z, CollisionMap.WALL_SOUTH
+						| CollisionMap.WALL_WEST, shift, add);
+				updateWallFlags(x, y - 1, z, CollisionMap.WALL_NORTH, shift,
+						add);
+				updateWallFlags(x - 1, y, z, CollisionMap.WALL_EAST, shift, add);
+			}
+		}
+	}
+
+	/**
+	 * Sets or clears wall flags, and the matching projectile wall flags if
+	 * the wall blocks projectiles.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param z
+	 *            The collision plane.
+	 * @param flags
+	 *            The wall flags.
+	 * @param shift
+	 *            The projectile shift, or <code>-1</code> if the wall does
+	 *            not block projectiles.
+	 * @param add
+	 *            <code>true</code> to set the flags, <code>false</code> to
+	 *            clear them.
+	 */
+	private void updateWallFlags(int x, int y, int z, int flags, int shift,
+			boolean add) {
+		if (shift != -1) {
+			flags |= flags << shift;
+		}
+		updateFlags(x, y, z, flags, add);
+	}
+
+	/**
+	 * Sets or clears collision flags on a tile.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param z
+	 *            The collision plane.
+	 * @param flags
+	 *            The flags.
+	 * @param add
+	 *            <code>true</code> to set the flags, <code>false</code> to
+	 *            clear them.
+	 */
+	private void updateFlags(int x, int y, int z, int flags, boolean add) {
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		if (add) {
+			mgr.addCollisionFlags(x, y, z, flags);
+		} else {
+			mgr.removeCollisionFlags(x, y, z, flags);
+		}
+	}
+
 }
@@ -1,7 +1,10 @@
 package org.hyperion.rs2.model;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
@@ -147,9 +150,9 @@ public class Player extends Entity implements Persistable {
 	private final InterfaceState interfaceState = new InterfaceState(this);
 
 	/**
-	 * A queue of packets that are pending.
+	 * A queue of packets waiting to be sent at the end of the cycle.
 	 */
-	private final Queue<Packet> pendingPackets = new LinkedList<Packet>();
+	private final Queue<Packet> pendingPackets = new ConcurrentLinkedQueue<Packet>();
 
 	/**
 	 * The request manager which manages trading and duelling requests.
@@ -282,23 +285,38 @@ public class Player extends Entity implements Persistable {
 	}
 
 	/**
-	 * Writes a packet to the <code>IoSession</code>. If the player is not yet
-	 * active, the packets are queued.
+	 * Queues a packet to be written to the <code>IoSession</code> when the
+	 * player is next flushed, which is at the end of each cycle. This does
+	 * not lock, so it may be called from any thread.
 	 * 
 	 * @param packet
 	 *            The packet.
 	 */
 	public void write(Packet packet) {
-		synchronized (this) {
-			if (!active) {
-				pendingPackets.add(packet);
-			} else {
-				for (final Packet pendingPacket : pendingPackets) {
-					session.write(pendingPacket);
-				}
-				pendingPackets.clear();
-				session.write(packet);
-			}
+		pendingPackets.add(packet);
+	}
+
+	/**
+	 * Writes the queued packets to the <code>IoSession</code> as a single
+	 * buffer. If the player is not yet active, the packets stay queued. Must
+	 * not be called by two threads at once, as the packets must be encoded
+	 * in order.
+	 */
+	public void flush() {
+		if (!isActive()) {
+			return;
+		}
+		if (!session.isConnected()) {
+			pendingPackets.clear();
+			return;
+		}
+		final List<Packet> packets = new ArrayList<Packet>();
+		Packet packet;
+		while ((packet = pendingPackets.poll()) != null) {
+			packets.add(packet);
+		}
+		if (!packets.isEmpty()) {
+			session.write(packets.toArray(new Packet[packets.size()]));
 		}
 	}
 
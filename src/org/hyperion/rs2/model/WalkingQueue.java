@@ -91,6 +91,14 @@ public class WalkingQueue {
 	 */
 	private boolean runQueue = false;
 
+	/**
+	 * The destination of the last route requested because a walk was
+	 * blocked, so the same route is not requested over and over if it is
+	 * blocked as well. It is forgotten when a new walk is started or the
+	 * current walk completes.
+	 */
+	private int repathX = -1, repathY = -1;
+
 	/**
 	 * Creates the <code>WalkingQueue</code> for the specified
 	 * <code>Entity</code>.
@@ -170,10 +178,22 @@ public class WalkingQueue {
 
 	/**
 	 * Removes the first waypoint which is only used for calculating directions.
-	 * This means walking begins at the correct time.
+	 * This means walking begins at the correct time. This starts a new walk,
+	 * so the destination of the last route requested is forgotten.
 	 */
 	public void finish() {
 		waypoints.removeFirst();
+		repathX = repathY = -1;
+	}
+
+	/**
+	 * Removes the first waypoint of a route found by the path finding
+	 * service. Unlike {@link #finish()}, the destination of the last route
+	 * requested is kept, so the route is not requested again if it is
+	 * blocked as well.
+	 */
+	public void finishRoute() {
+		waypoints.removeFirst();
 	}
 
 	/**
@@ -393,6 +413,32 @@ public class WalkingQueue {
 
 	}
 
+	/**
+	 * Called when the next step is blocked. The rest of the queue is
+	 * discarded and, if enabled, a route to its destination is requested.
+	 * 
+	 * @param next
+	 *            The blocked step.
+	 */
+	private void stepBlocked(Point next) {
+		Point destination = waypoints.peekLast();
+		if (destination == null) {
+			destination = next;
+		}
+		waypoints.clear();
+		runQueue = false;
+		if (Constants.REPATH_BLOCKED_WALKS
+				&& (destination.x != repathX || destination.y != repathY)) {
+			repathX = destination.x;
+			repathY = destination.y;
+			World.getWorld()
+					.getPathFindingService()
+					.submit(entity,
+							Location.create(destination.x, destination.y,
+									entity.getLocation().getZ()));
+		}
+	}
+
 	/**
 	 * Gets the next point of movement.
 	 * 
@@ -414,11 +460,31 @@ public class WalkingQueue {
 			return null;
 		} else {
 			/*
-			 * Set the player's new location.
+			 * Check the step is not blocked, as the client could have sent
+			 * any route.
 			 */
 			final int diffX = Constants.DIRECTION_DELTA_X[p.dir];
 			final int diffY = Constants.DIRECTION_DELTA_Y[p.dir];
-			entity.setLocation(entity.getLocation().transform(diffX, diffY, 0));
+			final Location location = entity.getLocation();
+			if (!World.getWorld().getRegionManager().canStep(location.getX(),
+					location.getY(), location.getZ(), diffX, diffY, false)) {
+				stepBlocked(p);
+				return null;
+			}
+
+			/*
+			 * Set the player's new location.
+			 */
+			entity.setLocation(location.transform(diffX, diffY, 0));
+
+			/*
+			 * Forget the last route requested once the walk completes, so
+			 * the next blocked walk to the same tile requests one again.
+			 */
+			if (waypoints.isEmpty()) {
+				repathX = repathY = -1;
+			}
+
 			/*
 			 * And return the direction.
 			 */
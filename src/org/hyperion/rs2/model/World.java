@@ -18,13 +18,16 @@ import org.hyperion.rs2.WorldLoader.LoginResult;
 import org.hyperion.rs2.event.Event;
 import org.hyperion.rs2.event.EventManager;
 import org.hyperion.rs2.event.impl.CleanupEvent;
+import org.hyperion.rs2.event.impl.RegionUnloadEvent;
 import org.hyperion.rs2.event.impl.UpdateEvent;
 import org.hyperion.rs2.login.LoginServerConnector;
 import org.hyperion.rs2.login.LoginServerWorldLoader;
 import org.hyperion.rs2.model.region.RegionManager;
 import org.hyperion.rs2.net.PacketBuilder;
 import org.hyperion.rs2.net.PacketManager;
+import org.hyperion.rs2.net.ondemand.OnDemandPool;
 import org.hyperion.rs2.packet.PacketHandler;
+import org.hyperion.rs2.pf.PathFindingService;
 import org.hyperion.rs2.task.Task;
 import org.hyperion.rs2.task.impl.SessionLoginTask;
 import org.hyperion.rs2.util.ConfigurationParser;
@@ -107,6 +110,11 @@ public class World {
 	 */
 	private final RegionManager regionManager = new RegionManager();
 
+	/**
+	 * The path finding service.
+	 */
+	private final PathFindingService pathFindingService = new PathFindingService();
+
 	/**
 	 * Creates the world and begins background loading tasks.
 	 */
@@ -126,6 +134,13 @@ public class World {
 				return null;
 			}
 		});
+		backgroundLoader.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				OnDemandPool.getOnDemandPool().warm();
+				return null;
+			}
+		});
 	}
 
 	/**
@@ -155,6 +170,15 @@ public class World {
 		return regionManager;
 	}
 
+	/**
+	 * Gets the path finding service.
+	 * 
+	 * @return The path finding service.
+	 */
+	public PathFindingService getPathFindingService() {
+		return pathFindingService;
+	}
+
 	/**
 	 * Initialises the world: loading configuration and registering global
 	 * events.
@@ -254,6 +278,9 @@ public class World {
 	private void registerGlobalEvents() {
 		submit(new UpdateEvent());
 		submit(new CleanupEvent());
+		if (Constants.DEMAND_LOAD_REGIONS) {
+			submit(new RegionUnloadEvent());
+		}
 	}
 
 	/**
@@ -442,6 +469,7 @@ public class World {
 	 */
 	public void unregister(final Player player) {
 		player.getActionQueue().cancelQueuedActions();
+		pathFindingService.cancel(player);
 		player.destroy();
 		player.getSession().close(false);
 		players.remove(player);
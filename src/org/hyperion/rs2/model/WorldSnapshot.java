@@ -0,0 +1,529 @@
+package org.hyperion.rs2.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.hyperion.cache.Cache;
+import org.hyperion.cache.index.impl.MapIndex;
+import org.hyperion.rs2.model.region.CollisionMap;
+import org.hyperion.rs2.model.region.Region;
+import org.hyperion.rs2.model.region.RegionCoordinates;
+import org.hyperion.rs2.model.region.RegionLoader;
+import org.hyperion.rs2.model.region.RegionManager;
+import org.hyperion.rs2.model.region.StaticObjectTable;
+
+/**
+ * A binary snapshot of the static world: the collision fields of the object
+ * definitions which were used, the objects in each region and the collision
+ * flags of each region. Loading the snapshot avoids unzipping and parsing
+ * the whole map every time the server starts. Names and descriptions are not
+ * stored, as they are decoded from the cache when they are first used.
+ * 
+ * The snapshot can also be used to load regions when they are first used,
+ * as each region's entry can be read on its own. The collision flags of a
+ * region which is not loaded are read straight from the snapshot.
+ * 
+ * The snapshot records a checksum of the cache files it was built from, and
+ * is ignored (and rebuilt) if the cache changes. {@link #VERSION} must be
+ * incremented whenever the layout, or the way the collision flags are
+ * calculated, changes.
+ */
+public class WorldSnapshot implements RegionLoader {
+
+	/**
+	 * Logger instance.
+	 */
+	private static final Logger logger = Logger.getLogger(WorldSnapshot.class
+			.getName());
+
+	/**
+	 * The default snapshot file.
+	 */
+	public static final File SNAPSHOT_FILE = new File("./data/world.snapshot");
+
+	/**
+	 * The magic number at the start of the file.
+	 */
+	private static final int MAGIC = 0x48575344;
+
+	/**
+	 * The version of the layout.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * The size of the header.
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * The number of tiles in a plane of a region.
+	 */
+	private static final int PLANE_SIZE = RegionManager.REGION_SIZE
+			* RegionManager.REGION_SIZE;
+
+	/**
+	 * The snapshot file.
+	 */
+	private final File file;
+
+	/**
+	 * The snapshot, mapped into memory, or <code>null</code> if it has not
+	 * been opened.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The offset of each region's entry in the snapshot.
+	 */
+	private Map<RegionCoordinates, Integer> regionOffsets;
+
+	/**
+	 * The coordinates of the bottom left region in the snapshot.
+	 */
+	private int minimumRegionX, minimumRegionY;
+
+	/**
+	 * The number of regions across and up the area covered by the snapshot.
+	 */
+	private int regionWidth, regionHeight;
+
+	/**
+	 * The offset of the collision flags of each region in the area covered
+	 * by the snapshot, indexed by <code>x * regionHeight + y</code> relative
+	 * to the bottom left region, or <code>0</code> if the snapshot has no
+	 * entry for the region. This allows the flags to be found without
+	 * allocating a key.
+	 */
+	private int[] collisionOffsets;
+
+	/**
+	 * Creates the snapshot.
+	 * 
+	 * @param file
+	 *            The snapshot file.
+	 */
+	public WorldSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Calculates the checksum of the cache files the static world is built
+	 * from: the config and version list archives, and every map and
+	 * landscape file.
+	 * 
+	 * @param cache
+	 *            The cache.
+	 * @return The checksum.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static int calculateChecksum(Cache cache) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] scratch = new byte[Cache.DATA_BLOCK_SIZE * 16];
+		update(crc, cache.getFile(0, 2).getBuffer(), scratch);
+		update(crc, cache.getFile(0, 5).getBuffer(), scratch);
+		for (final MapIndex index : cache.getIndexTable().getMapIndices()) {
+			update(crc, cache.getFile(4, index.getMapFile()).getBuffer(),
+					scratch);
+			update(crc, cache.getFile(4, index.getLandscapeFile())
+					.getBuffer(), scratch);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer to a checksum.
+	 * 
+	 * @param crc
+	 *            The checksum.
+	 * @param buf
+	 *            The buffer.
+	 * @param scratch
+	 *            A scratch array, used if the buffer has no accessible array.
+	 */
+	private static void update(CRC32 crc, ByteBuffer buf, byte[] scratch) {
+		if (buf.hasArray()) {
+			crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf
+					.remaining());
+			return;
+		}
+		buf = buf.duplicate();
+		while (buf.hasRemaining()) {
+			final int length = Math.min(scratch.length, buf.remaining());
+			buf.get(scratch, 0, length);
+			crc.update(scratch, 0, length);
+		}
+	}
+
+	/**
+	 * Loads the snapshot into the world, if it exists and was built from
+	 * the same cache. Nothing is added to the world unless the whole
+	 * snapshot is valid.
+	 * 
+	 * @param checksum
+	 *            The checksum of the cache.
+	 * @return <code>true</code> if the snapshot was loaded,
+	 *         <code>false</code> if it must be rebuilt.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public boolean load(int checksum) throws IOException {
+		if (!open(checksum)) {
+			return false;
+		}
+		final int definitionCount = loadDefinitions();
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		int objectCount = 0;
+		for (final RegionCoordinates coords : regionOffsets.keySet()) {
+			final Region region = mgr.getRegion(coords.getX(), coords.getY());
+			load(region);
+			objectCount += region.getStaticObjects().size();
+		}
+		logger.info("Loaded " + definitionCount + " object definitions, "
+				+ objectCount + " objects and " + regionOffsets.size()
+				+ " regions from the world snapshot.");
+		return true;
+	}
+
+	/**
+	 * Maps the snapshot into memory and checks it is valid, if it exists and
+	 * was built from the same cache, so that definitions and regions can be
+	 * loaded from it.
+	 * 
+	 * @param checksum
+	 *            The checksum of the cache.
+	 * @return <code>true</code> if the snapshot is valid, <code>false</code>
+	 *         if it must be rebuilt.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public boolean open(int checksum) throws IOException {
+		if (!file.exists()) {
+			return false;
+		}
+		final ByteBuffer buf;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buf = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+			logger.warning("Ignoring invalid world snapshot.");
+			return false;
+		}
+		if (buf.getInt(4) != VERSION || buf.getInt(8) != checksum) {
+			logger.info("World snapshot is out of date.");
+			return false;
+		}
+		if (buf.getInt(12) != buf.limit()) {
+			logger.warning("Ignoring truncated world snapshot.");
+			return false;
+		}
+
+		/*
+		 * Every entry is checked now, so that loading a region later on can
+		 * not fail.
+		 */
+		final Map<RegionCoordinates, Integer> offsets =
+				new HashMap<RegionCoordinates, Integer>();
+		final Map<RegionCoordinates, Integer> flagOffsets =
+				new HashMap<RegionCoordinates, Integer>();
+		try {
+			buf.position(HEADER_SIZE);
+			final int definitionCount = buf.getInt();
+			for (int i = 0; i < definitionCount; i++) {
+				checkId(buf.getShort() & 0xFFFF);
+				buf.position(buf.position() + 3);
+			}
+			final int regionCount = buf.getInt();
+			for (int i = 0; i < regionCount; i++) {
+				final int offset = buf.position();
+				final int regionX = buf.getShort() & 0xFFFF;
+				final int regionY = buf.getShort() & 0xFFFF;
+				final int objectCount = buf.getInt();
+				for (int j = 0; j < objectCount; j++) {
+					checkId(buf.getShort());
+					buf.position(buf.position() + 4);
+				}
+				final int flagOffset = buf.position();
+				final int planeCount = Integer.bitCount(buf.get()
+						& (1 << CollisionMap.PLANES) - 1);
+				buf.position(buf.position() + planeCount * PLANE_SIZE * 4);
+				final RegionCoordinates coords = new RegionCoordinates(
+						regionX, regionY);
+				offsets.put(coords, offset);
+				flagOffsets.put(coords, flagOffset);
+			}
+		} catch (final BufferUnderflowException ex) {
+			logger.warning("Ignoring corrupt world snapshot.");
+			return false;
+		} catch (final IllegalArgumentException ex) {
+			logger.warning("Ignoring corrupt world snapshot.");
+			return false;
+		}
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = -1, maxY = -1;
+		for (final RegionCoordinates coords : offsets.keySet()) {
+			minX = Math.min(minX, coords.getX());
+			minY = Math.min(minY, coords.getY());
+			maxX = Math.max(maxX, coords.getX());
+			maxY = Math.max(maxY, coords.getY());
+		}
+		if (maxX == -1) {
+			minX = minY = 0;
+		}
+		regionWidth = maxX - minX + 1;
+		regionHeight = maxY - minY + 1;
+		minimumRegionX = minX;
+		minimumRegionY = minY;
+		collisionOffsets = new int[regionWidth * regionHeight];
+		for (final Map.Entry<RegionCoordinates, Integer> entry : flagOffsets
+				.entrySet()) {
+			final RegionCoordinates coords = entry.getKey();
+			collisionOffsets[(coords.getX() - minX) * regionHeight
+					+ coords.getY() - minY] = entry.getValue();
+		}
+		buffer = buf;
+		regionOffsets = offsets;
+		return true;
+	}
+
+	/**
+	 * Gets the offset of the collision flags of a region.
+	 * 
+	 * @param x
+	 *            The region x coordinate.
+	 * @param y
+	 *            The region y coordinate.
+	 * @return The offset, or <code>0</code> if the snapshot has no entry for
+	 *         the region.
+	 */
+	private int getCollisionOffset(int x, int y) {
+		x -= minimumRegionX;
+		y -= minimumRegionY;
+		if (x < 0 || y < 0 || x >= regionWidth || y >= regionHeight) {
+			return 0;
+		}
+		return collisionOffsets[x * regionHeight + y];
+	}
+
+	/**
+	 * Checks an object definition id read from the snapshot is valid.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @throws IllegalArgumentException
+	 *             if the id is invalid.
+	 */
+	private static void checkId(int id) {
+		if (id < -1 || id >= GameObjectDefinition.MAX_DEFINITIONS) {
+			throw new IllegalArgumentException("Invalid definition id.");
+		}
+	}
+
+	/**
+	 * Adds the object definitions in the snapshot, leaving their names and
+	 * descriptions to be decoded when they are first used. The snapshot must
+	 * have been opened.
+	 * 
+	 * @return The number of definitions.
+	 */
+	public int loadDefinitions() {
+		final ByteBuffer buf = buffer.duplicate();
+		buf.position(HEADER_SIZE);
+		final int definitionCount = buf.getInt();
+		for (int i = 0; i < definitionCount; i++) {
+			final int id = buf.getShort() & 0xFFFF;
+			final int sizeX = buf.get() & 0xFF;
+			final int sizeY = buf.get() & 0xFF;
+			final int flags = buf.get();
+			GameObjectDefinition.addDefinition(new GameObjectDefinition(id,
+					null, null, sizeX, sizeY, (flags & 1) != 0,
+					(flags & 2) != 0, (flags & 4) != 0));
+		}
+		return definitionCount;
+	}
+
+	@Override
+	public boolean hasRegion(int x, int y) {
+		return getCollisionOffset(x, y) != 0;
+	}
+
+	@Override
+	public int getCollisionFlags(int x, int y, int z) {
+		if (z < 0 || z >= CollisionMap.PLANES) {
+			return 0;
+		}
+		final int offset = getCollisionOffset(x / RegionManager.REGION_SIZE, y
+				/ RegionManager.REGION_SIZE);
+		if (offset == 0) {
+			return 0;
+		}
+		final int planeMask = buffer.get(offset);
+		if ((planeMask & 1 << z) == 0) {
+			return 0;
+		}
+		final int plane = Integer.bitCount(planeMask & (1 << z) - 1);
+		final int tile = x % RegionManager.REGION_SIZE
+				* RegionManager.REGION_SIZE + y % RegionManager.REGION_SIZE;
+		return buffer.getInt(offset + 1 + (plane * PLANE_SIZE + tile) * 4);
+	}
+
+	@Override
+	public void load(Region region) {
+		final Integer offset = regionOffsets.get(region.getCoordinates());
+		if (offset == null) {
+			return;
+		}
+		final ByteBuffer buf = buffer.duplicate();
+		buf.position(offset + 4);
+		final int objectCount = buf.getInt();
+		final int baseX = region.getCoordinates().getX()
+				* RegionManager.REGION_SIZE;
+		final int baseY = region.getCoordinates().getY()
+				* RegionManager.REGION_SIZE;
+		final StaticObjectTable objects = new StaticObjectTable(baseX, baseY,
+				objectCount);
+		for (int i = 0; i < objectCount; i++) {
+			final int id = buf.getShort();
+			final int x = buf.get();
+			final int y = buf.get();
+			final int z = buf.get();
+			final int info = buf.get() & 0xFF;
+			objects.add(id, baseX + x, baseY + y, z, info >> 2, info & 3);
+		}
+		region.getStaticObjects().addAll(objects);
+		final int planeMask = buf.get();
+		for (int z = 0; z < CollisionMap.PLANES; z++) {
+			if ((planeMask & 1 << z) != 0) {
+				final int[] plane = new int[PLANE_SIZE];
+				buf.asIntBuffer().get(plane);
+				buf.position(buf.position() + PLANE_SIZE * 4);
+				region.getCollisionMap().setPlane(z, plane);
+			}
+		}
+	}
+
+	/**
+	 * Saves the static world to the snapshot. Must be called after the map
+	 * has been loaded, before any objects are spawned or removed. Only the
+	 * definitions which have already been decoded are saved, so saving does
+	 * not decode any more. The snapshot is written to a temporary file
+	 * first, so a partly written snapshot is never loaded.
+	 * 
+	 * @param checksum
+	 *            The checksum of the cache.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void save(int checksum) throws IOException {
+		final List<GameObjectDefinition> definitions = new ArrayList<GameObjectDefinition>();
+		for (int id = 0; id < GameObjectDefinition.MAX_DEFINITIONS; id++) {
+			final GameObjectDefinition def = GameObjectDefinition
+					.getLoaded(id);
+			if (def != null) {
+				definitions.add(def);
+			}
+		}
+		final Collection<Region> regions = World.getWorld().getRegionManager()
+				.getRegions();
+
+		final File temp = new File(file.getPath() + ".tmp");
+		final DataOutputStream os = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(checksum);
+			os.writeInt(0); // length, filled in below
+
+			os.writeInt(definitions.size());
+			for (final GameObjectDefinition def : definitions) {
+				os.writeShort(def.getId());
+				os.writeByte(def.getSizeX());
+				os.writeByte(def.getSizeY());
+				os.writeByte((def.isSolid() ? 1 : 0)
+						| (def.isWalkable() ? 2 : 0)
+						| (def.hasActions() ? 4 : 0));
+			}
+
+			os.writeInt(regions.size());
+			for (final Region region : regions) {
+				final int baseX = region.getCoordinates().getX()
+						* RegionManager.REGION_SIZE;
+				final int baseY = region.getCoordinates().getY()
+						* RegionManager.REGION_SIZE;
+				os.writeShort(region.getCoordinates().getX());
+				os.writeShort(region.getCoordinates().getY());
+				final StaticObjectTable objects = region.getStaticObjects();
+				int objectCount = 0;
+				for (int i = 0; i < objects.size(); i++) {
+					if (!objects.isRemoved(i)) {
+						objectCount++;
+					}
+				}
+				os.writeInt(objectCount);
+				for (int i = 0; i < objects.size(); i++) {
+					if (objects.isRemoved(i)) {
+						continue;
+					}
+					os.writeShort(objects.getDefinitionId(i));
+					os.writeByte(objects.getX(i) - baseX);
+					os.writeByte(objects.getY(i) - baseY);
+					os.writeByte(objects.getZ(i));
+					os.writeByte(objects.getType(i) << 2
+							| objects.getRotation(i));
+				}
+				final CollisionMap map = region.getCollisionMap();
+				int planeMask = 0;
+				for (int z = 0; z < CollisionMap.PLANES; z++) {
+					if (map.hasFlags(z)) {
+						planeMask |= 1 << z;
+					}
+				}
+				os.writeByte(planeMask);
+				for (int z = 0; z < CollisionMap.PLANES; z++) {
+					if ((planeMask & 1 << z) == 0) {
+						continue;
+					}
+					for (int x = 0; x < RegionManager.REGION_SIZE; x++) {
+						for (int y = 0; y < RegionManager.REGION_SIZE; y++) {
+							os.writeInt(map.get(x, y, z));
+						}
+					}
+				}
+			}
+		} finally {
+			os.close();
+		}
+
+		final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.seek(12);
+			raf.writeInt((int) raf.length());
+		} finally {
+			raf.close();
+		}
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			throw new IOException("Could not replace " + file + ".");
+		}
+		logger.info("Saved world snapshot (" + file.length() + " bytes).");
+	}
+
+}
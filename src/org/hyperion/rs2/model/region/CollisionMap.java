@@ -0,0 +1,200 @@
+package org.hyperion.rs2.model.region;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Holds the collision flags of every tile in a single region. The flags use
+ * the same layout as the client's own collision maps.
+ * </p>
+ * 
+ * <p>
+ * The path finding workers and the parallel tick tasks read the flags while
+ * the logic thread changes them, so each plane is published through an
+ * {@link AtomicReferenceArray}: a reader either sees no plane or a fully
+ * allocated one, and two threads allocating the same plane at once cannot
+ * lose each other's flags.
+ * </p>
+ */
+public class CollisionMap {
+
+	/**
+	 * The number of planes.
+	 */
+	public static final int PLANES = 4;
+
+	/**
+	 * Wall flags, by the side of the tile the wall is on.
+	 */
+	public static final int WALL_NORTHWEST = 0x1, WALL_NORTH = 0x2,
+			WALL_NORTHEAST = 0x4, WALL_EAST = 0x8, WALL_SOUTHEAST = 0x10,
+			WALL_SOUTH = 0x20, WALL_SOUTHWEST = 0x40, WALL_WEST = 0x80;
+
+	/**
+	 * A flag which indicates the tile is occupied by a solid object.
+	 */
+	public static final int OBJECT = 0x100;
+
+	/**
+	 * Wall flags for walls which also block projectiles. These are the wall
+	 * flags shifted left by nine bits.
+	 */
+	public static final int PROJECTILE_WALL_NORTHWEST = 0x200,
+			PROJECTILE_WALL_NORTH = 0x400, PROJECTILE_WALL_NORTHEAST = 0x800,
+			PROJECTILE_WALL_EAST = 0x1000, PROJECTILE_WALL_SOUTHEAST = 0x2000,
+			PROJECTILE_WALL_SOUTH = 0x4000,
+			PROJECTILE_WALL_SOUTHWEST = 0x8000,
+			PROJECTILE_WALL_WEST = 0x10000;
+
+	/**
+	 * A flag which indicates the tile is occupied by an object which also
+	 * blocks projectiles.
+	 */
+	public static final int PROJECTILE_OBJECT = 0x20000;
+
+	/**
+	 * A flag which indicates the tile cannot be walked on, because of its map
+	 * settings or an interactive floor decoration.
+	 */
+	public static final int BLOCKED = 0x200000;
+
+	/**
+	 * Not a collision flag. Set on first plane tiles which are part of a
+	 * bridge, the collision of which is stored one plane lower.
+	 */
+	public static final int BRIDGE = 0x1000000;
+
+	/**
+	 * The number of bits a wall flag is shifted by to get the matching
+	 * projectile wall flag.
+	 */
+	public static final int PROJECTILE_SHIFT = 9;
+
+	/**
+	 * The flags for each plane, allocated when first written to.
+	 */
+	private final AtomicReferenceArray<int[]> flags = new AtomicReferenceArray<int[]>(
+			PLANES);
+
+	/**
+	 * Gets the flags of a tile.
+	 * 
+	 * @param x
+	 *            The local x coordinate.
+	 * @param y
+	 *            The local y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The flags.
+	 */
+	public int get(int x, int y, int z) {
+		if (z < 0 || z >= PLANES) {
+			return 0;
+		}
+		final int[] plane = flags.get(z);
+		if (plane == null) {
+			return 0;
+		}
+		return plane[x * RegionManager.REGION_SIZE + y];
+	}
+
+	/**
+	 * Sets some flags on a tile.
+	 * 
+	 * @param x
+	 *            The local x coordinate.
+	 * @param y
+	 *            The local y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param flag
+	 *            The flags to set.
+	 */
+	public void add(int x, int y, int z, int flag) {
+		if (z < 0 || z >= PLANES) {
+			return;
+		}
+		int[] plane = flags.get(z);
+		if (plane == null) {
+			flags.compareAndSet(z, null, new int[RegionManager.REGION_SIZE
+					* RegionManager.REGION_SIZE]);
+			plane = flags.get(z);
+		}
+		plane[x * RegionManager.REGION_SIZE + y] |= flag;
+	}
+
+	/**
+	 * Clears some flags on a tile.
+	 * 
+	 * @param x
+	 *            The local x coordinate.
+	 * @param y
+	 *            The local y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param flag
+	 *            The flags to clear.
+	 */
+	public void remove(int x, int y, int z, int flag) {
+		if (z < 0 || z >= PLANES) {
+			return;
+		}
+		final int[] plane = flags.get(z);
+		if (plane != null) {
+			plane[x * RegionManager.REGION_SIZE + y] &= ~flag;
+		}
+	}
+
+	/**
+	 * Checks if any tile on a plane has flags.
+	 * 
+	 * @param z
+	 *            The plane.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean hasFlags(int z) {
+		final int[] plane = flags.get(z);
+		if (plane == null) {
+			return false;
+		}
+		for (final int tile : plane) {
+			if (tile != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the flags of every tile on a plane.
+	 * 
+	 * @param z
+	 *            The plane.
+	 * @param plane
+	 *            The flags, indexed by <code>x * REGION_SIZE + y</code>. The
+	 *            array is used directly, not copied.
+	 */
+	public void setPlane(int z, int[] plane) {
+		if (plane.length != RegionManager.REGION_SIZE
+				* RegionManager.REGION_SIZE) {
+			throw new IllegalArgumentException("Invalid plane size.");
+		}
+		flags.set(z, plane);
+	}
+
+	/**
+	 * Gets the number of planes which have flags allocated.
+	 * 
+	 * @return The number of planes.
+	 */
+	public int getPlaneCount() {
+		int count = 0;
+		for (int z = 0; z < PLANES; z++) {
+			if (flags.get(z) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
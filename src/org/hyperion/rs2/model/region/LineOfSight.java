@@ -0,0 +1,207 @@
+package org.hyperion.rs2.model.region;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperion.rs2.model.Location;
+
+/**
+ * Answers line of sight queries, i.e. whether a projectile fired from one
+ * tile can reach another, using the projectile flags of the collision maps.
+ * 
+ * The line is traced with Bresenham's algorithm, and each step is checked
+ * against the projectile walls on the sides of the tiles it crosses and any
+ * projectile blocking objects on the tiles it enters, in the same way a
+ * single step of a walk is checked.
+ * 
+ * Results for pairs of tiles in the same region are cached until the next
+ * cycle. Queries do not allocate, but the cache is not thread safe, so
+ * queries must only be made by the logic thread. {@link #nextCycle()} may be
+ * called from any thread, as the collision maps are also changed by the
+ * background loader: the cycle is an atomic counter, and a query reads it
+ * once, so a result traced while the maps changed is stored with the old
+ * cycle and never returned.
+ */
+public class LineOfSight {
+
+	/**
+	 * The number of cache slots. Must be a power of two.
+	 */
+	private static final int CACHE_SIZE = 8192;
+
+	/**
+	 * The region manager.
+	 */
+	private final RegionManager regionManager;
+
+	/**
+	 * The key stored in each cache slot.
+	 */
+	private final long[] keys = new long[CACHE_SIZE];
+
+	/**
+	 * The cycle each cache slot was written in.
+	 */
+	private final int[] stamps = new int[CACHE_SIZE];
+
+	/**
+	 * The result stored in each cache slot.
+	 */
+	private final boolean[] results = new boolean[CACHE_SIZE];
+
+	/**
+	 * The current cycle. Slots written in earlier cycles are stale.
+	 */
+	private final AtomicInteger cycle = new AtomicInteger(1);
+
+	/**
+	 * The number of queries.
+	 */
+	private long queries;
+
+	/**
+	 * The number of queries answered from the cache.
+	 */
+	private long hits;
+
+	/**
+	 * Creates the line of sight checker.
+	 * 
+	 * @param regionManager
+	 *            The region manager which holds the collision maps.
+	 */
+	public LineOfSight(RegionManager regionManager) {
+		this.regionManager = regionManager;
+	}
+
+	/**
+	 * Discards all cached results. Called at the start of every cycle, and
+	 * whenever the collision maps change. May be called from any thread.
+	 */
+	public void nextCycle() {
+		cycle.incrementAndGet();
+	}
+
+	/**
+	 * Checks if a projectile can travel between two locations.
+	 * 
+	 * @param source
+	 *            The source.
+	 * @param target
+	 *            The target.
+	 * @return <code>true</code> if so, <code>false</code> if not or if the
+	 *         locations are on different planes.
+	 */
+	public boolean canSee(Location source, Location target) {
+		if (source.getZ() != target.getZ()) {
+			return false;
+		}
+		return canSee(source.getX(), source.getY(), target.getX(),
+				target.getY(), source.getZ());
+	}
+
+	/**
+	 * Checks if a projectile can travel between two tiles.
+	 * 
+	 * @param srcX
+	 *            The source x coordinate.
+	 * @param srcY
+	 *            The source y coordinate.
+	 * @param dstX
+	 *            The target x coordinate.
+	 * @param dstY
+	 *            The target y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean canSee(int srcX, int srcY, int dstX, int dstY, int z) {
+		queries++;
+		if (srcX == dstX && srcY == dstY) {
+			return true;
+		}
+		if (srcX / RegionManager.REGION_SIZE != dstX
+				/ RegionManager.REGION_SIZE
+				|| srcY / RegionManager.REGION_SIZE != dstY
+						/ RegionManager.REGION_SIZE) {
+			return trace(srcX, srcY, dstX, dstY, z);
+		}
+
+		final long key = (long) (z << 28 | srcX << 14 | srcY) << 32
+				| (dstX % RegionManager.REGION_SIZE) << 5 | dstY
+				% RegionManager.REGION_SIZE;
+		final long hash = key * 0x9E3779B97F4A7C15L;
+		final int slot = (int) (hash >>> 32) & (CACHE_SIZE - 1);
+		final int stamp = cycle.get();
+		if (stamps[slot] == stamp && keys[slot] == key) {
+			hits++;
+			return results[slot];
+		}
+		final boolean result = trace(srcX, srcY, dstX, dstY, z);
+		keys[slot] = key;
+		stamps[slot] = stamp;
+		results[slot] = result;
+		return result;
+	}
+
+	/**
+	 * Traces the line between two tiles.
+	 * 
+	 * @param srcX
+	 *            The source x coordinate.
+	 * @param srcY
+	 *            The source y coordinate.
+	 * @param dstX
+	 *            The target x coordinate.
+	 * @param dstY
+	 *            The target y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return <code>true</code> if the line is clear, <code>false</code> if
+	 *         not.
+	 */
+	private boolean trace(int srcX, int srcY, int dstX, int dstY, int z) {
+		final int deltaX = Math.abs(dstX - srcX);
+		final int deltaY = Math.abs(dstY - srcY);
+		final int stepX = srcX < dstX ? 1 : -1;
+		final int stepY = srcY < dstY ? 1 : -1;
+		int error = deltaX - deltaY;
+		int x = srcX, y = srcY;
+		while (x != dstX || y != dstY) {
+			final int error2 = error * 2;
+			int dx = 0, dy = 0;
+			if (error2 > -deltaY) {
+				error -= deltaY;
+				dx = stepX;
+			}
+			if (error2 < deltaX) {
+				error += deltaX;
+				dy = stepY;
+			}
+			if (!regionManager.canStep(x, y, z, dx, dy, true)) {
+				return false;
+			}
+			x += dx;
+			y += dy;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of queries.
+	 * 
+	 * @return The number of queries.
+	 */
+	public long getQueryCount() {
+		return queries;
+	}
+
+	/**
+	 * Gets the number of queries answered from the cache.
+	 * 
+	 * @return The number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits;
+	}
+
+}
@@ -33,10 +33,45 @@ public class Region {
 	private final List<NPC> npcs = new LinkedList<NPC>();
 
 	/**
-	 * A list of objects in this region.
+	 * A list of dynamically spawned objects in this region.
 	 */
 	private final List<GameObject> objects = new LinkedList<GameObject>();
 
+	/**
+	 * The static objects in this region, loaded from the landscape.
+	 */
+	private final StaticObjectTable staticObjects;
+
+	/**
+	 * The collision flags of the tiles in this region. The map is replaced,
+	 * not cleared, when the region is unloaded.
+	 */
+	private volatile CollisionMap collisionMap = new CollisionMap();
+
+	/**
+	 * The lock held while the static objects and collision flags are loaded
+	 * or unloaded.
+	 */
+	private final Object loadLock = new Object();
+
+	/**
+	 * A flag indicating the static objects and collision flags have been
+	 * loaded, if regions are loaded on demand.
+	 */
+	private volatile boolean loaded = false;
+
+	/**
+	 * A flag indicating the region has changed since it was loaded, so it can
+	 * not be unloaded.
+	 */
+	private volatile boolean modified = false;
+
+	/**
+	 * The time a player or NPC was last in or next to this region, in
+	 * milliseconds.
+	 */
+	private volatile long lastActive;
+
 	/**
 	 * Creates a region.
 	 * 
@@ -45,6 +80,9 @@ public class Region {
 	 */
 	public Region(RegionCoordinates coordinate) {
 		this.coordinate = coordinate;
+		this.staticObjects = new StaticObjectTable(coordinate.getX()
+				* RegionManager.REGION_SIZE, coordinate.getY()
+				* RegionManager.REGION_SIZE, 0);
 	}
 
 	/**
@@ -81,7 +119,7 @@ public class Region {
 	}
 
 	/**
-	 * Gets the list of objects.
+	 * Gets the list of dynamically spawned objects.
 	 * 
 	 * @return The list of objects.
 	 */
@@ -89,6 +127,154 @@ public class Region {
 		return objects;
 	}
 
+	/**
+	 * Gets the static objects.
+	 * 
+	 * @return The static object table.
+	 */
+	public StaticObjectTable getStaticObjects() {
+		return staticObjects;
+	}
+
+	/**
+	 * Gets the collision map. If regions are loaded on demand, the map only
+	 * holds the region's flags while it is loaded. Threads other than the
+	 * logic thread must get the map before checking {@link #isLoaded()}, so
+	 * that they never use a map which was replaced by {@link #unload()}
+	 * while they thought the region was loaded.
+	 * 
+	 * @return The collision map.
+	 */
+	public CollisionMap getCollisionMap() {
+		return collisionMap;
+	}
+
+	/**
+	 * Checks if there are any players in this region.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean hasPlayers() {
+		synchronized (this) {
+			return !players.isEmpty();
+		}
+	}
+
+	/**
+	 * Checks if there are any NPCs in this region.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean hasNpcs() {
+		synchronized (this) {
+			return !npcs.isEmpty();
+		}
+	}
+
+	/**
+	 * Checks if the static objects and collision flags have been loaded.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Loads the static objects and collision flags, if they have not been
+	 * loaded already.
+	 * 
+	 * @param loader
+	 *            The region loader.
+	 */
+	public void load(RegionLoader loader) {
+		if (loaded) {
+			return;
+		}
+		synchronized (loadLock) {
+			if (!loaded) {
+				loader.load(this);
+				lastActive = System.currentTimeMillis();
+				loaded = true;
+			}
+		}
+	}
+
+	/**
+	 * Marks the static objects and collision flags as loaded, when they have
+	 * been loaded some other way.
+	 */
+	public void markLoaded() {
+		lastActive = System.currentTimeMillis();
+		loaded = true;
+	}
+
+	/**
+	 * Releases the static objects and collision flags, so they are loaded
+	 * again when the region is next used. Must only be called if the region
+	 * has not been modified, on the logic thread.
+	 * 
+	 * The region is marked as unloaded before its collision map is replaced
+	 * with an empty one, and the old map is left as it is. A thread reading
+	 * the flags at the same time therefore either reads the old map or reads
+	 * the flags from the loader, which are the same as the region has not
+	 * been modified, so paths and lines of sight cached from them stay valid.
+	 */
+	public void unload() {
+		synchronized (loadLock) {
+			loaded = false;
+			staticObjects.clear();
+			collisionMap = new CollisionMap();
+		}
+	}
+
+	/**
+	 * Checks if the region has been modified since it was loaded, e.g. by an
+	 * object being spawned or removed.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Marks the region as modified, so it is never unloaded.
+	 */
+	public void markModified() {
+		modified = true;
+	}
+
+	/**
+	 * Gets the time a player or NPC was last in or next to this region.
+	 * 
+	 * @return The time, in milliseconds.
+	 */
+	public long getLastActive() {
+		return lastActive;
+	}
+
+	/**
+	 * Records that a player or NPC is in or next to this region.
+	 * 
+	 * @param time
+	 *            The current time, in milliseconds.
+	 */
+	public void setLastActive(long time) {
+		this.lastActive = time;
+	}
+
+	/**
+	 * Estimates the memory used by the static objects and collision flags.
+	 * 
+	 * @return The size, in bytes.
+	 */
+	public int getLoadedSize() {
+		return staticObjects.size() * StaticObjectTable.BYTES_PER_OBJECT
+				+ collisionMap.getPlaneCount() * RegionManager.REGION_SIZE
+				* RegionManager.REGION_SIZE * 4;
+	}
+
 	/**
 	 * Adds a new player.
 	 * 
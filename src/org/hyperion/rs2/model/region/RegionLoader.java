@@ -0,0 +1,46 @@
+package org.hyperion.rs2.model.region;
+
+/**
+ * Loads the static objects and collision flags of regions when they are
+ * first used, if regions are loaded on demand.
+ */
+public interface RegionLoader {
+
+	/**
+	 * Checks if there is any data for a region.
+	 * 
+	 * @param x
+	 *            The region x coordinate.
+	 * @param y
+	 *            The region y coordinate.
+	 * @return <code>true</code> if so, <code>false</code> if the region is
+	 *         empty.
+	 */
+	public boolean hasRegion(int x, int y);
+
+	/**
+	 * Gets the collision flags of a tile in a region which has not been
+	 * loaded, without loading it. This method must be thread safe, and is
+	 * called by the path finding workers for every tile they search, so it
+	 * should not allocate.
+	 * 
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The collision flags.
+	 */
+	public int getCollisionFlags(int x, int y, int z);
+
+	/**
+	 * Loads the static objects and collision flags of a region. This method
+	 * must be thread safe.
+	 * 
+	 * @param region
+	 *            The region, which is empty.
+	 */
+	public void load(Region region);
+
+}
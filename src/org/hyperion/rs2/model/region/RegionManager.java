@@ -1,11 +1,16 @@
 package org.hyperion.rs2.model.region;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.hyperion.rs2.model.Entity;
 import org.hyperion.rs2.model.Location;
@@ -31,11 +36,199 @@ public class RegionManager {
 	@SuppressWarnings("unused")
 	private static final int LOWER_BOUND = REGION_SIZE / 2 - 1;
 
+	/**
+	 * The width of the region lookup grid, in regions.
+	 */
+	private static final int GRID_WIDTH = 256;
+
+	/**
+	 * The height of the region lookup grid, in regions.
+	 */
+	private static final int GRID_HEIGHT = 512;
+
 	/**
 	 * The active (loaded) region map.
 	 */
 	private final Map<RegionCoordinates, Region> activeRegions = new HashMap<RegionCoordinates, Region>();
 
+	/**
+	 * A grid of the active regions, so that regions inside the game map can
+	 * be looked up without hashing or locking.
+	 */
+	private final AtomicReferenceArray<Region> regionGrid = new AtomicReferenceArray<Region>(
+			GRID_WIDTH * GRID_HEIGHT);
+
+	/**
+	 * The line of sight checker.
+	 */
+	private final LineOfSight lineOfSight = new LineOfSight(this);
+
+	/**
+	 * The region loader, or <code>null</code> if every region is loaded when
+	 * the server starts.
+	 */
+	private volatile RegionLoader loader;
+
+	/**
+	 * The executor which loads regions in the background before they are
+	 * needed, or <code>null</code> if regions are not loaded on demand.
+	 */
+	private volatile ExecutorService prefetcher;
+
+	/**
+	 * Sets the region loader, so that from now on regions are loaded when
+	 * they are first used and may be unloaded when they are idle. Regions
+	 * which already hold their data must be marked as loaded first.
+	 * 
+	 * @param loader
+	 *            The region loader.
+	 */
+	public void setLoader(RegionLoader loader) {
+		prefetcher = Executors.newSingleThreadExecutor();
+		this.loader = loader;
+	}
+
+	/**
+	 * Loads the static objects and collision flags of a region, if regions
+	 * are loaded on demand and it has not been loaded already.
+	 * 
+	 * @param region
+	 *            The region.
+	 */
+	public void load(Region region) {
+		final RegionLoader loader = this.loader;
+		if (loader != null) {
+			region.load(loader);
+		}
+	}
+
+	/**
+	 * Loads the regions around a region in the background, if regions are
+	 * loaded on demand, so they are ready by the time an entity which has
+	 * just entered the region needs them.
+	 * 
+	 * @param region
+	 *            The region.
+	 */
+	public void prefetch(Region region) {
+		final RegionLoader loader = this.loader;
+		if (loader == null) {
+			return;
+		}
+		final List<Region> regions = new ArrayList<Region>(9);
+		final int regionX = region.getCoordinates().getX();
+		final int regionY = region.getCoordinates().getY();
+		for (int x = regionX - 1; x <= regionX + 1; x++) {
+			for (int y = regionY - 1; y <= regionY + 1; y++) {
+				if (loader.hasRegion(x, y)) {
+					final Region neighbour = getRegion(x, y);
+					if (!neighbour.isLoaded()) {
+						regions.add(neighbour);
+					}
+				}
+			}
+		}
+		if (regions.isEmpty()) {
+			return;
+		}
+		prefetcher.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (final Region region : regions) {
+					region.load(loader);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Unloads regions which have had no players or NPCs in or next to them
+	 * for some time, least recently active first, until the loaded regions
+	 * fit in the memory budget. Regions which have been modified are never
+	 * unloaded.
+	 * 
+	 * @param idleTime
+	 *            The time, in milliseconds, a region must have been idle
+	 *            for.
+	 * @param budget
+	 *            The memory budget, in bytes.
+	 * @return The number of regions unloaded.
+	 */
+	public int unloadIdleRegions(long idleTime, long budget) {
+		if (loader == null) {
+			return 0;
+		}
+		final long now = System.currentTimeMillis();
+		final Collection<Region> regions = getRegions();
+		for (final Region region : regions) {
+			if (!region.hasPlayers() && !region.hasNpcs()) {
+				continue;
+			}
+			final int regionX = region.getCoordinates().getX();
+			final int regionY = region.getCoordinates().getY();
+			for (int x = regionX - 1; x <= regionX + 1; x++) {
+				for (int y = regionY - 1; y <= regionY + 1; y++) {
+					final Region neighbour = lookupRegion(x, y);
+					if (neighbour != null) {
+						neighbour.setLastActive(now);
+					}
+				}
+			}
+		}
+
+		long size = 0;
+		final List<Region> idle = new ArrayList<Region>();
+		for (final Region region : regions) {
+			if (!region.isLoaded()) {
+				continue;
+			}
+			final long loadedSize = region.getLoadedSize();
+			size += loadedSize;
+			if (loadedSize > 0 && !region.isModified()
+					&& region.getGameObjects().isEmpty()
+					&& now - region.getLastActive() >= idleTime) {
+				idle.add(region);
+			}
+		}
+		Collections.sort(idle, new Comparator<Region>() {
+			@Override
+			public int compare(Region a, Region b) {
+				final long delta = a.getLastActive() - b.getLastActive();
+				return delta < 0 ? -1 : delta > 0 ? 1 : 0;
+			}
+		});
+		int unloaded = 0;
+		for (final Region region : idle) {
+			if (size <= budget) {
+				break;
+			}
+			size -= region.getLoadedSize();
+			region.unload();
+			unloaded++;
+		}
+		return unloaded;
+	}
+
+	/**
+	 * Gets the line of sight checker.
+	 * 
+	 * @return The line of sight checker.
+	 */
+	public LineOfSight getLineOfSight() {
+		return lineOfSight;
+	}
+
+	/**
+	 * Gets all of the regions which have been created.
+	 * 
+	 * @return A copy of the collection of regions.
+	 */
+	public Collection<Region> getRegions() {
+		synchronized (activeRegions) {
+			return new ArrayList<Region>(activeRegions.values());
+		}
+	}
+
 	/**
 	 * Gets the local players around an entity.
 	 * 
@@ -149,13 +342,195 @@ public class RegionManager {
 	 * @return The region.
 	 */
 	public Region getRegion(int x, int y) {
-		final RegionCoordinates key = new RegionCoordinates(x, y);
-		if (activeRegions.containsKey(key)) {
-			return activeRegions.get(key);
-		} else {
-			final Region region = new Region(key);
-			activeRegions.put(key, region);
-			return region;
+		final boolean inGrid = x >= 0 && y >= 0 && x < GRID_WIDTH
+				&& y < GRID_HEIGHT;
+		if (inGrid) {
+			final Region region = regionGrid.get(x * GRID_HEIGHT + y);
+			if (region != null) {
+				return region;
+			}
+		}
+		synchronized (activeRegions) {
+			final RegionCoordinates key = new RegionCoordinates(x, y);
+			if (activeRegions.containsKey(key)) {
+				return activeRegions.get(key);
+			} else {
+				final Region region = new Region(key);
+				activeRegions.put(key, region);
+				if (inGrid) {
+					regionGrid.set(x * GRID_HEIGHT + y, region);
+				}
+				return region;
+			}
+		}
+	}
+
+	/**
+	 * Gets a region by its x and y coordinates, without creating it if it
+	 * does not exist.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @return The region, or <code>null</code> if it does not exist.
+	 */
+	private Region lookupRegion(int x, int y) {
+		if (x >= 0 && y >= 0 && x < GRID_WIDTH && y < GRID_HEIGHT) {
+			return regionGrid.get(x * GRID_HEIGHT + y);
+		}
+		synchronized (activeRegions) {
+			return activeRegions.get(new RegionCoordinates(x, y));
+		}
+	}
+
+	/**
+	 * Gets the collision flags of a tile. This method is thread safe, and
+	 * never creates or loads a region: if regions are loaded on demand, the
+	 * flags of a region which is not loaded are read from the loader.
+	 * 
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The collision flags, or <code>0</code> if the tile is in a
+	 *         region which does not exist.
+	 */
+	public int getCollisionFlags(int x, int y, int z) {
+		if (x < 0 || y < 0) {
+			return 0;
+		}
+		final Region region = lookupRegion(x / REGION_SIZE, y / REGION_SIZE);
+		final RegionLoader loader = this.loader;
+		if (region != null) {
+			/*
+			 * The map must be read before the loaded flag, see unload().
+			 */
+			final CollisionMap map = region.getCollisionMap();
+			if (loader == null || region.isLoaded()) {
+				return map.get(x % REGION_SIZE, y % REGION_SIZE, z);
+			}
+		} else if (loader == null) {
+			return 0;
+		}
+		return loader.getCollisionFlags(x, y, z);
+	}
+
+	/**
+	 * Checks if a single step from a tile is permitted. This is the same
+	 * check the client makes, so a diagonal step may not cut the corner of
+	 * a wall or a solid object.
+	 * 
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param dx
+	 *            The x delta, <code>-1</code>, <code>0</code> or
+	 *            <code>1</code>.
+	 * @param dy
+	 *            The y delta, <code>-1</code>, <code>0</code> or
+	 *            <code>1</code>.
+	 * @param projectile
+	 *            <code>true</code> to check the projectile flags, for a
+	 *            projectile, or <code>false</code> to check the walking
+	 *            flags, for an entity.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean canStep(int x, int y, int z, int dx, int dy,
+			boolean projectile) {
+		final int shift = projectile ? CollisionMap.PROJECTILE_SHIFT : 0;
+		final int solid = projectile ? CollisionMap.PROJECTILE_OBJECT
+				: CollisionMap.OBJECT | CollisionMap.BLOCKED;
+		final int enteredX = (dx > 0 ? CollisionMap.WALL_WEST
+				: CollisionMap.WALL_EAST) << shift | solid;
+		final int enteredY = (dy > 0 ? CollisionMap.WALL_SOUTH
+				: CollisionMap.WALL_NORTH) << shift | solid;
+		if (dy == 0) {
+			return (getCollisionFlags(x + dx, y, z) & enteredX) == 0;
+		}
+		if (dx == 0) {
+			return (getCollisionFlags(x, y + dy, z) & enteredY) == 0;
+		}
+
+		/*
+		 * A diagonal step is only permitted if both of the tiles beside it
+		 * can be entered too.
+		 */
+		if ((getCollisionFlags(x + dx, y, z) & enteredX) != 0
+				|| (getCollisionFlags(x, y + dy, z) & enteredY) != 0) {
+			return false;
+		}
+		final int corner = (dx > 0 ? dy > 0 ? CollisionMap.WALL_SOUTHWEST
+				: CollisionMap.WALL_NORTHWEST
+				: dy > 0 ? CollisionMap.WALL_SOUTHEAST
+						: CollisionMap.WALL_NORTHEAST) << shift;
+		return (getCollisionFlags(x + dx, y + dy, z) & (enteredX | enteredY | corner)) == 0;
+	}
+
+	/**
+	 * Sets collision flags on a tile.
+	 * 
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param flags
+	 *            The flags to set.
+	 */
+	public void addCollisionFlags(int x, int y, int z, int flags) {
+		if (x < 0 || y < 0) {
+			return;
+		}
+		final Region region = getRegion(x / REGION_SIZE, y / REGION_SIZE);
+		modify(region);
+		region.getCollisionMap().add(x % REGION_SIZE, y % REGION_SIZE, z,
+				flags);
+	}
+
+	/**
+	 * Clears collision flags on a tile.
+	 * 
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param flags
+	 *            The flags to clear.
+	 */
+	public void removeCollisionFlags(int x, int y, int z, int flags) {
+		if (x < 0 || y < 0) {
+			return;
+		}
+		final Region region = loader == null ? lookupRegion(x / REGION_SIZE, y
+				/ REGION_SIZE) : getRegion(x / REGION_SIZE, y / REGION_SIZE);
+		if (region != null) {
+			modify(region);
+			region.getCollisionMap().remove(x % REGION_SIZE, y % REGION_SIZE,
+					z, flags);
+		}
+	}
+
+	/**
+	 * Prepares a region to be modified. If regions are loaded on demand, the
+	 * region is loaded, and marked as modified so it is never unloaded.
+	 * 
+	 * @param region
+	 *            The region.
+	 */
+	public void modify(Region region) {
+		final RegionLoader loader = this.loader;
+		if (loader != null) {
+			region.load(loader);
+			region.markModified();
 		}
 	}
 
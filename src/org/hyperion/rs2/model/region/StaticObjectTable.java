@@ -0,0 +1,318 @@
+package org.hyperion.rs2.model.region;
+
+import org.hyperion.rs2.model.GameObject;
+import org.hyperion.rs2.model.GameObjectDefinition;
+import org.hyperion.rs2.model.Location;
+
+/**
+ * Holds the static objects of a region, i.e. the objects in the landscape,
+ * packed into primitive arrays instead of one <code>GameObject</code> and
+ * <code>Location</code> per object.
+ * 
+ * Each object is stored as its definition id, its position within the
+ * region and plane, and its type and rotation, which takes five bytes. The
+ * objects are accessed by index. Code which scans the table should use the
+ * accessors such as {@link #getX(int)}, which do not allocate, and only call
+ * {@link #get(int)} for the objects it needs as <code>GameObject</code>s.
+ * 
+ * The table is filled while the map or the region is loaded and must then
+ * only be used by the logic thread.
+ */
+public class StaticObjectTable {
+
+	/**
+	 * The number of bytes used to store each object.
+	 */
+	public static final int BYTES_PER_OBJECT = 5;
+
+	/**
+	 * The position bit which marks an object which has been removed.
+	 */
+	private static final int REMOVED = 0x1000;
+
+	/**
+	 * The x coordinate of the bottom left corner of the region.
+	 */
+	private final int baseX;
+
+	/**
+	 * The y coordinate of the bottom left corner of the region.
+	 */
+	private final int baseY;
+
+	/**
+	 * The definition id of each object, or <code>-1</code> if it has no
+	 * definition.
+	 */
+	private short[] ids;
+
+	/**
+	 * The position of each object: the local x coordinate in bits 7-11, the
+	 * local y coordinate in bits 2-6 and the plane in bits 0-1. Bit 12 is
+	 * set if the object has been removed.
+	 */
+	private short[] positions;
+
+	/**
+	 * The shape of each object: the type in bits 2-7 and the rotation in bits
+	 * 0-1.
+	 */
+	private byte[] shapes;
+
+	/**
+	 * The number of objects, including removed objects.
+	 */
+	private int size = 0;
+
+	/**
+	 * Creates an empty table.
+	 * 
+	 * @param baseX
+	 *            The x coordinate of the bottom left corner of the region.
+	 * @param baseY
+	 *            The y coordinate of the bottom left corner of the region.
+	 * @param capacity
+	 *            The initial capacity.
+	 */
+	public StaticObjectTable(int baseX, int baseY, int capacity) {
+		this.baseX = baseX;
+		this.baseY = baseY;
+		ids = new short[capacity];
+		positions = new short[capacity];
+		shapes = new byte[capacity];
+	}
+
+	/**
+	 * Adds an object.
+	 * 
+	 * @param id
+	 *            The definition id, or <code>-1</code>.
+	 * @param x
+	 *            The absolute x coordinate.
+	 * @param y
+	 *            The absolute y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @param type
+	 *            The type.
+	 * @param rotation
+	 *            The rotation.
+	 */
+	public void add(int id, int x, int y, int z, int type, int rotation) {
+		final int localX = x - baseX, localY = y - baseY;
+		if (localX < 0 || localX >= RegionManager.REGION_SIZE || localY < 0
+				|| localY >= RegionManager.REGION_SIZE) {
+			throw new IllegalArgumentException("Object outside region.");
+		}
+		ensureCapacity(size + 1);
+		ids[size] = (short) id;
+		positions[size] = (short) (localX << 7 | localY << 2 | z & 3);
+		shapes[size] = (byte) ((type & 0x3F) << 2 | rotation & 3);
+		size++;
+	}
+
+	/**
+	 * Adds an object.
+	 * 
+	 * @param obj
+	 *            The object.
+	 */
+	public void add(GameObject obj) {
+		final Location loc = obj.getLocation();
+		add(obj.getDefinition() == null ? -1 : obj.getDefinition().getId(),
+				loc.getX(), loc.getY(), loc.getZ(), obj.getType(), obj
+						.getRotation());
+	}
+
+	/**
+	 * Adds all of the objects in another table, which must be for the same
+	 * region.
+	 * 
+	 * @param other
+	 *            The other table.
+	 */
+	public void addAll(StaticObjectTable other) {
+		if (other.baseX != baseX || other.baseY != baseY) {
+			throw new IllegalArgumentException("Table for another region.");
+		}
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.ids, 0, ids, size, other.size);
+		System.arraycopy(other.positions, 0, positions, size, other.size);
+		System.arraycopy(other.shapes, 0, shapes, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Removes an object, if the table holds an object with the same
+	 * definition, location, type and rotation.
+	 * 
+	 * @param obj
+	 *            The object.
+	 * @return <code>true</code> if an object was removed, <code>false</code>
+	 *         if not.
+	 */
+	public boolean remove(GameObject obj) {
+		final int id = obj.getDefinition() == null ? -1 : obj.getDefinition()
+				.getId();
+		final Location loc = obj.getLocation();
+		for (int i = 0; i < size; i++) {
+			if ((positions[i] & REMOVED) == 0 && ids[i] == id
+					&& getX(i) == loc.getX() && getY(i) == loc.getY()
+					&& getZ(i) == loc.getZ()
+					&& getType(i) == obj.getType()
+					&& getRotation(i) == obj.getRotation()) {
+				positions[i] |= REMOVED;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Makes sure the arrays can hold a number of objects.
+	 * 
+	 * @param capacity
+	 *            The number of objects.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= ids.length) {
+			return;
+		}
+		final int newCapacity = Math.max(capacity, ids.length * 3 / 2 + 1);
+		final short[] newIds = new short[newCapacity];
+		final short[] newPositions = new short[newCapacity];
+		final byte[] newShapes = new byte[newCapacity];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		System.arraycopy(positions, 0, newPositions, 0, size);
+		System.arraycopy(shapes, 0, newShapes, 0, size);
+		ids = newIds;
+		positions = newPositions;
+		shapes = newShapes;
+	}
+
+	/**
+	 * Removes all of the objects and releases the arrays.
+	 */
+	public void clear() {
+		ids = new short[0];
+		positions = new short[0];
+		shapes = new byte[0];
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of objects. Removed objects keep their index, so this
+	 * includes objects for which {@link #isRemoved(int)} is
+	 * <code>true</code>.
+	 * 
+	 * @return The number of objects.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if an object has been removed.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isRemoved(int index) {
+		return (positions[index] & REMOVED) != 0;
+	}
+
+	/**
+	 * Gets the definition id of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The definition id, or <code>-1</code> if the object has no
+	 *         definition.
+	 */
+	public int getDefinitionId(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * Gets the definition of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The definition, or <code>null</code> if the object has no
+	 *         definition.
+	 */
+	public GameObjectDefinition getDefinition(int index) {
+		final int id = ids[index];
+		return id == -1 ? null : GameObjectDefinition.forId(id);
+	}
+
+	/**
+	 * Gets the absolute x coordinate of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The x coordinate.
+	 */
+	public int getX(int index) {
+		return baseX + (positions[index] >> 7 & 0x1F);
+	}
+
+	/**
+	 * Gets the absolute y coordinate of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The y coordinate.
+	 */
+	public int getY(int index) {
+		return baseY + (positions[index] >> 2 & 0x1F);
+	}
+
+	/**
+	 * Gets the plane of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The plane.
+	 */
+	public int getZ(int index) {
+		return positions[index] & 3;
+	}
+
+	/**
+	 * Gets the type of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The type.
+	 */
+	public int getType(int index) {
+		return shapes[index] >> 2 & 0x3F;
+	}
+
+	/**
+	 * Gets the rotation of an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The rotation.
+	 */
+	public int getRotation(int index) {
+		return shapes[index] & 3;
+	}
+
+	/**
+	 * Creates a <code>GameObject</code> for an object.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The game object.
+	 */
+	public GameObject get(int index) {
+		return new GameObject(getDefinition(index), Location.create(
+				getX(index), getY(index), getZ(index)), getType(index),
+				getRotation(index));
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.hyperion.rs2.model.region;
 
+import org.hyperion.rs2.model.Location;
+
 /**
  * Represents a tile.
  * 
@@ -8,4 +10,76 @@ package org.hyperion.rs2.model.region;
  */
 public class Tile {
 
+	/**
+	 * A settings flag which indicates the tile cannot be walked on, e.g.
+	 * water.
+	 */
+	public static final int BLOCKED = 1;
+
+	/**
+	 * A settings flag which indicates the tile is part of a bridge. When set
+	 * on a tile on the first plane, the tile and everything on it is treated
+	 * as if it were one plane lower.
+	 */
+	public static final int BRIDGE = 2;
+
+	/**
+	 * The location.
+	 */
+	private final Location location;
+
+	/**
+	 * The settings.
+	 */
+	private final int settings;
+
+	/**
+	 * Creates a tile.
+	 * 
+	 * @param location
+	 *            The location.
+	 * @param settings
+	 *            The settings bitmask.
+	 */
+	public Tile(Location location, int settings) {
+		this.location = location;
+		this.settings = settings;
+	}
+
+	/**
+	 * Gets the location.
+	 * 
+	 * @return The location.
+	 */
+	public Location getLocation() {
+		return location;
+	}
+
+	/**
+	 * Gets the settings bitmask.
+	 * 
+	 * @return The settings bitmask.
+	 */
+	public int getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Checks if this tile is blocked.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isBlocked() {
+		return (settings & BLOCKED) != 0;
+	}
+
+	/**
+	 * Checks if this tile is part of a bridge.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isBridge() {
+		return (settings & BRIDGE) != 0;
+	}
+
 }
@@ -77,7 +77,7 @@ public class ActionSender {
 		final PacketBuilder bldr = new PacketBuilder(36);
 		bldr.putLEShort(id);
 		bldr.put((byte) value);
-		player.getSession().write(bldr.toPacket());
+		player.write(bldr.toPacket());
 		return this;
 	}
 
@@ -94,7 +94,7 @@ public class ActionSender {
 		final PacketBuilder bldr = new PacketBuilder(87);
 		bldr.putLEShort(id);
 		bldr.putInt1(state);
-		player.getSession().write(bldr.toPacket());
+		player.write(bldr.toPacket());
 		return this;
 	}
 
@@ -714,7 +714,7 @@ public class ActionSender {
 				.getLastKnownRegion().getRegionY();
 		bldr.putByteS((byte) (location.getY() - (regionY - 6) * 8));
 		bldr.putByteC((byte) (location.getX() - (regionX - 6) * 8));
-		player.getSession().write(bldr.toPacket());
+		player.write(bldr.toPacket());
 		return this;
 	}
 
@@ -734,7 +734,7 @@ public class ActionSender {
 		sendCoords(position);
 		final PacketBuilder bldr2 = new PacketBuilder(64);
 		bldr2.putByteC((objectType << 2) + (objectFace & 3)).put((byte) 0);
-		player.getSession().write(bldr2.toPacket());
+		player.write(bldr2.toPacket());
 		return this;
 	}
 
@@ -755,7 +755,7 @@ public class ActionSender {
 		final PacketBuilder bldr = new PacketBuilder(236);
 		bldr.putLEShortA(objectId).putByteC(0)
 				.putByteS((byte) ((objectType << 2) + (objectFace & 3)));
-		player.getSession().write(bldr.toPacket());
+		player.write(bldr.toPacket());
 		return this;
 	}
 
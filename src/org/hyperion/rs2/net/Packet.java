@@ -51,6 +51,13 @@ public class Packet {
 	 */
 	private final IoBuffer payload;
 
+	/**
+	 * The buffer the packet was built in, which has space for the header
+	 * before the payload, or <code>null</code> if there is no such buffer or
+	 * it has already been taken by the encoder.
+	 */
+	private IoBuffer frame;
+
 	/**
 	 * Creates a packet.
 	 * 
@@ -67,6 +74,78 @@ public class Packet {
 		this.payload = payload;
 	}
 
+	/**
+	 * Creates a packet from a buffer which has space reserved for the header
+	 * before the payload, so the encoder can fill in the header without
+	 * copying the payload.
+	 * 
+	 * @param opcode
+	 *            The opcode.
+	 * @param type
+	 *            The type.
+	 * @param frame
+	 *            The buffer, from position <code>0</code> to its limit.
+	 * @param headerLength
+	 *            The number of bytes reserved for the header, which must be
+	 *            {@link #getHeaderLength(int, Type)}.
+	 */
+	public Packet(int opcode, Type type, IoBuffer frame, int headerLength) {
+		this.opcode = opcode;
+		this.type = type;
+		this.payload = frame.duplicate().position(headerLength).slice()
+				.asReadOnlyBuffer();
+		this.frame = headerLength == 0 ? null : frame;
+	}
+
+	/**
+	 * Gets the length of the header which is written before the payload of a
+	 * packet.
+	 * 
+	 * @param opcode
+	 *            The opcode, which is <code>-1</code> for raw packets.
+	 * @param type
+	 *            The type.
+	 * @return The length of the header, in bytes.
+	 */
+	public static int getHeaderLength(int opcode, Type type) {
+		if (opcode == -1) {
+			return 0;
+		}
+		switch (type) {
+		case VARIABLE:
+			return 2;
+		case VARIABLE_SHORT:
+			return 3;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Takes the buffer the packet was built in, so the header can be written
+	 * into the space reserved for it. Only the first call returns the buffer,
+	 * as the header of a packet written to several sessions, or more than
+	 * once, differs each time.
+	 * 
+	 * @return The buffer, or <code>null</code> if the packet was not built
+	 *         with space for its header or the buffer has already been taken.
+	 */
+	public synchronized IoBuffer takeFrame() {
+		final IoBuffer frame = this.frame;
+		this.frame = null;
+		return frame;
+	}
+
+	/**
+	 * Checks if the buffer the packet was built in can still be taken by
+	 * {@link #takeFrame()}.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public synchronized boolean hasFrame() {
+		return frame != null;
+	}
+
 	/**
 	 * Checks if this packet is raw. A raw packet does not have the usual
 	 * headers such as opcode or size.
@@ -36,10 +36,15 @@ public class PacketBuilder {
 	private final Type type;
 
 	/**
-	 * The payload.
+	 * The payload, which is preceded by the space reserved for the header.
 	 */
 	private final IoBuffer payload = IoBuffer.allocate(16);
 
+	/**
+	 * The number of bytes reserved for the header.
+	 */
+	private final int headerLength;
+
 	/**
 	 * The current bit position.
 	 */
@@ -73,8 +78,10 @@ public class PacketBuilder {
 	public PacketBuilder(int opcode, Type type) {
 		this.opcode = opcode;
 		this.type = type;
+		this.headerLength = Packet.getHeaderLength(opcode, type);
 		payload.setAutoExpand(true);
 		payload.setAutoShrink(true);
+		payload.position(headerLength);
 	}
 
 	/**
@@ -138,12 +145,14 @@ public class PacketBuilder {
 	}
 
 	/**
-	 * Converts this PacketBuilder to a packet.
+	 * Converts this PacketBuilder to a packet. The packet shares this
+	 * builder's buffer, including the space reserved for the header, so the
+	 * encoder can send it without copying the payload.
 	 * 
 	 * @return The Packet object.
 	 */
 	public Packet toPacket() {
-		return new Packet(opcode, type, payload.flip().asReadOnlyBuffer());
+		return new Packet(opcode, type, payload.flip(), headerLength);
 	}
 
 	/**
@@ -203,7 +212,7 @@ public class PacketBuilder {
 	 * @return <code>true</code> if so, <code>false</code> if not.
 	 */
 	public boolean isEmpty() {
-		return payload.position() == 0;
+		return payload.position() == headerLength;
 	}
 
 	/**
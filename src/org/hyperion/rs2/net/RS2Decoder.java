@@ -9,32 +9,112 @@ import org.hyperion.rs2.model.Player;
 import org.hyperion.rs2.net.Packet.Type;
 
 /**
+ * <p>
  * Game protocol decoding class.
+ * </p>
+ * 
+ * <p>
+ * The state of each session's decoder is kept in a single object, which is
+ * stored on the session the first time it sends a game packet, so decoding a
+ * packet does not look up or box any session attributes.
+ * </p>
+ * 
+ * <p>
+ * Packet payloads are read-only slices of the buffer being decoded rather
+ * than copies. Packets are handled by the game logic thread after the read
+ * has finished, so a slice is only safe if its bytes are never overwritten.
+ * This relies on two things MINA does:
+ * </p>
+ * 
+ * <ul>
+ * <li>Each read from the socket is made into a newly allocated buffer, which
+ * is never written to again. This is only true of the default, non-pooling
+ * {@link org.apache.mina.core.buffer.IoBufferAllocator}: a pooled allocator
+ * would reuse the buffer for a later read and corrupt the payloads of
+ * packets which are still queued, so it must not be used with this
+ * decoder.</li>
+ * <li>Taking a slice of the cumulative buffer, which holds data left over
+ * from earlier reads, stops it from being expanded or compacted in place,
+ * so MINA moves any unread data into a new buffer instead of overwriting
+ * it.</li>
+ * </ul>
  * 
  * @author Graham Edgecombe
  * 
  */
 public class RS2Decoder extends CumulativeProtocolDecoder {
 
+	/**
+	 * The session attribute which holds the decoder state.
+	 */
+	private static final String STATE_ATTRIBUTE = "decoderState";
+
+	/**
+	 * The state of a single session's decoder.
+	 */
+	private static final class DecoderState {
+
+		/**
+		 * The ISAAC cipher used to decrypt opcodes.
+		 */
+		private final ISAACCipher inCipher;
+
+		/**
+		 * The opcode of the current packet, or <code>-1</code> if it has not
+		 * been read yet.
+		 */
+		private int opcode = -1;
+
+		/**
+		 * The size of the current packet, or <code>-1</code> if it has not
+		 * been read yet.
+		 */
+		private int size = -1;
+
+		/**
+		 * Creates the decoder state.
+		 * 
+		 * @param inCipher
+		 *            The ISAAC cipher used to decrypt opcodes.
+		 */
+		private DecoderState(ISAACCipher inCipher) {
+			this.inCipher = inCipher;
+		}
+
+	}
+
+	/**
+	 * Gets the decoder state of a session, creating it if it does not exist.
+	 * Decoding of a single session never runs in two threads at once, so
+	 * this does not need to be atomic.
+	 * 
+	 * @param session
+	 *            The session.
+	 * @return The decoder state.
+	 */
+	private static DecoderState getState(IoSession session) {
+		DecoderState state = (DecoderState) session
+				.getAttribute(STATE_ATTRIBUTE);
+		if (state == null) {
+			state = new DecoderState(((Player) session.getAttribute("player"))
+					.getInCipher());
+			session.setAttribute(STATE_ATTRIBUTE, state);
+		}
+		return state;
+	}
+
 	@Override
 	protected boolean doDecode(IoSession session, IoBuffer in,
 			ProtocolDecoderOutput out) throws Exception {
 		/*
-		 * Fetch the ISAAC cipher for this session.
+		 * Fetch the decoder state for this session.
 		 */
-		final ISAACCipher inCipher = ((Player) session.getAttribute("player"))
-				.getInCipher();
-
-		/*
-		 * Fetch any cached opcodes and sizes, reset to -1 if not present.
-		 */
-		int opcode = (Integer) session.getAttribute("opcode", -1);
-		int size = (Integer) session.getAttribute("size", -1);
+		final DecoderState state = getState(session);
 
 		/*
 		 * If the opcode is not present.
 		 */
-		if (opcode == -1) {
+		if (state.opcode == -1) {
 			/*
 			 * Check if it can be read.
 			 */
@@ -42,19 +122,13 @@ public class RS2Decoder extends CumulativeProtocolDecoder {
 				/*
 				 * Read and decrypt the opcode.
 				 */
-				opcode = in.get() & 0xFF;
-				opcode = opcode - inCipher.getNextValue() & 0xFF;
+				final int opcode = in.get() & 0xFF;
+				state.opcode = opcode - state.inCipher.getNextValue() & 0xFF;
 
 				/*
 				 * Find the packet size.
 				 */
-				size = Constants.PACKET_SIZES[opcode];
-
-				/*
-				 * Set the cached opcode and size.
-				 */
-				session.setAttribute("opcode", opcode);
-				session.setAttribute("size", size);
+				state.size = Constants.PACKET_SIZES[state.opcode];
 			} else {
 				/*
 				 * We need to wait for more data.
@@ -66,16 +140,15 @@ public class RS2Decoder extends CumulativeProtocolDecoder {
 		/*
 		 * If the packet is variable-length.
 		 */
-		if (size == -1) {
+		if (state.size == -1) {
 			/*
 			 * Check if the size can be read.
 			 */
 			if (in.remaining() >= 1) {
 				/*
-				 * Read the packet size and cache it.
+				 * Read the packet size.
 				 */
-				size = in.get() & 0xFF;
-				session.setAttribute("size", size);
+				state.size = in.get() & 0xFF;
 			} else {
 				/*
 				 * We need to wait for more data.
@@ -87,26 +160,24 @@ public class RS2Decoder extends CumulativeProtocolDecoder {
 		/*
 		 * If the packet payload (data) can be read.
 		 */
-		if (in.remaining() >= size) {
+		if (in.remaining() >= state.size) {
 			/*
-			 * Read it.
+			 * Slice it, which is safe as the buffer is never written to
+			 * again.
 			 */
-			final byte[] data = new byte[size];
-			in.get(data);
-			final IoBuffer payload = IoBuffer.allocate(data.length);
-			payload.put(data);
-			payload.flip();
+			final IoBuffer payload = in.getSlice(state.size);
 
 			/*
 			 * Produce and write the packet object.
 			 */
-			out.write(new Packet(opcode, Type.FIXED, payload));
+			out.write(new Packet(state.opcode, Type.FIXED, payload
+					.asReadOnlyBuffer()));
 
 			/*
 			 * Reset the cached opcode and sizes.
 			 */
-			session.setAttribute("opcode", -1);
-			session.setAttribute("size", -1);
+			state.opcode = -1;
+			state.size = -1;
 
 			/*
 			 * Indicate we are ready to read another packet.
@@ -7,16 +7,101 @@ import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.hyperion.rs2.model.Player;
 
 /**
+ * <p>
  * Game protocol encoding class.
+ * </p>
+ * 
+ * <p>
+ * Packets made by a {@link PacketBuilder} have space reserved for their
+ * header, so the encoder only writes the encrypted opcode and the length
+ * into that space and passes the builder's buffer on, and every outgoing
+ * byte is written once. Other packets are copied behind a newly allocated
+ * header.
+ * </p>
+ * 
+ * <p>
+ * An array of packets, which is how players send the packets written during
+ * a cycle, is encoded into as few buffers as possible, so it is sent with few
+ * write requests and TCP segments. Small packets are copied together, but a
+ * large packet with space for its header, such as an update packet, is sent
+ * from its own buffer, and the packets after it are copied into the spare
+ * room at the end of that buffer while they fit.
+ * </p>
  * 
  * @author Graham Edgecombe
  * 
  */
 public class RS2Encoder implements ProtocolEncoder {
 
+	/**
+	 * The length of the smallest packet in an array which is sent from its
+	 * own buffer rather than copied, in bytes.
+	 */
+	private static final int MINIMUM_FRAME_LENGTH = 256;
+
 	@Override
 	public void encode(IoSession session, Object in, ProtocolEncoderOutput out)
 			throws Exception {
+		/*
+		 * Check if several packets are being sent at once.
+		 */
+		if (in instanceof Packet[]) {
+			final Packet[] packets = (Packet[]) in;
+
+			/*
+			 * A single packet is sent on its own, so it is not copied.
+			 */
+			if (packets.length == 1) {
+				encode(session, packets[0], out);
+				return;
+			}
+
+			/*
+			 * Write every packet into the buffer being filled, then flip and
+			 * dispatch each buffer when it is full.
+			 */
+			ISAACCipher outCipher = null;
+			IoBuffer buffer = null;
+			for (int i = 0; i < packets.length; i++) {
+				final Packet p = packets[i];
+				if (!p.isRaw() && outCipher == null) {
+					outCipher = getOutCipher(session);
+				}
+
+				/*
+				 * A large packet built with space for its header has the
+				 * header written into it, and its buffer is filled next.
+				 */
+				final IoBuffer frame = isFramed(p) ? p.takeFrame() : null;
+				if (frame != null) {
+					if (buffer != null) {
+						out.write(buffer.flip());
+					}
+					putHeader(frame, p, outCipher);
+					buffer = frame.position(frame.limit()).limit(
+							frame.capacity());
+					continue;
+				}
+
+				/*
+				 * Otherwise, the packet is copied into the buffer, or into a
+				 * new one if it does not fit.
+				 */
+				if (buffer == null || buffer.remaining() < getFrameLength(p)) {
+					if (buffer != null) {
+						out.write(buffer.flip());
+					}
+					buffer = IoBuffer.allocate(getCopiedLength(packets, i));
+				}
+				if (!p.isRaw()) {
+					putHeader(buffer, p, outCipher);
+				}
+				buffer.put(p.getPayload());
+			}
+			out.write(buffer.flip());
+			return;
+		}
+
 		final Packet p = (Packet) in;
 
 		/*
@@ -31,58 +116,116 @@ public class RS2Encoder implements ProtocolEncoder {
 			/*
 			 * If not, get the out ISAAC cipher.
 			 */
-			final ISAACCipher outCipher = ((Player) session
-					.getAttribute("player")).getOutCipher();
+			final ISAACCipher outCipher = getOutCipher(session);
 
 			/*
-			 * Get the packet attributes.
+			 * If the packet was built with space for its header, write the
+			 * header into it and dispatch the packet without copying it.
 			 */
-			int opcode = p.getOpcode();
-			final Packet.Type type = p.getType();
-			final int length = p.getLength();
+			final IoBuffer frame = p.takeFrame();
+			if (frame != null) {
+				putHeader(frame, p, outCipher);
+				out.write(frame.rewind());
+				return;
+			}
 
 			/*
-			 * Encrypt the packet opcode.
+			 * Otherwise, create the buffer and write the header and the
+			 * payload itself.
 			 */
-			opcode += outCipher.getNextValue();
+			final int headerLength = Packet.getHeaderLength(p.getOpcode(),
+					p.getType());
+			final IoBuffer buffer = IoBuffer.allocate(headerLength
+					+ p.getLength());
+			putHeader(buffer, p, outCipher);
+			buffer.put(p.getPayload());
 
 			/*
-			 * Compute the required size for the buffer.
+			 * Flip and dispatch the packet.
 			 */
-			int finalLength = length + 1;
-			switch (type) {
-			case VARIABLE:
-				finalLength += 1;
-				break;
-			case VARIABLE_SHORT:
-				finalLength += 2;
-				break;
-			}
+			out.write(buffer.flip());
+		}
+	}
 
-			/*
-			 * Create the buffer and write the opcode (and length if the packet
-			 * is variable-length).
-			 */
-			final IoBuffer buffer = IoBuffer.allocate(finalLength);
-			buffer.put((byte) opcode);
-			switch (type) {
-			case VARIABLE:
-				buffer.put((byte) length);
-				break;
-			case VARIABLE_SHORT:
-				buffer.putShort((short) length);
+	/**
+	 * Checks if a packet in an array is large enough to be sent from the
+	 * buffer it was built in, and that buffer can still be taken.
+	 * 
+	 * @param p
+	 *            The packet.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	private static boolean isFramed(Packet p) {
+		return p.getLength() >= MINIMUM_FRAME_LENGTH && p.hasFrame();
+	}
+
+	/**
+	 * Gets the length of a packet including its header.
+	 * 
+	 * @param p
+	 *            The packet.
+	 * @return The length, in bytes.
+	 */
+	private static int getFrameLength(Packet p) {
+		return Packet.getHeaderLength(p.getOpcode(), p.getType())
+				+ p.getLength();
+	}
+
+	/**
+	 * Gets the length of the packets in an array which are copied into a
+	 * new buffer, which are those up to the next one sent from its own
+	 * buffer.
+	 * 
+	 * @param packets
+	 *            The packets.
+	 * @param offset
+	 *            The index of the first packet, which is always copied.
+	 * @return The length, in bytes.
+	 */
+	private static int getCopiedLength(Packet[] packets, int offset) {
+		int length = getFrameLength(packets[offset]);
+		for (int i = offset + 1; i < packets.length; i++) {
+			if (isFramed(packets[i])) {
 				break;
 			}
+			length += getFrameLength(packets[i]);
+		}
+		return length;
+	}
 
-			/*
-			 * Write the payload itself.
-			 */
-			buffer.put(p.getPayload());
+	/**
+	 * Gets the out ISAAC cipher of a session.
+	 * 
+	 * @param session
+	 *            The session.
+	 * @return The cipher.
+	 */
+	private static ISAACCipher getOutCipher(IoSession session) {
+		return ((Player) session.getAttribute("player")).getOutCipher();
+	}
 
-			/*
-			 * Flip and dispatch the packet.
-			 */
-			out.write(buffer.flip());
+	/**
+	 * Writes the header of a packet: its encrypted opcode, and its length if
+	 * the packet is variable-length.
+	 * 
+	 * @param buffer
+	 *            The buffer to write to.
+	 * @param p
+	 *            The packet.
+	 * @param outCipher
+	 *            The out ISAAC cipher.
+	 */
+	private static void putHeader(IoBuffer buffer, Packet p,
+			ISAACCipher outCipher) {
+		final int length = p.getLength();
+		buffer.put((byte) (p.getOpcode() + outCipher.getNextValue()));
+		switch (p.getType()) {
+		case VARIABLE:
+			buffer.put((byte) length);
+			break;
+		case VARIABLE_SHORT:
+			buffer.putShort((short) length);
+			break;
 		}
 	}
 
@@ -0,0 +1,286 @@
+package org.hyperion.rs2.net.ondemand;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Limits the rate ondemand data is sent at with token buckets: one shared by
+ * every session, and one for each session. Game traffic is never shaped, so
+ * the global budget leaves the rest of the uplink free for it.
+ * </p>
+ * 
+ * <p>
+ * Each bucket fills at its rate up to its capacity, and sending data takes
+ * tokens from it. A request may take more tokens than the bucket holds, so
+ * large files are not held back forever; the bucket then goes into debt, and
+ * the session (or every session, for the global bucket) is not served again
+ * until the whole debt has been repaid. While the global bucket is at least
+ * half full, the link is considered idle and sessions may burst past their
+ * own limit.
+ * </p>
+ * 
+ * <p>
+ * Tokens are reserved when a request is handed to a worker, before the size
+ * of the file is known, so that other workers see them taken straight away.
+ * The reservation is the average size of the files sent so far, and the
+ * difference is settled once the file has been written.
+ * </p>
+ */
+public class BandwidthShaper {
+
+	/**
+	 * A token bucket.
+	 */
+	public static final class Bucket {
+
+		/**
+		 * The rate the bucket fills at, in bytes per second.
+		 */
+		private final long rate;
+
+		/**
+		 * The capacity of the bucket, in bytes.
+		 */
+		private final long capacity;
+
+		/**
+		 * The number of tokens in the bucket, which is negative if it is in
+		 * debt.
+		 */
+		private double tokens;
+
+		/**
+		 * The time the bucket was last filled, in nanoseconds.
+		 */
+		private long lastFill = System.nanoTime();
+
+		/**
+		 * Creates a full bucket.
+		 * 
+		 * @param rate
+		 *            The rate the bucket fills at, in bytes per second.
+		 * @param capacity
+		 *            The capacity, in bytes.
+		 */
+		private Bucket(long rate, long capacity) {
+			this.rate = rate;
+			this.capacity = capacity;
+			this.tokens = capacity;
+		}
+
+		/**
+		 * Adds the tokens earned since the bucket was last filled. Must be
+		 * called while holding the bucket's lock.
+		 * 
+		 * @param now
+		 *            The current time, in nanoseconds.
+		 */
+		private void fill(long now) {
+			tokens = Math.min(capacity, tokens + (now - lastFill) * rate
+					/ 1000000000D);
+			lastFill = now;
+		}
+
+		/**
+		 * Gets the time until the bucket is out of debt.
+		 * 
+		 * @param now
+		 *            The current time, in nanoseconds.
+		 * @return The delay, in nanoseconds, or <code>0</code> if data may
+		 *         be sent now.
+		 */
+		private synchronized long getDelay(long now) {
+			fill(now);
+			if (tokens > 0) {
+				return 0;
+			}
+			return (long) ((1 - tokens) * 1000000000D / rate);
+		}
+
+		/**
+		 * Checks if the bucket is at least half full.
+		 * 
+		 * @param now
+		 *            The current time, in nanoseconds.
+		 * @return <code>true</code> if so, <code>false</code> if not.
+		 */
+		private synchronized boolean isIdle(long now) {
+			fill(now);
+			return tokens * 2 >= capacity;
+		}
+
+		/**
+		 * Takes tokens from the bucket, or returns them to it if the number
+		 * of bytes is negative. The debt is never limited, so every byte
+		 * sent is paid for.
+		 * 
+		 * @param bytes
+		 *            The number of bytes.
+		 * @param now
+		 *            The current time, in nanoseconds.
+		 * @return <code>true</code> if the bucket is now in debt,
+		 *         <code>false</code> if not.
+		 */
+		private synchronized boolean consume(long bytes, long now) {
+			fill(now);
+			tokens = Math.min(capacity, tokens - bytes);
+			return tokens <= 0;
+		}
+
+	}
+
+	/**
+	 * The bucket shared by every session.
+	 */
+	private final Bucket global;
+
+	/**
+	 * The rate each session's bucket fills at, in bytes per second.
+	 */
+	private final long sessionRate;
+
+	/**
+	 * The capacity of each session's bucket, in bytes.
+	 */
+	private final long sessionCapacity;
+
+	/**
+	 * The initial number of tokens reserved for a request, in bytes.
+	 */
+	private static final long INITIAL_ESTIMATE = 4096;
+
+	/**
+	 * The average size of the files sent, in bytes, which is the number of
+	 * tokens reserved for a request. Updates may be lost if several workers
+	 * settle at once, which only makes the average slightly less accurate.
+	 */
+	private final AtomicLong estimate = new AtomicLong(INITIAL_ESTIMATE);
+
+	/**
+	 * The number of bytes sent.
+	 */
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * The number of requests which left a bucket in debt.
+	 */
+	private final AtomicLong throttles = new AtomicLong();
+
+	/**
+	 * Creates the shaper.
+	 * 
+	 * @param globalRate
+	 *            The rate of the global bucket, in bytes per second.
+	 * @param globalCapacity
+	 *            The capacity of the global bucket, in bytes.
+	 * @param sessionRate
+	 *            The rate of each session's bucket, in bytes per second.
+	 * @param sessionCapacity
+	 *            The capacity of each session's bucket, in bytes.
+	 */
+	public BandwidthShaper(long globalRate, long globalCapacity,
+			long sessionRate, long sessionCapacity) {
+		this.global = new Bucket(globalRate, globalCapacity);
+		this.sessionRate = sessionRate;
+		this.sessionCapacity = sessionCapacity;
+	}
+
+	/**
+	 * Creates a bucket for a session.
+	 * 
+	 * @return The bucket.
+	 */
+	public Bucket createBucket() {
+		return new Bucket(sessionRate, sessionCapacity);
+	}
+
+	/**
+	 * Gets the time until no session may be sent data.
+	 * 
+	 * @return The delay, in nanoseconds, or <code>0</code> if sessions may
+	 *         be sent data now.
+	 */
+	public long getDelay() {
+		return global.getDelay(System.nanoTime());
+	}
+
+	/**
+	 * Gets the time until a session may be sent data, assuming the global
+	 * bucket is not in debt.
+	 * 
+	 * @param bucket
+	 *            The session's bucket.
+	 * @return The delay, in nanoseconds, or <code>0</code> if the session
+	 *         may be sent data now.
+	 */
+	public long getDelay(Bucket bucket) {
+		final long now = System.nanoTime();
+		if (global.isIdle(now)) {
+			return 0;
+		}
+		return bucket.getDelay(now);
+	}
+
+	/**
+	 * Reserves tokens for a request which is about to be served, from the
+	 * session's and the global buckets.
+	 * 
+	 * @param bucket
+	 *            The session's bucket.
+	 * @return The number of tokens reserved, which must later be passed to
+	 *         {@link #settle(Bucket, long, long)}.
+	 */
+	public long reserve(Bucket bucket) {
+		final long now = System.nanoTime();
+		final long reserved = estimate.get();
+		global.consume(reserved, now);
+		bucket.consume(reserved, now);
+		return reserved;
+	}
+
+	/**
+	 * Records data sent to a session, taking the tokens which were not
+	 * reserved or returning those which were not used.
+	 * 
+	 * @param bucket
+	 *            The session's bucket.
+	 * @param reserved
+	 *            The number of tokens reserved for the request.
+	 * @param bytes
+	 *            The number of bytes sent, or <code>0</code> if the request
+	 *            was not served.
+	 */
+	public void settle(Bucket bucket, long reserved, long bytes) {
+		final long now = System.nanoTime();
+		final boolean globalDebt = global.consume(bytes - reserved, now);
+		final boolean sessionDebt = bucket.consume(bytes - reserved, now);
+		if (bytes == 0) {
+			return;
+		}
+		bytesSent.addAndGet(bytes);
+		final long average = estimate.get();
+		estimate.set(average + (bytes - average) / 8);
+		if (globalDebt || sessionDebt) {
+			throttles.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the number of bytes sent.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Gets the number of requests which left a bucket in debt.
+	 * 
+	 * @return The number of throttle events.
+	 */
+	public long getThrottleCount() {
+		return throttles.get();
+	}
+
+}
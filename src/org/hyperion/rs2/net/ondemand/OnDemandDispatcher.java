@@ -0,0 +1,418 @@
+package org.hyperion.rs2.net.ondemand;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.mina.core.future.IoFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * <p>
+ * Hands ondemand requests to the workers.
+ * </p>
+ * 
+ * <p>
+ * Requests of a higher priority are always served first. Within a priority,
+ * the sessions with pending requests take turns: each session has its own
+ * queue, and the sessions are served round-robin, so a client which requests
+ * hundreds of files does not hold up everyone else. Pushing a request wakes a
+ * single idle worker.
+ * </p>
+ * 
+ * <p>
+ * Reading from a session is suspended while more than
+ * {@link #HIGH_WATER_MARK} bytes are waiting to be written to it, and
+ * resumed once it has fallen below {@link #LOW_WATER_MARK}, so a slow client
+ * cannot make the server queue its whole cache in memory. Such sessions are
+ * also skipped, like those which are held back, so the workers do not queue
+ * any more of their requests either.
+ * </p>
+ * 
+ * <p>
+ * Sessions which the {@link BandwidthShaper} holds back are skipped, without
+ * losing their place in the order of their own requests, until they may be
+ * sent data again.
+ * </p>
+ */
+public class OnDemandDispatcher {
+
+	/**
+	 * The number of bytes waiting to be written to a session above which
+	 * reading from it is suspended.
+	 */
+	public static final long HIGH_WATER_MARK = 256 * 1024;
+
+	/**
+	 * The number of bytes waiting to be written to a session below which
+	 * reading from it is resumed.
+	 */
+	public static final long LOW_WATER_MARK = 64 * 1024;
+
+	/**
+	 * The session attribute which holds the session's queues.
+	 */
+	private static final String QUEUE_ATTRIBUTE = "ondemandQueue";
+
+	/**
+	 * The lock which guards the queues.
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	/**
+	 * The condition the workers wait on when there are no requests.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * The sessions with pending requests of each priority, in the order they
+	 * will be served.
+	 */
+	private final List<Queue<SessionQueue>> sessions;
+
+	/**
+	 * The number of pending requests of each priority.
+	 */
+	private final int[] depths;
+
+	/**
+	 * The bandwidth shaper.
+	 */
+	private final BandwidthShaper shaper;
+
+	/**
+	 * The time, in nanoseconds, until the first session which
+	 * {@link #poll()} found to be held back may be sent data again, or
+	 * <code>Long.MAX_VALUE</code> if no session was held back.
+	 */
+	private long throttleDelay;
+
+	/**
+	 * The number of sessions which reading is suspended from.
+	 */
+	private final AtomicInteger suspended = new AtomicInteger();
+
+	/**
+	 * The number of requests which have been handed to workers.
+	 */
+	private final AtomicLong dispatched = new AtomicLong();
+
+	/**
+	 * The pending requests of a single session.
+	 */
+	private static final class SessionQueue {
+
+		/**
+		 * The session.
+		 */
+		private final IoSession session;
+
+		/**
+		 * The pending requests of each priority.
+		 */
+		private final List<Queue<OnDemandRequest>> requests;
+
+		/**
+		 * A flag indicating if reading from the session is suspended.
+		 */
+		private final AtomicBoolean suspended = new AtomicBoolean(false);
+
+		/**
+		 * A flag indicating {@link OnDemandDispatcher#poll()} skipped the
+		 * session because too many bytes were waiting to be written to it,
+		 * so a worker must be woken once they have been written.
+		 */
+		private volatile boolean backlogged = false;
+
+		/**
+		 * The session's token bucket.
+		 */
+		private final BandwidthShaper.Bucket bucket;
+
+		/**
+		 * Creates the session queue.
+		 * 
+		 * @param session
+		 *            The session.
+		 * @param priorities
+		 *            The number of priorities.
+		 * @param bucket
+		 *            The session's token bucket.
+		 */
+		private SessionQueue(IoSession session, int priorities,
+				BandwidthShaper.Bucket bucket) {
+			this.session = session;
+			this.bucket = bucket;
+			requests = new ArrayList<Queue<OnDemandRequest>>(priorities);
+			for (int i = 0; i < priorities; i++) {
+				requests.add(new LinkedList<OnDemandRequest>());
+			}
+		}
+
+	}
+
+	/**
+	 * Creates the dispatcher.
+	 * 
+	 * @param priorities
+	 *            The number of priorities. Priority 0 is served first.
+	 * @param shaper
+	 *            The bandwidth shaper.
+	 */
+	public OnDemandDispatcher(int priorities, BandwidthShaper shaper) {
+		this.shaper = shaper;
+		sessions = new ArrayList<Queue<SessionQueue>>(priorities);
+		for (int i = 0; i < priorities; i++) {
+			sessions.add(new LinkedList<SessionQueue>());
+		}
+		depths = new int[priorities];
+	}
+
+	/**
+	 * Pushes a request and wakes up one waiting worker.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @param priority
+	 *            The priority, from 0 to the number of priorities minus one.
+	 */
+	public void push(OnDemandRequest request, int priority) {
+		final IoSession session = request.getSession();
+		SessionQueue queue = (SessionQueue) session
+				.getAttribute(QUEUE_ATTRIBUTE);
+		if (queue == null) {
+			final SessionQueue newQueue = new SessionQueue(session,
+					depths.length, shaper.createBucket());
+			queue = (SessionQueue) session.setAttributeIfAbsent(
+					QUEUE_ATTRIBUTE, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		lock.lock();
+		try {
+			final Queue<OnDemandRequest> requests = queue.requests
+					.get(priority);
+			if (requests.isEmpty()) {
+				sessions.get(priority).add(queue);
+			}
+			requests.add(request);
+			depths[priority]++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next request, waiting until there is one which the bandwidth
+	 * shaper allows to be sent.
+	 * 
+	 * @return The request.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public OnDemandRequest take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long delay = shaper.getDelay();
+				if (delay == 0) {
+					final OnDemandRequest request = poll();
+					if (request != null) {
+						return request;
+					}
+					delay = throttleDelay;
+				}
+				if (delay == Long.MAX_VALUE) {
+					notEmpty.await();
+				} else {
+					notEmpty.awaitNanos(delay);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next request from a session which the bandwidth shaper allows
+	 * to be sent data, and which does not have too many bytes waiting to be
+	 * written to it, and reserves tokens for it, so workers which call this
+	 * before the request is written see them taken. Must be called while
+	 * holding the lock.
+	 * 
+	 * @return The request, or <code>null</code> if there are no requests or
+	 *         every session with requests is being held back, in which case
+	 *         {@link #throttleDelay} is set if any were held back by the
+	 *         shaper.
+	 */
+	private OnDemandRequest poll() {
+		throttleDelay = Long.MAX_VALUE;
+		for (int priority = 0; priority < depths.length; priority++) {
+			final Queue<SessionQueue> ring = sessions.get(priority);
+			for (int i = ring.size(); i > 0; i--) {
+				final SessionQueue queue = ring.poll();
+				final long scheduled = queue.session.getScheduledWriteBytes();
+				if (queue.suspended.get() || scheduled > HIGH_WATER_MARK) {
+					queue.backlogged = true;
+					ring.add(queue);
+					continue;
+				}
+				final long delay = shaper.getDelay(queue.bucket);
+				if (delay > 0) {
+					ring.add(queue);
+					throttleDelay = Math.min(throttleDelay, delay);
+					continue;
+				}
+				final Queue<OnDemandRequest> requests = queue.requests
+						.get(priority);
+				final OnDemandRequest request = requests.poll();
+				if (!requests.isEmpty()) {
+					ring.add(queue);
+				}
+				request.setReserved(shaper.reserve(queue.bucket));
+				depths[priority]--;
+				dispatched.incrementAndGet();
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records the data sent to a session after a request has been served,
+	 * and applies backpressure to the session. If too many bytes are waiting
+	 * to be written, reading from the session is suspended until the write
+	 * of the request completes and enough of the backlog has been written.
+	 * If the session was skipped because of its backlog, a worker is woken
+	 * once it may be served again.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @param future
+	 *            The future of the write.
+	 * @param length
+	 *            The number of bytes written, which are settled against the
+	 *            tokens reserved for the request.
+	 */
+	public void written(OnDemandRequest request, WriteFuture future,
+			int length) {
+		final IoSession session = request.getSession();
+		final SessionQueue queue = (SessionQueue) session
+				.getAttribute(QUEUE_ATTRIBUTE);
+		if (queue == null) {
+			return;
+		}
+		shaper.settle(queue.bucket, request.getReserved(), length);
+		if (session.getScheduledWriteBytes() > HIGH_WATER_MARK
+				&& queue.suspended.compareAndSet(false, true)) {
+			suspended.incrementAndGet();
+			session.suspendRead();
+		}
+		future.addListener(new IoFutureListener<IoFuture>() {
+			@Override
+			public void operationComplete(IoFuture future) {
+				if ((!session.isConnected() || session
+						.getScheduledWriteBytes() <= LOW_WATER_MARK)
+						&& queue.suspended.compareAndSet(true, false)) {
+					suspended.decrementAndGet();
+					session.resumeRead();
+				}
+				if (queue.backlogged && !queue.suspended.get()
+						&& session.getScheduledWriteBytes() <= HIGH_WATER_MARK) {
+					queue.backlogged = false;
+					lock.lock();
+					try {
+						notEmpty.signal();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the tokens reserved for a request which was not served.
+	 * 
+	 * @param request
+	 *            The request.
+	 */
+	public void cancelled(OnDemandRequest request) {
+		final SessionQueue queue = (SessionQueue) request.getSession()
+				.getAttribute(QUEUE_ATTRIBUTE);
+		if (queue != null) {
+			shaper.settle(queue.bucket, request.getReserved(), 0);
+		}
+	}
+
+	/**
+	 * Gets the number of pending requests of a priority.
+	 * 
+	 * @param priority
+	 *            The priority.
+	 * @return The number of pending requests.
+	 */
+	public int getQueueDepth(int priority) {
+		lock.lock();
+		try {
+			return depths[priority];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of sessions with pending requests of a priority.
+	 * 
+	 * @param priority
+	 *            The priority.
+	 * @return The number of sessions.
+	 */
+	public int getQueuedSessionCount(int priority) {
+		lock.lock();
+		try {
+			return sessions.get(priority).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of sessions which reading is suspended from.
+	 * 
+	 * @return The number of suspended sessions.
+	 */
+	public int getSuspendedSessionCount() {
+		return suspended.get();
+	}
+
+	/**
+	 * Gets the bandwidth shaper.
+	 * 
+	 * @return The bandwidth shaper.
+	 */
+	public BandwidthShaper getShaper() {
+		return shaper;
+	}
+
+	/**
+	 * Gets the number of requests which have been handed to workers.
+	 * 
+	 * @return The number of requests.
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.hyperion.rs2.net.ondemand;
+
+import java.nio.ByteBuffer;
+
+import org.hyperion.cache.CacheFile;
+import org.hyperion.cache.FileCache;
+
+/**
+ * Splits cache files into the blocks they are sent to the client in, each
+ * with its header, so a file kept in the {@link FileCache} can be written to
+ * any number of sessions without being split again.
+ */
+public class OnDemandEncoder implements FileCache.Encoder {
+
+	/**
+	 * The maximum number of bytes of file data in each block.
+	 */
+	public static final int BLOCK_SIZE = 500;
+
+	/**
+	 * The size of the header of each block.
+	 */
+	public static final int HEADER_SIZE = 6;
+
+	@Override
+	public ByteBuffer encode(CacheFile file) {
+		final ByteBuffer data = file.getBuffer().duplicate();
+		data.position(0);
+		/*
+		 * Ondemand cache n is stored in index n + 1, and the id of a cache
+		 * file is one more than the index it was read from.
+		 */
+		final int cacheId = file.getCache() - 2;
+		final int fileId = file.getFile();
+		final int totalSize = data.remaining();
+		final int blocks = (totalSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final ByteBuffer buf = ByteBuffer.allocate(totalSize + blocks
+				* HEADER_SIZE);
+		for (int i = 0; i < blocks; i++) {
+			final int blockSize = Math.min(BLOCK_SIZE, data.remaining());
+			buf.put((byte) cacheId);
+			buf.put((byte) (fileId >> 8));
+			buf.put((byte) fileId);
+			buf.put((byte) (totalSize >> 8));
+			buf.put((byte) totalSize);
+			buf.put((byte) i);
+			final ByteBuffer block = data.duplicate();
+			block.limit(block.position() + blockSize);
+			buf.put(block);
+			data.position(data.position() + blockSize);
+		}
+		buf.flip();
+		return buf;
+	}
+
+}
@@ -1,9 +1,13 @@
 package org.hyperion.rs2.net.ondemand;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+
+import org.hyperion.cache.Cache;
+import org.hyperion.cache.FileCache;
+import org.hyperion.rs2.Constants;
 
 /**
  * <p>
@@ -12,15 +16,14 @@ import java.util.concurrent.LinkedBlockingQueue;
  * </p>
  * 
  * <p>
- * When an ondemand request is submitted, it is added to the appropriate queue
- * and then the workers are notified about this. The workers can then service
- * requests.
+ * When an ondemand request is submitted, it is handed to the dispatcher,
+ * which wakes up a worker to service it. See {@link OnDemandDispatcher} for
+ * the order requests are served in.
  * </p>
  * 
  * @author Graham Edgecombe
  * 
  */
-@SuppressWarnings("unchecked")
 public class OnDemandPool {
 
 	/**
@@ -28,6 +31,32 @@ public class OnDemandPool {
 	 */
 	private static final int POOL_SIZE = 20;
 
+	/**
+	 * The number of request priorities.
+	 */
+	public static final int PRIORITY_COUNT = 3;
+
+	/**
+	 * The rate ondemand data is sent to all sessions at, in bytes per second.
+	 */
+	private static final long GLOBAL_RATE = 4 * 1024 * 1024;
+
+	/**
+	 * The number of bytes which may be sent to all sessions in a burst.
+	 */
+	private static final long GLOBAL_BURST = 1024 * 1024;
+
+	/**
+	 * The rate ondemand data is sent to each session at while the link is
+	 * busy, in bytes per second.
+	 */
+	private static final long SESSION_RATE = 256 * 1024;
+
+	/**
+	 * The number of bytes which may be sent to each session in a burst.
+	 */
+	private static final long SESSION_BURST = 128 * 1024;
+
 	/**
 	 * The ondemand pool instance.
 	 */
@@ -49,42 +78,81 @@ public class OnDemandPool {
 			.newFixedThreadPool(POOL_SIZE);
 
 	/**
-	 * The request queues.
+	 * The dispatcher.
 	 */
-	private final BlockingQueue<OnDemandRequest>[] queues = new LinkedBlockingQueue[3];
+	private final OnDemandDispatcher dispatcher = new OnDemandDispatcher(
+			PRIORITY_COUNT, new BandwidthShaper(GLOBAL_RATE, GLOBAL_BURST,
+					SESSION_RATE, SESSION_BURST));
 
 	/**
-	 * Creates the thread pool, request queues and workers.
+	 * The shared cache.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The file cache, which keeps popular files in memory, already split into
+	 * blocks.
+	 */
+	private final FileCache fileCache;
+
+	/**
+	 * Creates the thread pool and workers.
 	 */
 	private OnDemandPool() {
-		for (int i = 0; i < queues.length; i++) {
-			queues[i] = new LinkedBlockingQueue<OnDemandRequest>();
+		try {
+			cache = Cache.acquire();
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
 		}
+		fileCache = new FileCache(cache, Constants.CACHE_BUDGET, new OnDemandEncoder());
 		for (int i = 0; i < POOL_SIZE; i++) {
-			try {
-				service.submit(new OnDemandWorker(queues));
-			} catch (final Exception e) {
-				throw new RuntimeException(e);
-			}
+			service.submit(new OnDemandWorker(fileCache, dispatcher));
+		}
+	}
+
+	/**
+	 * Loads the hot set of files into memory, if a hot set file exists.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void warm() throws IOException {
+		final File hotSet = new File(Constants.HOT_SET_FILE);
+		if (hotSet.exists()) {
+			fileCache.warm(hotSet);
 		}
 	}
 
 	/**
-	 * Pushes a new request onto the appropriate queue and notifies the workers
-	 * about this change.
+	 * Gets the file cache.
+	 * 
+	 * @return The file cache.
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+
+	/**
+	 * Gets the dispatcher.
+	 * 
+	 * @return The dispatcher.
+	 */
+	public OnDemandDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Pushes a new request to the dispatcher, which wakes up a worker.
 	 * 
 	 * @param request
 	 *            The ondemand request.
 	 */
 	public void pushRequest(OnDemandRequest request) {
 		final int priority = request.getPriority() - 1;
-		if (priority < 0 || priority >= queues.length) {
+		if (priority < 0 || priority >= PRIORITY_COUNT) {
 			return;
 		}
-		queues[priority].offer(request);
-		synchronized (this) {
-			notifyAll();
-		}
+		dispatcher.push(request, priority);
 	}
 
 }
@@ -1,10 +1,13 @@
 package org.hyperion.rs2.net.ondemand;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
-import org.hyperion.cache.Cache;
-import org.hyperion.rs2.net.PacketBuilder;
+import org.hyperion.cache.FileCache;
+import org.hyperion.rs2.net.Packet;
 
 /**
  * <p>
@@ -36,6 +39,11 @@ public class OnDemandRequest {
 	 */
 	private final int priority;
 
+	/**
+	 * The number of bandwidth tokens reserved for the request.
+	 */
+	private long reserved;
+
 	/**
 	 * Creates the request.
 	 * 
@@ -57,39 +65,51 @@ public class OnDemandRequest {
 	}
 
 	/**
-	 * Services the request.
+	 * Gets the blocks of the requested file. The file cache holds the file
+	 * already split into blocks, so the whole file can be written as a single
+	 * buffer which shares its data.
+	 * 
+	 * @param cache
+	 *            The file cache.
+	 * @return The blocks, or <code>null</code> if there is nothing to send
+	 *         because the session has been closed, the file is empty or it
+	 *         could not be read.
 	 */
-	public void service(Cache cache) {
+	public ByteBuffer getBlocks(FileCache cache) {
+		if (!session.isConnected()) {
+			return null;
+		}
 		try {
-			final byte[] data = cache.getFile(cacheId + 1, fileId).getBytes();
-			final int totalSize = data.length;
-			int roundedSize = totalSize;
-			while (roundedSize % 500 != 0) {
-				roundedSize++;
-			}
-			final int blocks = roundedSize / 500;
-			int sentBytes = 0;
-			for (int i = 0; i < blocks; i++) {
-				int blockSize = totalSize - sentBytes;
-				final PacketBuilder bldr = new PacketBuilder();
-				bldr.put((byte) cacheId);
-				bldr.put((byte) (fileId >> 8));
-				bldr.put((byte) fileId);
-				bldr.put((byte) (totalSize >> 8));
-				bldr.put((byte) totalSize);
-				bldr.put((byte) i);
-				if (blockSize > 500) {
-					blockSize = 500;
-				}
-				bldr.put(data, sentBytes, blockSize);
-				sentBytes += blockSize;
-				session.write(bldr.toPacket());
-			}
+			final ByteBuffer blocks = cache.getFile(cacheId + 1, fileId)
+					.getBuffer();
+			return blocks.hasRemaining() ? blocks : null;
 		} catch (final IOException ex) {
 			session.close(false);
+			return null;
 		}
 	}
 
+	/**
+	 * Writes the blocks of the requested file.
+	 * 
+	 * @param blocks
+	 *            The blocks.
+	 * @return The future of the write.
+	 */
+	public WriteFuture write(ByteBuffer blocks) {
+		return session.write(new Packet(-1, Packet.Type.FIXED, IoBuffer
+				.wrap(blocks)));
+	}
+
+	/**
+	 * Gets the session.
+	 * 
+	 * @return The session.
+	 */
+	public IoSession getSession() {
+		return session;
+	}
+
 	/**
 	 * Gets the priority.
 	 * 
@@ -99,4 +119,23 @@ public class OnDemandRequest {
 		return priority;
 	}
 
+	/**
+	 * Gets the number of bandwidth tokens reserved for the request.
+	 * 
+	 * @return The number of tokens.
+	 */
+	long getReserved() {
+		return reserved;
+	}
+
+	/**
+	 * Sets the number of bandwidth tokens reserved for the request.
+	 * 
+	 * @param reserved
+	 *            The number of tokens.
+	 */
+	void setReserved(long reserved) {
+		this.reserved = reserved;
+	}
+
 }
@@ -1,11 +1,8 @@
 package org.hyperion.rs2.net.ondemand;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
 
-import org.hyperion.cache.Cache;
-import org.hyperion.cache.InvalidCacheException;
+import org.hyperion.cache.FileCache;
 
 /**
  * <p>
@@ -19,46 +16,43 @@ import org.hyperion.cache.InvalidCacheException;
 public class OnDemandWorker implements Runnable {
 
 	/**
-	 * The cache instance.
+	 * The file cache.
 	 */
-	private final Cache cache;
+	private final FileCache cache;
 
 	/**
-	 * The array of request queues.
+	 * The dispatcher.
 	 */
-	private final BlockingQueue<OnDemandRequest>[] queues;
+	private final OnDemandDispatcher dispatcher;
 
 	/**
 	 * Creates the ondemand worker.
 	 * 
-	 * @param queues
-	 *            The array of request queues.
-	 * @throws FileNotFoundException
-	 *             if the cache could not be found.
-	 * @throws InvalidCacheException
-	 *             if the cache is invalid.
+	 * @param cache
+	 *            The file cache, which is shared by all of the workers.
+	 * @param dispatcher
+	 *            The dispatcher, which is shared by all of the workers.
 	 */
-	public OnDemandWorker(BlockingQueue<OnDemandRequest>[] queues)
-			throws FileNotFoundException, InvalidCacheException {
-		cache = new Cache(new File("./data/cache/"));
-		this.queues = queues;
+	public OnDemandWorker(FileCache cache, OnDemandDispatcher dispatcher) {
+		this.cache = cache;
+		this.dispatcher = dispatcher;
 	}
 
 	@Override
 	public void run() {
 		while (true) {
-			for (final BlockingQueue<OnDemandRequest> activeQueue : queues) {
-				OnDemandRequest request;
-				while ((request = activeQueue.poll()) != null) {
-					request.service(cache);
-				}
+			final OnDemandRequest request;
+			try {
+				request = dispatcher.take();
+			} catch (final InterruptedException e) {
+				return;
 			}
-			synchronized (OnDemandPool.getOnDemandPool()) {
-				try {
-					OnDemandPool.getOnDemandPool().wait();
-				} catch (final InterruptedException e) {
-					continue;
-				}
+			final ByteBuffer blocks = request.getBlocks(cache);
+			if (blocks != null) {
+				final int length = blocks.remaining();
+				dispatcher.written(request, request.write(blocks), length);
+			} else {
+				dispatcher.cancelled(request);
 			}
 		}
 	}
@@ -1,17 +1,23 @@
 package org.hyperion.rs2.packet;
 
+import java.util.Map;
+
+import org.hyperion.cache.Cache;
+import org.hyperion.cache.FileCache;
+import org.hyperion.fileserver.RequestHandler;
+import org.hyperion.fileserver.RequestMetrics;
 import org.hyperion.rs2.model.Animation;
 import org.hyperion.rs2.model.Graphic;
 import org.hyperion.rs2.model.Item;
 import org.hyperion.rs2.model.Location;
 import org.hyperion.rs2.model.Player;
 import org.hyperion.rs2.model.Skills;
+import org.hyperion.rs2.model.World;
 import org.hyperion.rs2.model.container.Bank;
 import org.hyperion.rs2.net.Packet;
-import org.hyperion.rs2.pf.AStarPathFinder;
-import org.hyperion.rs2.pf.Path;
-import org.hyperion.rs2.pf.PathFinder;
-import org.hyperion.rs2.pf.Point;
+import org.hyperion.rs2.net.ondemand.OnDemandDispatcher;
+import org.hyperion.rs2.net.ondemand.OnDemandPool;
+import org.hyperion.rs2.pf.PathFindingService;
 import org.hyperion.rs2.pf.Tile;
 import org.hyperion.rs2.pf.TileMap;
 import org.hyperion.rs2.pf.TileMapBuilder;
@@ -127,34 +133,80 @@ public class CommandPacketHandler implements PacketHandler {
 			} else if (command.startsWith("goto")) {
 				if (args.length == 3) {
 					try {
-						final int radius = 16;
-
-						final int x = Integer.parseInt(args[1])
-								- player.getLocation().getX() + radius;
-						final int y = Integer.parseInt(args[2])
-								- player.getLocation().getY() + radius;
-
-						final TileMapBuilder bldr = new TileMapBuilder(
-								player.getLocation(), radius);
-						final TileMap map = bldr.build();
-
-						final PathFinder pf = new AStarPathFinder();
-						final Path p = pf.findPath(player.getLocation(),
-								radius, map, radius, radius, x, y);
-
-						if (p == null) {
-							return;
-						}
-
-						player.getWalkingQueue().reset();
-						for (final Point p2 : p.getPoints()) {
-							player.getWalkingQueue().addStep(p2.getX(),
-									p2.getY());
-						}
+						final Location destination = Location.create(
+								Integer.parseInt(args[1]),
+								Integer.parseInt(args[2]), player.getLocation()
+										.getZ());
+						World.getWorld().getPathFindingService()
+								.submit(player, destination);
 					} catch (final Throwable ex) {
 						ex.printStackTrace();
 					}
 				}
+			} else if (command.startsWith("pfstats")) {
+				final PathFindingService service = World.getWorld()
+						.getPathFindingService();
+				player.getActionSender().sendMessage(
+						"Queued: " + service.getQueueDepth() + " Searches: "
+								+ service.getSearchCount() + " Expired: "
+								+ service.getExpiredCount());
+				player.getActionSender().sendMessage(
+						"Latency avg: " + service.getAverageLatency()
+								+ "ms max: " + service.getMaximumLatency()
+								+ "ms");
+			} else if (command.startsWith("fsstats")) {
+				for (final Map.Entry<String, RequestMetrics> entry : RequestHandler
+						.getMetrics().entrySet()) {
+					final RequestMetrics metrics = entry.getValue();
+					player.getActionSender().sendMessage(
+							entry.getKey() + " Requests: "
+									+ metrics.getRequestCount() + " Bytes: "
+									+ metrics.getBytesServed()
+									+ " Latency avg: "
+									+ metrics.getAverageLatency()
+									+ "ms max: "
+									+ metrics.getMaximumLatency() + "ms");
+				}
+			} else if (command.startsWith("odstats")) {
+				final OnDemandDispatcher dispatcher = OnDemandPool
+						.getOnDemandPool().getDispatcher();
+				for (int i = 0; i < OnDemandPool.PRIORITY_COUNT; i++) {
+					player.getActionSender().sendMessage(
+							"Priority " + (i + 1) + " Queued: "
+									+ dispatcher.getQueueDepth(i)
+									+ " Sessions: "
+									+ dispatcher.getQueuedSessionCount(i));
+				}
+				player.getActionSender().sendMessage(
+						"Dispatched: " + dispatcher.getDispatchedCount()
+								+ " Suspended: "
+								+ dispatcher.getSuspendedSessionCount());
+				player.getActionSender().sendMessage(
+						"Bytes sent: "
+								+ dispatcher.getShaper().getBytesSent()
+								+ " Throttled: "
+								+ dispatcher.getShaper().getThrottleCount());
+			} else if (command.startsWith("cachestats")) {
+				final Cache cache = Cache.getSharedCache();
+				if (cache == null) {
+					player.getActionSender().sendMessage(
+							"The cache has not been opened.");
+				} else {
+					player.getActionSender().sendMessage(
+							"Reads: " + cache.getReadCount() + " Bytes: "
+									+ cache.getBytesRead() + " Latency avg: "
+									+ cache.getAverageLatency()
+									+ "us References: "
+									+ Cache.getSharedReferenceCount());
+				}
+				final FileCache fileCache = OnDemandPool.getOnDemandPool()
+						.getFileCache();
+				player.getActionSender().sendMessage(
+						"File cache hit rate: " + fileCache.getHitRate()
+								+ " Coalesce rate: "
+								+ fileCache.getCoalesceRate() + " Size: "
+								+ fileCache.getSize() + " Evictions: "
+								+ fileCache.getEvictionCount());
 			} else if (command.startsWith("tmask")) {
 				final int radius = 0;
 				final TileMapBuilder bldr = new TileMapBuilder(
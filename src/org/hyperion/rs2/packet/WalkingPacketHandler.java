@@ -1,6 +1,7 @@
 package org.hyperion.rs2.packet;
 
 import org.hyperion.rs2.model.Player;
+import org.hyperion.rs2.model.World;
 import org.hyperion.rs2.net.Packet;
 
 /**
@@ -18,6 +19,7 @@ public class WalkingPacketHandler implements PacketHandler {
 			size -= 14;
 		}
 
+		World.getWorld().getPathFindingService().cancel(player);
 		player.getWalkingQueue().reset();
 		player.getActionQueue().clearNonWalkableActions();
 		player.resetInteractingEntity();
@@ -1,7 +1,6 @@
 package org.hyperion.rs2.pf;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 import org.hyperion.rs2.model.Location;
 
@@ -10,6 +9,11 @@ import org.hyperion.rs2.model.Location;
  * algorithm. Unlike the <code>DumbPathFinder</code>, this will attempt to find
  * a possible path and is more suited for player following.
  * 
+ * Nodes are identified by an <code>int</code> (<code>x * height + y</code>)
+ * and all per-search state lives in primitive arrays which are reused between
+ * searches on the same thread, so a search allocates nothing but the returned
+ * <code>Path</code>.
+ * 
  * @author Graham Edgecombe
  * 
  */
@@ -21,317 +25,432 @@ public class AStarPathFinder implements PathFinder {
 	private static final int COST_STRAIGHT = 10;
 
 	/**
-	 * Represents a node used by the A* algorithm.
-	 * 
-	 * @author Graham Edgecombe
-	 * 
+	 * The cost of moving diagonally (approximately 10 * sqrt(2)).
+	 */
+	private static final int COST_DIAGONAL = 14;
+
+	/**
+	 * The x offsets of the eight neighbours of a node.
+	 */
+	private static final int[] NEIGHBOUR_DELTA_X = { -1, 1, -1, 1, -1, 1, 0, 0 };
+
+	/**
+	 * The y offsets of the eight neighbours of a node.
+	 */
+	private static final int[] NEIGHBOUR_DELTA_Y = { 1, 1, -1, -1, 0, 0, -1, 1 };
+
+	/**
+	 * Holds the reusable per-thread state of a search.
 	 */
-	private static class Node implements Comparable<Node> {
+	private static final class Scratch {
 
 		/**
-		 * The parent node.
+		 * The cost from the source to each node.
 		 */
-		private Node parent;
+		private int[] cost = new int[0];
 
 		/**
-		 * The cost.
+		 * The estimated total cost (cost + heuristic) of each node.
 		 */
-		private int cost;
+		private int[] estimate = new int[0];
 
 		/**
-		 * The heuristic.
+		 * The parent of each node.
 		 */
-		private int heuristic;
+		private int[] parent = new int[0];
 
 		/**
-		 * The depth.
+		 * The generation in which each node was last opened. If this does not
+		 * equal the current generation, the node has not been seen yet.
 		 */
-		private int depth;
+		private int[] seen = new int[0];
 
 		/**
-		 * The x coordinate.
+		 * The generation in which each node was last closed.
 		 */
-		private final int x;
+		private int[] closed = new int[0];
 
 		/**
-		 * The y coordinate.
+		 * The position of each node in the open heap.
 		 */
-		private final int y;
+		private int[] heapIndex = new int[0];
 
 		/**
-		 * Creates a node.
-		 * 
-		 * @param x
-		 *            The x coordinate.
-		 * @param y
-		 *            The y coordinate.
+		 * The binary min-heap of open node ids, ordered by estimate.
 		 */
-		public Node(int x, int y) {
-			this.x = x;
-			this.y = y;
-		}
+		private int[] heap = new int[0];
+
+		/**
+		 * The number of nodes in the open heap.
+		 */
+		private int heapSize;
 
 		/**
-		 * Sets the parent.
+		 * The current generation.
+		 */
+		private int generation;
+
+		/**
+		 * Prepares the scratch space for a search over the specified number of
+		 * nodes.
 		 * 
-		 * @param parent
-		 *            The parent.
+		 * @param nodes
+		 *            The number of nodes.
 		 */
-		public void setParent(Node parent) {
-			this.parent = parent;
+		public void begin(int nodes) {
+			if (cost.length < nodes) {
+				cost = new int[nodes];
+				estimate = new int[nodes];
+				parent = new int[nodes];
+				seen = new int[nodes];
+				closed = new int[nodes];
+				heapIndex = new int[nodes];
+				heap = new int[nodes];
+				generation = 0;
+			}
+			heapSize = 0;
+			if (++generation == Integer.MAX_VALUE) {
+				/*
+				 * Very unlikely, but stale stamps could match a recycled
+				 * generation so wipe them.
+				 */
+				Arrays.fill(seen, 0);
+				Arrays.fill(closed, 0);
+				generation = 1;
+			}
 		}
 
 		/**
-		 * Gets the parent node.
+		 * Checks if a node has been opened during this search.
 		 * 
-		 * @return The parent node.
+		 * @param node
+		 *            The node id.
+		 * @return <code>true</code> if so, <code>false</code> if not.
 		 */
-		public Node getParent() {
-			return parent;
+		public boolean isSeen(int node) {
+			return seen[node] == generation;
 		}
 
-		public void setCost(int cost) {
-			this.cost = cost;
+		/**
+		 * Checks if a node has been closed during this search.
+		 * 
+		 * @param node
+		 *            The node id.
+		 * @return <code>true</code> if so, <code>false</code> if not.
+		 */
+		public boolean isClosed(int node) {
+			return closed[node] == generation;
 		}
 
-		public int getCost() {
-			return cost;
+		/**
+		 * Opens or updates a node.
+		 * 
+		 * @param node
+		 *            The node id.
+		 * @param parentNode
+		 *            The parent node id.
+		 * @param nodeCost
+		 *            The cost from the source.
+		 * @param heuristic
+		 *            The estimated cost to the destination.
+		 */
+		public void open(int node, int parentNode, int nodeCost, int heuristic) {
+			parent[node] = parentNode;
+			cost[node] = nodeCost;
+			estimate[node] = nodeCost + heuristic;
+			if (seen[node] == generation) {
+				siftUp(heapIndex[node]);
+			} else {
+				seen[node] = generation;
+				heap[heapSize] = node;
+				heapIndex[node] = heapSize;
+				siftUp(heapSize++);
+			}
 		}
 
 		/**
-		 * Gets the X coordinate.
+		 * Removes the open node with the lowest estimate and closes it.
 		 * 
-		 * @return The X coordinate.
+		 * @return The node id.
 		 */
-		public int getX() {
-			return x;
+		public int poll() {
+			final int node = heap[0];
+			final int last = heap[--heapSize];
+			if (heapSize > 0) {
+				heap[0] = last;
+				heapIndex[last] = 0;
+				siftDown(0);
+			}
+			closed[node] = generation;
+			return node;
 		}
 
 		/**
-		 * Gets the Y coordinate.
+		 * Checks if one node should be expanded before another. Ties on the
+		 * estimate are broken in favour of the node closest to the
+		 * destination.
 		 * 
-		 * @return The Y coordinate.
+		 * @param a
+		 *            The first node.
+		 * @param b
+		 *            The second node.
+		 * @return <code>true</code> if <code>a</code> comes first.
 		 */
-		public int getY() {
-			return y;
+		private boolean before(int a, int b) {
+			if (estimate[a] != estimate[b]) {
+				return estimate[a] < estimate[b];
+			}
+			return cost[a] > cost[b];
 		}
 
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + cost;
-			result = prime * result + depth;
-			result = prime * result + heuristic;
-			result = prime * result + (parent == null ? 0 : parent.hashCode());
-			result = prime * result + x;
-			result = prime * result + y;
-			return result;
+		/**
+		 * Moves a heap entry up until the heap property holds.
+		 * 
+		 * @param index
+		 *            The heap index.
+		 */
+		private void siftUp(int index) {
+			final int node = heap[index];
+			while (index > 0) {
+				final int parentIndex = (index - 1) >> 1;
+				final int parentNode = heap[parentIndex];
+				if (!before(node, parentNode)) {
+					break;
+				}
+				heap[index] = parentNode;
+				heapIndex[parentNode] = index;
+				index = parentIndex;
+			}
+			heap[index] = node;
+			heapIndex[node] = index;
 		}
 
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) {
-				return true;
-			}
-			if (obj == null) {
-				return false;
-			}
-			if (getClass() != obj.getClass()) {
-				return false;
-			}
-			final Node other = (Node) obj;
-			if (cost != other.cost) {
-				return false;
-			}
-			if (depth != other.depth) {
-				return false;
-			}
-			if (heuristic != other.heuristic) {
-				return false;
-			}
-			if (parent == null) {
-				if (other.parent != null) {
-					return false;
+		/**
+		 * Moves a heap entry down until the heap property holds.
+		 * 
+		 * @param index
+		 *            The heap index.
+		 */
+		private void siftDown(int index) {
+			final int node = heap[index];
+			final int half = heapSize >> 1;
+			while (index < half) {
+				int child = (index << 1) + 1;
+				final int right = child + 1;
+				if (right < heapSize && before(heap[right], heap[child])) {
+					child = right;
 				}
-			} else if (!parent.equals(other.parent)) {
-				return false;
-			}
-			if (x != other.x) {
-				return false;
-			}
-			if (y != other.y) {
-				return false;
+				if (!before(heap[child], node)) {
+					break;
+				}
+				heap[index] = heap[child];
+				heapIndex[heap[index]] = index;
+				index = child;
 			}
-			return true;
+			heap[index] = node;
+			heapIndex[node] = index;
 		}
 
+	}
+
+	/**
+	 * The scratch space for each thread that performs searches.
+	 */
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
 		@Override
-		public int compareTo(Node arg0) {
-			return cost - arg0.cost;
+		protected Scratch initialValue() {
+			return new Scratch();
 		}
+	};
 
+	@Override
+	public Path findPath(Location location, int radius, TileMap map, int srcX,
+			int srcY, int dstX, int dstY) {
+		return findPath(location, radius, map, srcX, srcY, dstX, dstY, null);
 	}
 
-	private Node current;
-	private Node[][] nodes;
-	private final Set<Node> closed = new HashSet<Node>();
-	private final Set<Node> open = new HashSet<Node>();
-
 	@Override
 	public Path findPath(Location location, int radius, TileMap map, int srcX,
-			int srcY, int dstX, int dstY) {
-		if (dstX < 0 || dstY < 0 || dstX >= map.getWidth()
-				|| dstY >= map.getHeight()) {
+			int srcY, int dstX, int dstY, SearchLimit limit) {
+		final int width = map.getWidth();
+		final int height = map.getHeight();
+		if (dstX < 0 || dstY < 0 || dstX >= width || dstY >= height) {
 			return null; // out of range
 		}
-
-		nodes = new Node[map.getWidth()][map.getHeight()];
-		for (int x = 0; x < map.getWidth(); x++) {
-			for (int y = 0; y < map.getHeight(); y++) {
-				nodes[x][y] = new Node(x, y);
-			}
+		if (srcX < 0 || srcY < 0 || srcX >= width || srcY >= height) {
+			return null;
 		}
 
-		open.add(nodes[srcX][srcY]);
+		final Scratch s = scratch.get();
+		s.begin(width * height);
+
+		final int src = srcX * height + srcY;
+		final int dst = dstX * height + dstY;
+		boolean found = false;
 
-		while (open.size() > 0) {
-			current = getLowestCost();
-			if (current == nodes[dstX][dstY]) {
+		s.open(src, src, 0, estimateDistance(srcX, srcY, dstX, dstY));
+		while (s.heapSize > 0) {
+			final int current = s.poll();
+			if (current == dst) {
+				found = current != src;
 				break;
 			}
-			open.remove(current);
-			closed.add(current);
-
-			final int x = current.getX(), y = current.getY();
-
-			// north west
-			if (x > 0 && map.getTile(x - 1, y).isEasternTraversalPermitted()
-					&& map.getTile(x, y).isWesternTraversalPermitted()) {
-				if (y < map.getHeight() - 1
-						&& map.getTile(x, y + 1).isSouthernTraversalPermitted()
-						&& map.getTile(x, y).isNorthernTraversalPermitted()) {
-					final Node n = nodes[x - 1][y + 1];
-					examineNode(n);
-				}
+			if (limit != null && !limit.expand()) {
+				break;
 			}
-			// north east
-			if (x < map.getWidth() - 1
-					&& map.getTile(x + 1, y).isWesternTraversalPermitted()
-					&& map.getTile(x, y).isEasternTraversalPermitted()) {
-				if (y < map.getHeight() - 1
-						&& map.getTile(x, y + 1).isSouthernTraversalPermitted()
-						&& map.getTile(x, y).isNorthernTraversalPermitted()) {
-					final Node n = nodes[x + 1][y + 1];
-					examineNode(n);
+
+			final int x = current / height, y = current % height;
+			final int mask = map.getTile(x, y).getTraversalMask();
+			final int currentCost = s.cost[current];
+
+			for (int i = 0; i < NEIGHBOUR_DELTA_X.length; i++) {
+				final int dx = NEIGHBOUR_DELTA_X[i], dy = NEIGHBOUR_DELTA_Y[i];
+				if (!isTraversable(map, x, y, mask, dx, dy)) {
+					continue;
 				}
-			}
-			// south west
-			if (y > 0 && map.getTile(x, y - 1).isNorthernTraversalPermitted()
-					&& map.getTile(x, y).isSouthernTraversalPermitted()) {
-				if (x > 0
-						&& map.getTile(x - 1, y).isEasternTraversalPermitted()
-						&& map.getTile(x, y).isWesternTraversalPermitted()) {
-					final Node n = nodes[x - 1][y - 1];
-					examineNode(n);
+				final int nx = x + dx, ny = y + dy;
+				final int next = nx * height + ny;
+				if (s.isClosed(next)) {
+					continue;
 				}
-			}
-			// south east
-			if (y > 0 && map.getTile(x, y - 1).isNorthernTraversalPermitted()
-					&& map.getTile(x, y).isSouthernTraversalPermitted()) {
-				if (x < map.getWidth() - 1
-						&& map.getTile(x + 1, y).isWesternTraversalPermitted()
-						&& map.getTile(x, y).isEasternTraversalPermitted()) {
-					final Node n = nodes[x + 1][y - 1];
-					examineNode(n);
+				final int nextCost = currentCost
+						+ (dx != 0 && dy != 0 ? COST_DIAGONAL : COST_STRAIGHT);
+				if (!s.isSeen(next) || nextCost < s.cost[next]) {
+					s.open(next, current, nextCost,
+							estimateDistance(nx, ny, dstX, dstY));
 				}
 			}
-			// west
-			if (x > 0 && map.getTile(x - 1, y).isEasternTraversalPermitted()
-					&& map.getTile(x, y).isWesternTraversalPermitted()) {
-				final Node n = nodes[x - 1][y];
-				examineNode(n);
-			}
-			// east
-			if (x < map.getWidth() - 1
-					&& map.getTile(x + 1, y).isWesternTraversalPermitted()
-					&& map.getTile(x, y).isEasternTraversalPermitted()) {
-				final Node n = nodes[x + 1][y];
-				examineNode(n);
-			}
-			// south
-			if (y > 0 && map.getTile(x, y - 1).isNorthernTraversalPermitted()
-					&& map.getTile(x, y).isSouthernTraversalPermitted()) {
-				final Node n = nodes[x][y - 1];
-				examineNode(n);
-			}
-			// north
-			if (y < map.getHeight() - 1
-					&& map.getTile(x, y + 1).isSouthernTraversalPermitted()
-					&& map.getTile(x, y).isNorthernTraversalPermitted()) {
-				final Node n = nodes[x][y + 1];
-				examineNode(n);
-			}
 		}
 
-		if (nodes[dstX][dstY].getParent() == null) {
+		if (!found) {
 			return null;
 		}
 
+		final int offsetX = location.getX() - radius;
+		final int offsetY = location.getY() - radius;
 		final Path p = new Path();
-		Node n = nodes[dstX][dstY];
-		while (n != nodes[srcX][srcY]) {
-			p.addPoint(new Point(n.getX() + location.getX() - radius, n.getY()
-					+ location.getY() - radius));
-			n = n.getParent();
+		int n = dst;
+		while (n != src) {
+			p.addPoint(new Point(n / height + offsetX, n % height + offsetY));
+			n = s.parent[n];
 		}
-		p.addPoint(new Point(srcX + location.getX() - radius, srcY
-				+ location.getY() - radius));
+		p.addPoint(new Point(srcX + offsetX, srcY + offsetY));
 
 		return p;
 	}
 
-	private Node getLowestCost() {
-		Node curLowest = null;
-		for (final Node n : open) {
-			if (curLowest == null) {
-				curLowest = n;
-			} else {
-				if (n.getCost() < curLowest.getCost()) {
-					curLowest = n;
-				}
-			}
+	/**
+	 * Checks if a single step in the specified direction is permitted. A
+	 * diagonal step is only permitted if both of the L-shaped routes made of
+	 * straight steps to the same tile are permitted, so corners of walls and
+	 * solid objects cannot be cut, and the corner of the tile it enters does
+	 * not have a wall on it.
+	 * 
+	 * @param map
+	 *            The tile map.
+	 * @param x
+	 *            The current x coordinate.
+	 * @param y
+	 *            The current y coordinate.
+	 * @param mask
+	 *            The traversal mask of the current tile.
+	 * @param dx
+	 *            The x direction.
+	 * @param dy
+	 *            The y direction.
+	 * @return <code>true</code> if the step is permitted, <code>false</code>
+	 *         if not.
+	 */
+	private boolean isTraversable(TileMap map, int x, int y, int mask, int dx,
+			int dy) {
+		if (dx == 0 || dy == 0) {
+			return isStraightTraversable(map, x, y, mask, dx, dy);
 		}
-		return curLowest;
+		return isStraightTraversable(map, x, y, mask, dx, 0)
+				&& isStraightTraversable(map, x, y, mask, 0, dy)
+				&& isStraightTraversable(map, x + dx, y,
+						map.getTile(x + dx, y).getTraversalMask(), 0, dy)
+				&& isStraightTraversable(map, x, y + dy,
+						map.getTile(x, y + dy).getTraversalMask(), dx, 0)
+				&& (map.getTile(x + dx, y + dy).getTraversalMask() & getCorner(
+						-dx, -dy)) != 0;
 	}
 
-	private void examineNode(Node n) {
-		final int heuristic = estimateDistance(current, n);
-		final int nextStepCost = current.getCost() + heuristic;
-		if (nextStepCost < n.getCost()) {
-			open.remove(n);
-			closed.remove(n);
+	/**
+	 * Gets the traversal bit of a corner of a tile.
+	 * 
+	 * @param dx
+	 *            The x direction of the corner.
+	 * @param dy
+	 *            The y direction of the corner.
+	 * @return The traversal bit.
+	 */
+	static int getCorner(int dx, int dy) {
+		if (dx > 0) {
+			return dy > 0 ? Tile.NORTHEAST_TRAVERSAL_PERMITTED
+					: Tile.SOUTHEAST_TRAVERSAL_PERMITTED;
 		}
-		if (!open.contains(n) && !closed.contains(n)) {
-			n.setParent(current);
-			n.setCost(nextStepCost);
-			open.add(n);
+		return dy > 0 ? Tile.NORTHWEST_TRAVERSAL_PERMITTED
+				: Tile.SOUTHWEST_TRAVERSAL_PERMITTED;
+	}
+
+	/**
+	 * Checks if a single horizontal or vertical step is permitted.
+	 * 
+	 * @param map
+	 *            The tile map.
+	 * @param x
+	 *            The current x coordinate.
+	 * @param y
+	 *            The current y coordinate.
+	 * @param mask
+	 *            The traversal mask of the current tile.
+	 * @param dx
+	 *            The x direction.
+	 * @param dy
+	 *            The y direction.
+	 * @return <code>true</code> if the step is permitted, <code>false</code>
+	 *         if not.
+	 */
+	private boolean isStraightTraversable(TileMap map, int x, int y, int mask,
+			int dx, int dy) {
+		if (dx < 0) {
+			return x > 0 && (mask & Tile.WEST_TRAVERSAL_PERMITTED) != 0
+					&& map.getTile(x - 1, y).isEasternTraversalPermitted();
+		} else if (dx > 0) {
+			return x < map.getWidth() - 1
+					&& (mask & Tile.EAST_TRAVERSAL_PERMITTED) != 0
+					&& map.getTile(x + 1, y).isWesternTraversalPermitted();
+		} else if (dy < 0) {
+			return y > 0 && (mask & Tile.SOUTH_TRAVERSAL_PERMITTED) != 0
+					&& map.getTile(x, y - 1).isNorthernTraversalPermitted();
+		} else {
+			return y < map.getHeight() - 1
+					&& (mask & Tile.NORTH_TRAVERSAL_PERMITTED) != 0
+					&& map.getTile(x, y + 1).isSouthernTraversalPermitted();
 		}
 	}
 
 	/**
-	 * Estimates a distance between the two points.
+	 * Estimates the distance between two points using the octile distance,
+	 * which is admissible when diagonal steps are permitted.
 	 * 
-	 * @param src
-	 *            The source node.
-	 * @param dst
-	 *            The distance node.
+	 * @param srcX
+	 *            The source x coordinate.
+	 * @param srcY
+	 *            The source y coordinate.
+	 * @param dstX
+	 *            The destination x coordinate.
+	 * @param dstY
+	 *            The destination y coordinate.
 	 * @return The distance.
 	 */
-	public int estimateDistance(Node src, Node dst) {
-		final int deltaX = src.getX() - dst.getX();
-		final int deltaY = src.getY() - dst.getY();
-		return (Math.abs(deltaX) + Math.abs(deltaY)) * COST_STRAIGHT;
+	public int estimateDistance(int srcX, int srcY, int dstX, int dstY) {
+		final int deltaX = Math.abs(srcX - dstX);
+		final int deltaY = Math.abs(srcY - dstY);
+		return COST_STRAIGHT * (deltaX + deltaY)
+				+ (COST_DIAGONAL - 2 * COST_STRAIGHT)
+				* Math.min(deltaX, deltaY);
 	}
 
 }
@@ -11,6 +11,12 @@ import org.hyperion.rs2.model.Location;
  */
 public class DumbPathFinder implements PathFinder {
 
+	@Override
+	public Path findPath(Location location, int radius, TileMap map, int srcX,
+			int srcY, int dstX, int dstY, SearchLimit limit) {
+		return findPath(location, radius, map, srcX, srcY, dstX, dstY);
+	}
+
 	@Override
 	public Path findPath(Location location, int radius, TileMap map, int srcX,
 			int srcY, int dstX, int dstY) {
@@ -0,0 +1,844 @@
+package org.hyperion.rs2.pf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.hyperion.rs2.model.Location;
+import org.hyperion.rs2.model.World;
+import org.hyperion.rs2.model.region.RegionManager;
+
+/**
+ * A hierarchical (HPA*) path finder for long distance routes. Each region is
+ * a cluster, and the tiles where the borders between clusters can be crossed
+ * (entrances) form an abstract graph. Routes are planned on the abstract
+ * graph, and only the clusters containing the source and destination are
+ * searched tile by tile when a path is requested.
+ * 
+ * Clusters are built when they are first needed, kept in a bounded cache and
+ * invalidated by the <code>ObjectManager</code> when objects change.
+ */
+public class HierarchicalPathFinder {
+
+	/**
+	 * The size of a cluster, which is the size of a region.
+	 */
+	private static final int CLUSTER_SIZE = RegionManager.REGION_SIZE;
+
+	/**
+	 * The maximum number of clusters which are cached.
+	 */
+	private static final int MAXIMUM_CLUSTERS = 1024;
+
+	/**
+	 * Entrances at least this long get a transition at each end, shorter
+	 * entrances get a single transition in the middle.
+	 */
+	private static final int LONG_ENTRANCE = 6;
+
+	/**
+	 * The maximum number of abstract nodes expanded by one search.
+	 */
+	private static final int MAXIMUM_EXPANSIONS = 8192;
+
+	/**
+	 * The cost of moving in a straight line.
+	 */
+	private static final int COST_STRAIGHT = 10;
+
+	/**
+	 * The cost of moving diagonally.
+	 */
+	private static final int COST_DIAGONAL = 14;
+
+	/**
+	 * An edge in the abstract graph.
+	 */
+	private static final class Edge {
+
+		/**
+		 * The node this edge leads to.
+		 */
+		private final int to;
+
+		/**
+		 * The cost of the edge.
+		 */
+		private final int cost;
+
+		/**
+		 * The tiles walked along this edge, including both ends.
+		 */
+		private final List<Point> path;
+
+		/**
+		 * Creates an edge.
+		 * 
+		 * @param to
+		 *            The node this edge leads to.
+		 * @param cost
+		 *            The cost.
+		 * @param path
+		 *            The tiles walked along the edge.
+		 */
+		public Edge(int to, int cost, List<Point> path) {
+			this.to = to;
+			this.cost = cost;
+			this.path = path;
+		}
+
+	}
+
+	/**
+	 * The abstract graph of a single cluster.
+	 */
+	private static final class Cluster {
+
+		/**
+		 * The edges leaving each node in this cluster, both to other nodes
+		 * inside the cluster and across the border to neighbouring clusters.
+		 */
+		private final Map<Integer, List<Edge>> edges = new HashMap<Integer, List<Edge>>();
+
+		/**
+		 * Gets the nodes in this cluster.
+		 * 
+		 * @return The nodes.
+		 */
+		public Iterable<Integer> getNodes() {
+			return edges.keySet();
+		}
+
+		/**
+		 * Gets the edges leaving a node.
+		 * 
+		 * @param node
+		 *            The node.
+		 * @return The edges.
+		 */
+		public List<Edge> getEdges(int node) {
+			final List<Edge> list = edges.get(node);
+			if (list == null) {
+				return Collections.emptyList();
+			}
+			return list;
+		}
+
+		/**
+		 * Adds a node.
+		 * 
+		 * @param node
+		 *            The node.
+		 */
+		public void addNode(int node) {
+			if (!edges.containsKey(node)) {
+				edges.put(node, new ArrayList<Edge>());
+			}
+		}
+
+		/**
+		 * Adds an edge.
+		 * 
+		 * @param from
+		 *            The node the edge leaves.
+		 * @param edge
+		 *            The edge.
+		 */
+		public void addEdge(int from, Edge edge) {
+			addNode(from);
+			edges.get(from).add(edge);
+		}
+
+	}
+
+	/**
+	 * A node on the open list of an abstract search.
+	 */
+	private static final class SearchNode implements Comparable<SearchNode> {
+
+		/**
+		 * The node.
+		 */
+		private final int node;
+
+		/**
+		 * The cost from the source.
+		 */
+		private final int cost;
+
+		/**
+		 * The cost plus the heuristic.
+		 */
+		private final int estimate;
+
+		/**
+		 * Creates the search node.
+		 * 
+		 * @param node
+		 *            The node.
+		 * @param cost
+		 *            The cost from the source.
+		 * @param estimate
+		 *            The cost plus the heuristic.
+		 */
+		public SearchNode(int node, int cost, int estimate) {
+			this.node = node;
+			this.cost = cost;
+			this.estimate = estimate;
+		}
+
+		@Override
+		public int compareTo(SearchNode other) {
+			return estimate - other.estimate;
+		}
+
+	}
+
+	/**
+	 * The cached clusters, least recently used first.
+	 */
+	private final Map<Integer, Cluster> clusters = new LinkedHashMap<Integer, Cluster>(
+			16, 0.75f, true) {
+
+		/**
+		 * The serial version unique id.
+		 */
+		private static final long serialVersionUID = -2093471237406520314L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Cluster> eldest) {
+			return size() > MAXIMUM_CLUSTERS;
+		}
+
+	};
+
+	/**
+	 * The number of times clusters have been invalidated. A cluster is only
+	 * cached if this did not change while it was being built, as it may have
+	 * been built from flags which have since changed. Guarded by the lock of
+	 * {@link #clusters}.
+	 */
+	private long generation;
+
+	/**
+	 * The low level path finder.
+	 */
+	private final AStarPathFinder finder = new AStarPathFinder();
+
+	/**
+	 * Finds a path between two locations on the same plane.
+	 * 
+	 * @param source
+	 *            The source.
+	 * @param destination
+	 *            The destination.
+	 * @return The path, or <code>null</code> if no path was found.
+	 */
+	public Path findPath(Location source, Location destination) {
+		return findPath(source, destination, null);
+	}
+
+	/**
+	 * Finds a path between two locations on the same plane, giving up if the
+	 * search takes too long. Clusters built by a search which is given up
+	 * are not cached, as they may be incomplete.
+	 * 
+	 * @param source
+	 *            The source.
+	 * @param destination
+	 *            The destination.
+	 * @param limit
+	 *            The search limit, or <code>null</code> for no limit.
+	 * @return The path, or <code>null</code> if no path was found or the
+	 *         limit was exceeded.
+	 */
+	public Path findPath(Location source, Location destination,
+			SearchLimit limit) {
+		if (source.getZ() != destination.getZ()) {
+			return null;
+		}
+		final int z = source.getZ();
+		final int src = node(source.getX(), source.getY(), z);
+		final int dst = node(destination.getX(), destination.getY(), z);
+		if (src == dst) {
+			return null;
+		}
+		final int srcCluster = clusterOf(src);
+		final int dstCluster = clusterOf(dst);
+
+		final TileMap srcMap = buildMap(srcCluster);
+		final TileMap dstMap = srcCluster == dstCluster ? srcMap
+				: buildMap(dstCluster);
+
+		if (srcCluster == dstCluster) {
+			final List<Point> direct = findLocalPath(srcCluster, srcMap, src,
+					dst, limit);
+			if (direct != null) {
+				return toPath(direct);
+			}
+		}
+
+		/*
+		 * Connect the source and destination to the abstract graph by
+		 * searching their own clusters.
+		 */
+		final List<Edge> sourceEdges = new ArrayList<Edge>();
+		for (final int node : getCluster(srcCluster, limit).getNodes()) {
+			final List<Point> p = findLocalPath(srcCluster, srcMap, src, node,
+					limit);
+			if (p != null) {
+				sourceEdges.add(new Edge(node, cost(p), p));
+			} else if (node == src) {
+				sourceEdges.add(new Edge(node, 0, single(node)));
+			}
+		}
+		final Map<Integer, Edge> destinationEdges = new HashMap<Integer, Edge>();
+		for (final int node : getCluster(dstCluster, limit).getNodes()) {
+			final List<Point> p = findLocalPath(dstCluster, dstMap, node, dst,
+					limit);
+			if (p != null) {
+				destinationEdges.put(node, new Edge(dst, cost(p), p));
+			} else if (node == dst) {
+				destinationEdges.put(node, new Edge(dst, 0, single(node)));
+			}
+		}
+		if (sourceEdges.isEmpty() || destinationEdges.isEmpty()
+				|| limit != null && limit.isExceeded()) {
+			return null;
+		}
+
+		/*
+		 * Plan the route on the abstract graph.
+		 */
+		final Map<Integer, Integer> costs = new HashMap<Integer, Integer>();
+		final Map<Integer, Edge> parents = new HashMap<Integer, Edge>();
+		final Map<Integer, Integer> parentNodes = new HashMap<Integer, Integer>();
+		final PriorityQueue<SearchNode> open = new PriorityQueue<SearchNode>();
+		for (final Edge edge : sourceEdges) {
+			relax(open, costs, parents, parentNodes, src, edge, 0, dst);
+		}
+		int expansions = 0;
+		boolean found = false;
+		while (!open.isEmpty() && expansions++ < MAXIMUM_EXPANSIONS) {
+			final SearchNode current = open.poll();
+			if (current.cost != costs.get(current.node)) {
+				continue; // stale entry
+			}
+			if (current.node == dst) {
+				found = true;
+				break;
+			}
+			if (limit != null && !limit.expand()) {
+				break;
+			}
+			final Edge exit = destinationEdges.get(current.node);
+			if (exit != null) {
+				relax(open, costs, parents, parentNodes, current.node, exit,
+						current.cost, dst);
+			}
+			final Cluster cluster = getCluster(clusterOf(current.node), limit);
+			for (final Edge edge : cluster.getEdges(current.node)) {
+				relax(open, costs, parents, parentNodes, current.node, edge,
+						current.cost, dst);
+			}
+		}
+		if (!found || limit != null && limit.isExceeded()) {
+			return null;
+		}
+
+		/*
+		 * Join the paths of the edges on the route together.
+		 */
+		final List<List<Point>> segments = new ArrayList<List<Point>>();
+		int node = dst;
+		while (node != src) {
+			segments.add(parents.get(node).path);
+			node = parentNodes.get(node);
+		}
+		Collections.reverse(segments);
+		final List<Point> points = new ArrayList<Point>();
+		for (final List<Point> segment : segments) {
+			for (final Point p : segment) {
+				if (points.isEmpty() || !points.get(points.size() - 1).equals(p)) {
+					points.add(p);
+				}
+			}
+		}
+		return toPath(points);
+	}
+
+	/**
+	 * Invalidates the clusters affected by a change at a location, which are
+	 * the cluster it is in and those that share a border with it.
+	 * 
+	 * @param location
+	 *            The location.
+	 */
+	public void invalidate(Location location) {
+		synchronized (clusters) {
+			generation++;
+			if (clusters.isEmpty()) {
+				return;
+			}
+			final int regionX = location.getX() / CLUSTER_SIZE;
+			final int regionY = location.getY() / CLUSTER_SIZE;
+			for (int z = 0; z < 4; z++) {
+				clusters.remove(cluster(regionX, regionY, z));
+				clusters.remove(cluster(regionX - 1, regionY, z));
+				clusters.remove(cluster(regionX + 1, regionY, z));
+				clusters.remove(cluster(regionX, regionY - 1, z));
+				clusters.remove(cluster(regionX, regionY + 1, z));
+			}
+		}
+	}
+
+	/**
+	 * Offers an edge to the open list if it improves the cost of the node it
+	 * leads to.
+	 * 
+	 * @param open
+	 *            The open list.
+	 * @param costs
+	 *            The best known costs.
+	 * @param parents
+	 *            The edge used to reach each node.
+	 * @param parentNodes
+	 *            The node each edge in <code>parents</code> leaves.
+	 * @param from
+	 *            The node the edge leaves.
+	 * @param edge
+	 *            The edge.
+	 * @param cost
+	 *            The cost of <code>from</code>.
+	 * @param dst
+	 *            The destination node.
+	 */
+	private void relax(PriorityQueue<SearchNode> open,
+			Map<Integer, Integer> costs, Map<Integer, Edge> parents,
+			Map<Integer, Integer> parentNodes, int from, Edge edge, int cost,
+			int dst) {
+		final int nextCost = cost + edge.cost;
+		final Integer known = costs.get(edge.to);
+		if (known != null && known <= nextCost) {
+			return;
+		}
+		costs.put(edge.to, nextCost);
+		parents.put(edge.to, edge);
+		parentNodes.put(edge.to, from);
+		open.add(new SearchNode(edge.to, nextCost, nextCost
+				+ estimateDistance(edge.to, dst)));
+	}
+
+	/**
+	 * Gets a cluster, building it if it is not cached.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @param limit
+	 *            The search limit, or <code>null</code> for no limit.
+	 * @return The cluster, which is incomplete if the limit was exceeded
+	 *         while building it. A cluster which was invalidated while it was
+	 *         being built is returned but not cached.
+	 */
+	private Cluster getCluster(int key, SearchLimit limit) {
+		final long startGeneration;
+		synchronized (clusters) {
+			final Cluster cluster = clusters.get(key);
+			if (cluster != null) {
+				return cluster;
+			}
+			startGeneration = generation;
+		}
+		final Cluster cluster = buildCluster(key, limit);
+		if (limit != null && limit.isExceeded()) {
+			return cluster;
+		}
+		synchronized (clusters) {
+			if (generation == startGeneration) {
+				clusters.put(key, cluster);
+			}
+		}
+		return cluster;
+	}
+
+	/**
+	 * Builds the abstract graph of a cluster.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @param limit
+	 *            The search limit, or <code>null</code> for no limit.
+	 * @return The cluster.
+	 */
+	private Cluster buildCluster(int key, SearchLimit limit) {
+		final int regionX = key >> 10 & 0x3FF;
+		final int regionY = key & 0x3FF;
+		final int z = key >>> 20;
+		final Cluster cluster = new Cluster();
+
+		// transitions to the east, west, north and south neighbours
+		addTransitions(cluster, regionX, regionY, 1, 0, z, true);
+		addTransitions(cluster, regionX - 1, regionY, 1, 0, z, false);
+		addTransitions(cluster, regionX, regionY, 0, 1, z, true);
+		addTransitions(cluster, regionX, regionY - 1, 0, 1, z, false);
+
+		// edges between transitions inside this cluster
+		final List<Integer> nodes = new ArrayList<Integer>();
+		for (final int node : cluster.getNodes()) {
+			nodes.add(node);
+		}
+		final TileMap map = buildMap(key);
+		for (int i = 0; i < nodes.size(); i++) {
+			if (limit != null && limit.isExceeded()) {
+				break;
+			}
+			for (int j = i + 1; j < nodes.size(); j++) {
+				final int a = nodes.get(i), b = nodes.get(j);
+				final List<Point> p = findLocalPath(key, map, a, b, limit);
+				if (p == null) {
+					continue;
+				}
+				cluster.addEdge(a, new Edge(b, cost(p), p));
+
+				/*
+				 * Walls on the corners of tiles only block diagonal steps
+				 * in one direction, so the reversed path is only used if
+				 * it does not cross one.
+				 */
+				List<Point> reversed = new ArrayList<Point>(p);
+				Collections.reverse(reversed);
+				if (!isCornerTraversable(key, map, reversed)) {
+					reversed = findLocalPath(key, map, b, a, limit);
+				}
+				if (reversed != null) {
+					cluster.addEdge(b, new Edge(a, cost(reversed), reversed));
+				}
+			}
+		}
+		return cluster;
+	}
+
+	/**
+	 * Checks if the diagonal steps of a path inside a cluster do not enter
+	 * a tile across a corner with a wall on it.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @param map
+	 *            The tile map of the cluster.
+	 * @param points
+	 *            The tiles, in walking order.
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	private boolean isCornerTraversable(int key, TileMap map,
+			List<Point> points) {
+		final Location base = clusterBase(key);
+		for (int i = 1; i < points.size(); i++) {
+			final Point a = points.get(i - 1), b = points.get(i);
+			final int dx = b.getX() - a.getX(), dy = b.getY() - a.getY();
+			if (dx == 0 || dy == 0) {
+				continue;
+			}
+			final int mask = map.getTile(b.getX() - base.getX(),
+					b.getY() - base.getY()).getTraversalMask();
+			if ((mask & AStarPathFinder.getCorner(-dx, -dy)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the entrances on the border between a cluster and its neighbour
+	 * to the east or north, and adds the transitions to the side of the
+	 * border which belongs to the cluster being built.
+	 * 
+	 * @param cluster
+	 *            The cluster being built.
+	 * @param regionX
+	 *            The x coordinate of the lower cluster.
+	 * @param regionY
+	 *            The y coordinate of the lower cluster.
+	 * @param dx
+	 *            <code>1</code> for the eastern border.
+	 * @param dy
+	 *            <code>1</code> for the northern border.
+	 * @param z
+	 *            The plane.
+	 * @param lower
+	 *            <code>true</code> if the cluster being built is the lower
+	 *            cluster, <code>false</code> if it is the neighbour.
+	 */
+	private void addTransitions(Cluster cluster, int regionX, int regionY,
+			int dx, int dy, int z, boolean lower) {
+		if (regionX < 0 || regionY < 0) {
+			return;
+		}
+		final RegionManager mgr = World.getWorld().getRegionManager();
+		// the first tile on the lower side of the border
+		final int startX = regionX * CLUSTER_SIZE + (dx == 1 ? CLUSTER_SIZE - 1 : 0);
+		final int startY = regionY * CLUSTER_SIZE + (dy == 1 ? CLUSTER_SIZE - 1 : 0);
+		final int exitMask = dx == 1 ? Tile.EAST_TRAVERSAL_PERMITTED
+				: Tile.NORTH_TRAVERSAL_PERMITTED;
+		final int entryMask = dx == 1 ? Tile.WEST_TRAVERSAL_PERMITTED
+				: Tile.SOUTH_TRAVERSAL_PERMITTED;
+
+		int runStart = -1;
+		for (int i = 0; i <= CLUSTER_SIZE; i++) {
+			boolean open = false;
+			if (i < CLUSTER_SIZE) {
+				final int x = startX + dy * i, y = startY + dx * i;
+				final int from = TileMapBuilder.getTraversalMask(mgr
+						.getCollisionFlags(x, y, z));
+				final int to = TileMapBuilder.getTraversalMask(mgr
+						.getCollisionFlags(x + dx, y + dy, z));
+				open = (from & exitMask) != 0 && (to & entryMask) != 0;
+			}
+			if (open && runStart == -1) {
+				runStart = i;
+			} else if (!open && runStart != -1) {
+				final int runEnd = i - 1;
+				if (runEnd - runStart + 1 >= LONG_ENTRANCE) {
+					addTransition(cluster, startX, startY, dx, dy, z, runStart,
+							lower);
+					addTransition(cluster, startX, startY, dx, dy, z, runEnd,
+							lower);
+				} else {
+					addTransition(cluster, startX, startY, dx, dy, z,
+							(runStart + runEnd) / 2, lower);
+				}
+				runStart = -1;
+			}
+		}
+	}
+
+	/**
+	 * Adds a single transition across a border to a cluster.
+	 * 
+	 * @param cluster
+	 *            The cluster being built.
+	 * @param startX
+	 *            The x coordinate of the first tile on the lower side.
+	 * @param startY
+	 *            The y coordinate of the first tile on the lower side.
+	 * @param dx
+	 *            <code>1</code> for the eastern border.
+	 * @param dy
+	 *            <code>1</code> for the northern border.
+	 * @param z
+	 *            The plane.
+	 * @param offset
+	 *            The offset along the border.
+	 * @param lower
+	 *            <code>true</code> if the cluster being built is the lower
+	 *            cluster, <code>false</code> if it is the neighbour.
+	 */
+	private void addTransition(Cluster cluster, int startX, int startY,
+			int dx, int dy, int z, int offset, boolean lower) {
+		final int x = startX + dy * offset, y = startY + dx * offset;
+		final int lowerNode = node(x, y, z);
+		final int upperNode = node(x + dx, y + dy, z);
+		final int from = lower ? lowerNode : upperNode;
+		final int to = lower ? upperNode : lowerNode;
+		final List<Point> path = new ArrayList<Point>(2);
+		path.add(toPoint(from));
+		path.add(toPoint(to));
+		cluster.addEdge(from, new Edge(to, COST_STRAIGHT, path));
+	}
+
+	/**
+	 * Finds a path between two tiles without leaving a cluster.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @param map
+	 *            The tile map of the cluster.
+	 * @param src
+	 *            The source node.
+	 * @param dst
+	 *            The destination node.
+	 * @param limit
+	 *            The search limit, or <code>null</code> for no limit.
+	 * @return The tiles walked, or <code>null</code> if there is no path.
+	 */
+	private List<Point> findLocalPath(int key, TileMap map, int src, int dst,
+			SearchLimit limit) {
+		if (src == dst) {
+			return null;
+		}
+		final Location base = clusterBase(key);
+		final Path path = finder.findPath(base, 0, map, nodeX(src)
+				- base.getX(), nodeY(src) - base.getY(), nodeX(dst)
+				- base.getX(), nodeY(dst) - base.getY(), limit);
+		if (path == null) {
+			return null;
+		}
+		return new ArrayList<Point>(path.getPoints());
+	}
+
+	/**
+	 * Builds the tile map of a cluster.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @return The tile map.
+	 */
+	private TileMap buildMap(int key) {
+		return new TileMapBuilder(clusterBase(key), CLUSTER_SIZE, CLUSTER_SIZE)
+				.build();
+	}
+
+	/**
+	 * Gets the bottom left corner of a cluster.
+	 * 
+	 * @param key
+	 *            The cluster key.
+	 * @return The bottom left corner.
+	 */
+	private Location clusterBase(int key) {
+		return Location.create((key >> 10 & 0x3FF) * CLUSTER_SIZE,
+				(key & 0x3FF) * CLUSTER_SIZE, key >>> 20);
+	}
+
+	/**
+	 * Calculates the cost of walking a list of tiles.
+	 * 
+	 * @param points
+	 *            The tiles.
+	 * @return The cost.
+	 */
+	private int cost(List<Point> points) {
+		int cost = 0;
+		for (int i = 1; i < points.size(); i++) {
+			final Point a = points.get(i - 1), b = points.get(i);
+			cost += a.getX() != b.getX() && a.getY() != b.getY() ? COST_DIAGONAL
+					: COST_STRAIGHT;
+		}
+		return cost;
+	}
+
+	/**
+	 * Estimates the distance between two nodes using the octile distance.
+	 * 
+	 * @param a
+	 *            The first node.
+	 * @param b
+	 *            The second node.
+	 * @return The distance.
+	 */
+	private int estimateDistance(int a, int b) {
+		final int deltaX = Math.abs(nodeX(a) - nodeX(b));
+		final int deltaY = Math.abs(nodeY(a) - nodeY(b));
+		return COST_STRAIGHT * (deltaX + deltaY)
+				+ (COST_DIAGONAL - 2 * COST_STRAIGHT)
+				* Math.min(deltaX, deltaY);
+	}
+
+	/**
+	 * Creates a path from a list of tiles.
+	 * 
+	 * @param points
+	 *            The tiles, in walking order.
+	 * @return The path.
+	 */
+	private Path toPath(List<Point> points) {
+		final Path path = new Path();
+		for (int i = points.size() - 1; i >= 0; i--) {
+			path.addPoint(points.get(i));
+		}
+		return path;
+	}
+
+	/**
+	 * Creates a list containing the tile of a single node.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The list.
+	 */
+	private List<Point> single(int node) {
+		final List<Point> list = new ArrayList<Point>(1);
+		list.add(toPoint(node));
+		return list;
+	}
+
+	/**
+	 * Packs a tile into a node id.
+	 * 
+	 * @param x
+	 *            The x coordinate.
+	 * @param y
+	 *            The y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The node id.
+	 */
+	private static int node(int x, int y, int z) {
+		return z << 28 | x << 14 | y;
+	}
+
+	/**
+	 * Gets the x coordinate of a node.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The x coordinate.
+	 */
+	private static int nodeX(int node) {
+		return node >> 14 & 0x3FFF;
+	}
+
+	/**
+	 * Gets the y coordinate of a node.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The y coordinate.
+	 */
+	private static int nodeY(int node) {
+		return node & 0x3FFF;
+	}
+
+	/**
+	 * Converts a node to a point.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The point.
+	 */
+	private static Point toPoint(int node) {
+		return new Point(nodeX(node), nodeY(node));
+	}
+
+	/**
+	 * Gets the key of the cluster a node is in.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The cluster key.
+	 */
+	private static int clusterOf(int node) {
+		return cluster(nodeX(node) / CLUSTER_SIZE, nodeY(node) / CLUSTER_SIZE,
+				node >>> 28);
+	}
+
+	/**
+	 * Packs cluster coordinates into a cluster key.
+	 * 
+	 * @param regionX
+	 *            The region x coordinate.
+	 * @param regionY
+	 *            The region y coordinate.
+	 * @param z
+	 *            The plane.
+	 * @return The cluster key.
+	 */
+	private static int cluster(int regionX, int regionY, int z) {
+		return z << 20 | (regionX & 0x3FF) << 10 | regionY & 0x3FF;
+	}
+
+}
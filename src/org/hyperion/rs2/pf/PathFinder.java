@@ -33,4 +33,30 @@ public interface PathFinder {
 	public Path findPath(Location location, int radius, TileMap map, int srcX,
 			int srcY, int dstX, int dstY);
 
+	/**
+	 * Finds a path between two points, giving up if the search takes too
+	 * long.
+	 * 
+	 * @param location
+	 *            The central point of the tile map.
+	 * @param radius
+	 *            The radius of the tile map.
+	 * @param map
+	 *            The map the points are on.
+	 * @param srcX
+	 *            Source point, x coordinate.
+	 * @param srcY
+	 *            Source point, y coordinate.
+	 * @param dstX
+	 *            Destination point, x coordinate.
+	 * @param dstY
+	 *            Destination point, y coordinate.
+	 * @param limit
+	 *            The search limit, or <code>null</code> for no limit.
+	 * @return A path between two points if such a path exists, or
+	 *         <code>null</code> if no path exists or the limit was exceeded.
+	 */
+	public Path findPath(Location location, int radius, TileMap map, int srcX,
+			int srcY, int dstX, int dstY, SearchLimit limit);
+
 }
@@ -0,0 +1,311 @@
+package org.hyperion.rs2.pf;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hyperion.rs2.model.Entity;
+import org.hyperion.rs2.model.Location;
+import org.hyperion.rs2.model.WalkingQueue;
+import org.hyperion.rs2.model.World;
+
+/**
+ * Finds paths on a pool of worker threads so long searches do not stall the
+ * logic thread. Paths which are found are applied to the entity's
+ * <code>WalkingQueue</code> when {@link #applyResults()} is called at the
+ * start of the next cycle.
+ */
+public class PathFindingService {
+
+	/**
+	 * The default budget, in milliseconds. A request which has not finished
+	 * after this long, whether it is waiting for a worker or searching, is
+	 * abandoned, as the entity will have moved on.
+	 */
+	public static final long DEFAULT_BUDGET = 600;
+
+	/**
+	 * The radius of the area searched by the A* algorithm when the
+	 * destination is close enough.
+	 */
+	public static final int DEFAULT_RADIUS = 16;
+
+	/**
+	 * The worker pool.
+	 */
+	private final ExecutorService workers = Executors.newFixedThreadPool(Math
+			.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	/**
+	 * The hierarchical path finder, shared so its clusters are cached.
+	 */
+	private final HierarchicalPathFinder hierarchicalFinder = new HierarchicalPathFinder();
+
+	/**
+	 * The latest request of each entity.
+	 */
+	private final ConcurrentMap<Entity, PathRequest> requests = new ConcurrentHashMap<Entity, PathRequest>();
+
+	/**
+	 * Requests which have finished and are waiting to be applied.
+	 */
+	private final Queue<PathRequest> finished = new ConcurrentLinkedQueue<PathRequest>();
+
+	/**
+	 * The number of requests waiting for a worker.
+	 */
+	private final AtomicInteger queueDepth = new AtomicInteger();
+
+	/**
+	 * The number of searches which have run.
+	 */
+	private final AtomicLong searches = new AtomicLong();
+
+	/**
+	 * The number of requests which were abandoned as they exceeded their
+	 * budget, before or during their search.
+	 */
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * The total time between submission and completion of all searches, in
+	 * nanoseconds.
+	 */
+	private final AtomicLong totalLatency = new AtomicLong();
+
+	/**
+	 * The longest time between submission and completion of a search, in
+	 * nanoseconds.
+	 */
+	private final AtomicLong maximumLatency = new AtomicLong();
+
+	/**
+	 * Submits a request with the default budget, searching the area around
+	 * the entity with the A* algorithm if the destination is within
+	 * {@link #DEFAULT_RADIUS} tiles, or using the hierarchical path finder if
+	 * not.
+	 * 
+	 * @param entity
+	 *            The entity.
+	 * @param destination
+	 *            The destination.
+	 * @return The request handle.
+	 */
+	public PathRequest submit(Entity entity, Location destination) {
+		final int deltaX = destination.getX() - entity.getLocation().getX();
+		final int deltaY = destination.getY() - entity.getLocation().getY();
+		if (Math.abs(deltaX) <= DEFAULT_RADIUS
+				&& Math.abs(deltaY) <= DEFAULT_RADIUS) {
+			return submit(entity, destination, DEFAULT_RADIUS);
+		}
+		return submitHierarchical(entity, destination);
+	}
+
+	/**
+	 * Submits a request with the default budget using the A* algorithm.
+	 * 
+	 * @param entity
+	 *            The entity.
+	 * @param destination
+	 *            The destination.
+	 * @param radius
+	 *            The radius of the area to search.
+	 * @return The request handle.
+	 */
+	public PathRequest submit(Entity entity, Location destination, int radius) {
+		return submit(entity, destination, radius, new AStarPathFinder(),
+				DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Submits a request. Any request the entity already has pending is
+	 * cancelled.
+	 * 
+	 * @param entity
+	 *            The entity.
+	 * @param destination
+	 *            The destination.
+	 * @param radius
+	 *            The radius of the area to search.
+	 * @param finder
+	 *            The path finder.
+	 * @param budget
+	 *            The maximum time, in milliseconds, the request may take,
+	 *            including the time waiting for a worker.
+	 * @return The request handle.
+	 */
+	public PathRequest submit(Entity entity, Location destination, int radius,
+			PathFinder finder, long budget) {
+		return enqueue(new PathRequest(entity, destination, radius, finder,
+				budget));
+	}
+
+	/**
+	 * Submits a request with the default budget using the hierarchical path
+	 * finder, for destinations too far away to search directly. Any request
+	 * the entity already has pending is cancelled.
+	 * 
+	 * @param entity
+	 *            The entity.
+	 * @param destination
+	 *            The destination.
+	 * @return The request handle.
+	 */
+	public PathRequest submitHierarchical(Entity entity, Location destination) {
+		return enqueue(new PathRequest(entity, destination,
+				hierarchicalFinder, DEFAULT_BUDGET));
+	}
+
+	/**
+	 * Queues a request for a worker.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The request handle.
+	 */
+	private PathRequest enqueue(final PathRequest request) {
+		final Entity entity = request.getEntity();
+		final PathRequest old = requests.put(entity, request);
+		if (old != null) {
+			old.cancel();
+		}
+		queueDepth.incrementAndGet();
+		workers.submit(new Runnable() {
+			@Override
+			public void run() {
+				queueDepth.decrementAndGet();
+				try {
+					if (request.process()) {
+						record(System.nanoTime() - request.getSubmitTime());
+					} else if (request.getState() == PathRequest.State.EXPIRED) {
+						expired.incrementAndGet();
+					}
+				} catch (final Throwable t) {
+					World.getWorld().handleError(t);
+				}
+				finished.add(request);
+			}
+		});
+		return request;
+	}
+
+	/**
+	 * Cancels the pending request of an entity, e.g. when a player clicks
+	 * somewhere else.
+	 * 
+	 * @param entity
+	 *            The entity.
+	 */
+	public void cancel(Entity entity) {
+		final PathRequest request = requests.remove(entity);
+		if (request != null) {
+			request.cancel();
+		}
+	}
+
+	/**
+	 * Invalidates the cached parts of the hierarchical path finder around a
+	 * location, e.g. when an object is added or removed.
+	 * 
+	 * @param location
+	 *            The location.
+	 */
+	public void invalidate(Location location) {
+		hierarchicalFinder.invalidate(location);
+	}
+
+	/**
+	 * Applies the paths which have been found since the last call to the
+	 * walking queues of their entities. Must be called on the logic thread.
+	 */
+	public void applyResults() {
+		PathRequest request;
+		while ((request = finished.poll()) != null) {
+			final Entity entity = request.getEntity();
+			if (!requests.remove(entity, request)) {
+				continue; // superseded or cancelled
+			}
+			if (request.getState() != PathRequest.State.COMPLETED) {
+				continue;
+			}
+			final WalkingQueue queue = entity.getWalkingQueue();
+			queue.reset();
+			for (final Point p : request.getPath().getPoints()) {
+				queue.addStep(p.getX(), p.getY());
+			}
+			queue.finishRoute();
+		}
+	}
+
+	/**
+	 * Records the latency of a search.
+	 * 
+	 * @param latency
+	 *            The latency, in nanoseconds.
+	 */
+	private void record(long latency) {
+		searches.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		long max;
+		while (latency > (max = maximumLatency.get())) {
+			if (maximumLatency.compareAndSet(max, latency)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of requests waiting for a worker.
+	 * 
+	 * @return The queue depth.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * Gets the number of searches which have run.
+	 * 
+	 * @return The number of searches.
+	 */
+	public long getSearchCount() {
+		return searches.get();
+	}
+
+	/**
+	 * Gets the number of requests which exceeded their budget.
+	 * 
+	 * @return The number of expired requests.
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * Gets the average time between submission and completion of a search.
+	 * 
+	 * @return The average latency, in milliseconds.
+	 */
+	public double getAverageLatency() {
+		final long count = searches.get();
+		if (count == 0) {
+			return 0;
+		}
+		return (double) totalLatency.get() / (double) count / 1000000D;
+	}
+
+	/**
+	 * Gets the longest time between submission and completion of a search.
+	 * 
+	 * @return The maximum latency, in milliseconds.
+	 */
+	public double getMaximumLatency() {
+		return (double) maximumLatency.get() / 1000000D;
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.hyperion.rs2.pf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hyperion.rs2.model.Entity;
+import org.hyperion.rs2.model.Location;
+
+/**
+ * A handle to a path finding request submitted to the
+ * <code>PathFindingService</code>.
+ */
+public class PathRequest {
+
+	/**
+	 * The states a request can be in.
+	 */
+	public enum State {
+
+		/**
+		 * The request is waiting for, or being processed by, a worker.
+		 */
+		PENDING,
+
+		/**
+		 * A path was found.
+		 */
+		COMPLETED,
+
+		/**
+		 * No path exists.
+		 */
+		FAILED,
+
+		/**
+		 * The request was cancelled, e.g. because the entity was given a new
+		 * destination.
+		 */
+		CANCELLED,
+
+		/**
+		 * The request took longer than its budget, waiting for a worker or
+		 * searching, and was abandoned.
+		 */
+		EXPIRED,
+
+	}
+
+	/**
+	 * The entity which will walk the path.
+	 */
+	private final Entity entity;
+
+	/**
+	 * The location the path starts from.
+	 */
+	private final Location origin;
+
+	/**
+	 * The destination.
+	 */
+	private final Location destination;
+
+	/**
+	 * The radius of the searched area around the origin.
+	 */
+	private final int radius;
+
+	/**
+	 * The path finder, or <code>null</code> if the hierarchical path finder
+	 * is used.
+	 */
+	private final PathFinder finder;
+
+	/**
+	 * The hierarchical path finder, or <code>null</code> if the search is
+	 * limited to the area around the origin.
+	 */
+	private final HierarchicalPathFinder hierarchicalFinder;
+
+	/**
+	 * The time this request was submitted, in nanoseconds.
+	 */
+	private final long submitTime;
+
+	/**
+	 * The time after which this request is abandoned, whether it is still
+	 * waiting or searching, in nanoseconds.
+	 */
+	private final long deadline;
+
+	/**
+	 * The state.
+	 */
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.PENDING);
+
+	/**
+	 * The path, if one was found.
+	 */
+	private volatile Path path;
+
+	/**
+	 * Creates the request.
+	 * 
+	 * @param entity
+	 *            The entity which will walk the path.
+	 * @param destination
+	 *            The destination.
+	 * @param radius
+	 *            The radius of the searched area.
+	 * @param finder
+	 *            The path finder.
+	 * @param budget
+	 *            The maximum time, in milliseconds, the request may take,
+	 *            including the time waiting for a worker, before it is
+	 *            abandoned.
+	 */
+	PathRequest(Entity entity, Location destination, int radius,
+			PathFinder finder, long budget) {
+		this(entity, destination, radius, finder, null, budget);
+	}
+
+	/**
+	 * Creates a request which uses the hierarchical path finder, so is not
+	 * limited to the area around the origin.
+	 * 
+	 * @param entity
+	 *            The entity which will walk the path.
+	 * @param destination
+	 *            The destination.
+	 * @param hierarchicalFinder
+	 *            The hierarchical path finder.
+	 * @param budget
+	 *            The maximum time, in milliseconds, the request may take,
+	 *            including the time waiting for a worker, before it is
+	 *            abandoned.
+	 */
+	PathRequest(Entity entity, Location destination,
+			HierarchicalPathFinder hierarchicalFinder, long budget) {
+		this(entity, destination, 0, null, hierarchicalFinder, budget);
+	}
+
+	/**
+	 * Creates the request.
+	 * 
+	 * @param entity
+	 *            The entity which will walk the path.
+	 * @param destination
+	 *            The destination.
+	 * @param radius
+	 *            The radius of the searched area.
+	 * @param finder
+	 *            The path finder.
+	 * @param hierarchicalFinder
+	 *            The hierarchical path finder.
+	 * @param budget
+	 *            The maximum time, in milliseconds, the request may take,
+	 *            including the time waiting for a worker, before it is
+	 *            abandoned.
+	 */
+	private PathRequest(Entity entity, Location destination, int radius,
+			PathFinder finder, HierarchicalPathFinder hierarchicalFinder,
+			long budget) {
+		this.entity = entity;
+		this.origin = entity.getLocation();
+		this.destination = destination;
+		this.radius = radius;
+		this.finder = finder;
+		this.hierarchicalFinder = hierarchicalFinder;
+		this.submitTime = System.nanoTime();
+		this.deadline = submitTime + budget * 1000000L;
+	}
+
+	/**
+	 * Gets the entity.
+	 * 
+	 * @return The entity.
+	 */
+	public Entity getEntity() {
+		return entity;
+	}
+
+	/**
+	 * Gets the destination.
+	 * 
+	 * @return The destination.
+	 */
+	public Location getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Gets the state.
+	 * 
+	 * @return The state.
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Checks if this request has finished, in any state.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isDone() {
+		return state.get() != State.PENDING;
+	}
+
+	/**
+	 * Gets the path.
+	 * 
+	 * @return The path, or <code>null</code> if the request has not completed.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Cancels this request if it is still pending.
+	 * 
+	 * @return <code>true</code> if the request was cancelled,
+	 *         <code>false</code> if it had already finished.
+	 */
+	public boolean cancel() {
+		return state.compareAndSet(State.PENDING, State.CANCELLED);
+	}
+
+	/**
+	 * Gets the time this request was submitted.
+	 * 
+	 * @return The submit time, in nanoseconds.
+	 */
+	long getSubmitTime() {
+		return submitTime;
+	}
+
+	/**
+	 * Runs the search. Called by a worker thread. The search is given up,
+	 * and the request expires, if it is still running when the budget runs
+	 * out.
+	 * 
+	 * @return <code>true</code> if the search ran, <code>false</code> if the
+	 *         request had been cancelled or had expired.
+	 */
+	boolean process() {
+		if (state.get() != State.PENDING) {
+			return false;
+		}
+		if (System.nanoTime() - deadline > 0) {
+			state.compareAndSet(State.PENDING, State.EXPIRED);
+			return false;
+		}
+		if (destination.getZ() != origin.getZ()) {
+			state.compareAndSet(State.PENDING, State.FAILED);
+			return true;
+		}
+		final SearchLimit limit = new SearchLimit(deadline);
+		final Path result;
+		if (hierarchicalFinder != null) {
+			result = hierarchicalFinder.findPath(origin, destination, limit);
+		} else {
+			final TileMap map = new TileMapBuilder(origin, radius).build();
+			final int dstX = destination.getX() - origin.getX() + radius;
+			final int dstY = destination.getY() - origin.getY() + radius;
+			result = finder.findPath(origin, radius, map, radius, radius,
+					dstX, dstY, limit);
+		}
+		if (limit.isExceeded()) {
+			state.compareAndSet(State.PENDING, State.EXPIRED);
+			return false;
+		}
+		path = result;
+		state.compareAndSet(State.PENDING, result == null ? State.FAILED
+				: State.COMPLETED);
+		return true;
+	}
+
+}
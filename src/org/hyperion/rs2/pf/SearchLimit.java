@@ -0,0 +1,77 @@
+package org.hyperion.rs2.pf;
+
+/**
+ * Bounds the time a single search may take. Path finders call
+ * {@link #expand()} for each node they expand and give up once it returns
+ * <code>false</code>. A limit is used by one thread only.
+ */
+public class SearchLimit {
+
+	/**
+	 * The number of expansions between checks of the clock.
+	 */
+	private static final int CHECK_INTERVAL = 64;
+
+	/**
+	 * The time after which the search is abandoned, in nanoseconds.
+	 */
+	private final long deadline;
+
+	/**
+	 * The number of nodes expanded.
+	 */
+	private int expansions;
+
+	/**
+	 * A flag indicating if the deadline has passed.
+	 */
+	private boolean exceeded;
+
+	/**
+	 * Creates the limit.
+	 * 
+	 * @param deadline
+	 *            The time after which the search is abandoned, as returned by
+	 *            <code>System.nanoTime()</code>.
+	 */
+	public SearchLimit(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Records the expansion of a node.
+	 * 
+	 * @return <code>true</code> if the search may continue,
+	 *         <code>false</code> if the deadline has passed.
+	 */
+	public boolean expand() {
+		if (exceeded) {
+			return false;
+		}
+		if (++expansions % CHECK_INTERVAL == 0
+				&& System.nanoTime() - deadline > 0) {
+			exceeded = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the search was abandoned because the deadline passed.
+	 * 
+	 * @return <code>true</code> if so, <code>false</code> if not.
+	 */
+	public boolean isExceeded() {
+		return exceeded;
+	}
+
+	/**
+	 * Gets the number of nodes expanded.
+	 * 
+	 * @return The number of expansions.
+	 */
+	public int getExpansions() {
+		return expansions;
+	}
+
+}
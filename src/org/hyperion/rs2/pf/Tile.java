@@ -15,6 +15,15 @@ public class Tile {
 			EAST_TRAVERSAL_PERMITTED = 2, SOUTH_TRAVERSAL_PERMITTED = 4,
 			WEST_TRAVERSAL_PERMITTED = 8;
 
+	/**
+	 * Constant values used by the bitmask for the corners, which permit the
+	 * tile to be entered diagonally across that corner.
+	 */
+	public static final int NORTHEAST_TRAVERSAL_PERMITTED = 16,
+			SOUTHEAST_TRAVERSAL_PERMITTED = 32,
+			SOUTHWEST_TRAVERSAL_PERMITTED = 64,
+			NORTHWEST_TRAVERSAL_PERMITTED = 128;
+
 	/**
 	 * A bitmask which determines which directions can be traversed.
 	 */
@@ -15,7 +15,11 @@ public class TileMap {
 	public static final Tile EMPTY_TILE = new Tile(
 			Tile.NORTH_TRAVERSAL_PERMITTED | Tile.EAST_TRAVERSAL_PERMITTED
 					| Tile.SOUTH_TRAVERSAL_PERMITTED
-					| Tile.WEST_TRAVERSAL_PERMITTED);
+					| Tile.WEST_TRAVERSAL_PERMITTED
+					| Tile.NORTHEAST_TRAVERSAL_PERMITTED
+					| Tile.SOUTHEAST_TRAVERSAL_PERMITTED
+					| Tile.SOUTHWEST_TRAVERSAL_PERMITTED
+					| Tile.NORTHWEST_TRAVERSAL_PERMITTED);
 
 	/**
 	 * A tile in which traversal in no directions is permitted.
@@ -92,7 +96,7 @@ public class TileMap {
 		this.height = height;
 		tiles = new Tile[width][height];
 		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < width; y++) {
+			for (int y = 0; y < height; y++) {
 				tiles[x][y] = defaultTile;
 			}
 		}
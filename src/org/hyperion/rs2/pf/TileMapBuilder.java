@@ -1,37 +1,58 @@
 package org.hyperion.rs2.pf;
 
-import java.util.HashSet;
-import java.util.Set;
-
-import org.hyperion.rs2.model.GameObject;
 import org.hyperion.rs2.model.Location;
 import org.hyperion.rs2.model.World;
-import org.hyperion.rs2.model.region.Region;
+import org.hyperion.rs2.model.region.CollisionMap;
 import org.hyperion.rs2.model.region.RegionManager;
 
 /**
- * A class which assist in building <code>TileMap</code>s from a collection of
- * <code>GameObject</code>s.
+ * A class which assist in building <code>TileMap</code>s from the collision
+ * flags held by the <code>RegionManager</code>.
  * 
  * @author Graham Edgecombe
  * 
  */
 public class TileMapBuilder {
 
+	/**
+	 * The collision flags which make a tile impossible to stand on.
+	 */
+	private static final int SOLID_FLAGS = CollisionMap.OBJECT
+			| CollisionMap.BLOCKED;
+
+	/**
+	 * The shared tiles for each traversal mask. Tiles are immutable, so there
+	 * is no need to create one per position.
+	 */
+	private static final Tile[] TILES = new Tile[256];
+
+	static {
+		for (int mask = 0; mask < TILES.length; mask++) {
+			TILES[mask] = new Tile(mask);
+		}
+		TILES[0] = TileMap.SOLID_TILE;
+		TILES[TILES.length - 1] = TileMap.EMPTY_TILE;
+	}
+
 	/**
 	 * The tile map being built.
 	 */
 	private final TileMap tileMap;
 
 	/**
-	 * The center position.
+	 * The x coordinate of the bottom left corner.
+	 */
+	private final int baseX;
+
+	/**
+	 * The y coordinate of the bottom left corner.
 	 */
-	private final Location centerPosition;
+	private final int baseY;
 
 	/**
-	 * The radius.
+	 * The plane.
 	 */
-	private final int radius;
+	private final int plane;
 
 	/**
 	 * Sets up the tile map builder with the specified radius, and center
@@ -43,9 +64,26 @@ public class TileMapBuilder {
 	 *            The radius.
 	 */
 	public TileMapBuilder(Location position, int radius) {
-		centerPosition = position;
-		tileMap = new TileMap(radius * 2 + 1, radius * 2 + 1);
-		this.radius = radius;
+		this(position.transform(-radius, -radius, 0), radius * 2 + 1,
+				radius * 2 + 1);
+	}
+
+	/**
+	 * Sets up the tile map builder for a rectangle with the specified bottom
+	 * left corner, width and height.
+	 * 
+	 * @param base
+	 *            The bottom left corner.
+	 * @param width
+	 *            The width.
+	 * @param height
+	 *            The height.
+	 */
+	public TileMapBuilder(Location base, int width, int height) {
+		tileMap = new TileMap(width, height);
+		baseX = base.getX();
+		baseY = base.getY();
+		plane = base.getZ();
 	}
 
 	/**
@@ -56,105 +94,14 @@ public class TileMapBuilder {
 	public TileMap build() {
 		// the region manager
 		final RegionManager mgr = World.getWorld().getRegionManager();
-		// a set of regions covered by our center position + radius
-		final Set<Region> coveredRegions = new HashSet<Region>();
-
-		// populates the set of covered regions
-		for (int x = -radius - 1; x <= radius + 1; x++) {
-			for (int y = -radius - 1; y <= radius + 1; y++) {
-				final Location loc = centerPosition.transform(x, y, 0);
-				coveredRegions.add(mgr.getRegionByLocation(loc));
-			}
-		}
-
-		// calculate top left positions
-		final int topX = centerPosition.getX() - radius;
-		final int topY = centerPosition.getY() - radius;
 
 		// now fills in the tile map
-		for (final Region region : coveredRegions) {
-			for (final GameObject obj : region.getGameObjects()) {
-
-				if (!obj.getDefinition().isSolid()) {
-					continue;
-				}
-				final Location loc = obj.getLocation();
-				if (loc.getZ() != centerPosition.getZ()) {
-					continue;
-				}
-
-				int sizeX = obj.getDefinition().getSizeX();
-				int sizeY = obj.getDefinition().getSizeY();
-				// position in the tile map
-				final int posX = loc.getX() - topX;
-				final int posY = loc.getY() - topY;
-				if (obj.getRotation() == 1 || obj.getRotation() == 3) {
-					// switch sizes if rotated
-					final int temp = sizeX;
-					sizeX = sizeY;
-					sizeY = temp;
-				}
-
-				if (posX + sizeX < 0 || posY + sizeY < 0
-						|| posX >= tileMap.getWidth()
-						|| posY >= tileMap.getHeight()) {
-					continue;
-				}
-
-				if (obj.getType() >= 0 && obj.getType() <= 3) {
-					// walls
-					if (posX >= 0 && posY >= 0 && posX < tileMap.getWidth()
-							&& posY < tileMap.getHeight()) {
-						// int finalRotation = (obj.getType() +
-						// obj.getRotation()) % 4;
-						final int finalRotation = obj.getRotation();
-						// finalRotation - 0 = west, 1 = north, 2 = east, 3 =
-						// south
-						final Tile t = tileMap.getTile(posX, posY);
-						int flags = t.getTraversalMask();
-						// clear flags
-						if (finalRotation == 0) {
-							flags &= ~Tile.WEST_TRAVERSAL_PERMITTED;
-						} else if (finalRotation == 1) {
-							flags &= ~Tile.NORTH_TRAVERSAL_PERMITTED;
-						} else if (finalRotation == 2) {
-							flags &= ~Tile.EAST_TRAVERSAL_PERMITTED;
-						} else {
-							flags &= ~Tile.SOUTH_TRAVERSAL_PERMITTED;
-						}
-						if (flags != t.getTraversalMask()) {
-							tileMap.setTile(posX, posY, new Tile(flags));
-						}
-					}
-				} else if (obj.getType() == 9) {
-					// diagonal walls
-					if (posX >= 0 && posY >= 0 && posX < tileMap.getWidth()
-							&& posY < tileMap.getHeight()) {
-						tileMap.setTile(posX, posY, TileMap.SOLID_TILE);
-					}
-				} else if (obj.getType() == 10 || obj.getType() == 11) {
-					// world objects
-					for (int offX = 0; offX <= sizeX; offX++) {
-						for (int offY = 0; offY <= sizeY; offY++) {
-							final int x = offX + posX;
-							final int y = offY + posY;
-							if (x >= 0 && y >= 0 && x < tileMap.getWidth()
-									&& y < tileMap.getHeight()) {
-								tileMap.setTile(x, y, TileMap.SOLID_TILE);
-							}
-						}
-					}
-				} else if (obj.getType() == 22) {
-					// floor decoration
-					if (obj.getDefinition().hasActions()) {
-						if (posX >= 0 && posY >= 0 && posX < tileMap.getWidth()
-								&& posY < tileMap.getHeight()) {
-							tileMap.setTile(posX, posY, TileMap.SOLID_TILE);
-						}
-					}
-				} else {
-					// 4-8 are wall decorations and 12-21 are roofs
-					// we can ignore those
+		for (int x = 0; x < tileMap.getWidth(); x++) {
+			for (int y = 0; y < tileMap.getHeight(); y++) {
+				final int flags = mgr.getCollisionFlags(baseX + x, baseY + y,
+						plane);
+				if (flags != 0) {
+					tileMap.setTile(x, y, TILES[getTraversalMask(flags)]);
 				}
 			}
 		}
@@ -162,4 +109,45 @@ public class TileMapBuilder {
 		return tileMap;
 	}
 
+	/**
+	 * Converts the collision flags of a tile to a traversal mask. Corner
+	 * walls clear the corner bits, which is the same rule as
+	 * {@link RegionManager#canStep(int, int, int, int, int, boolean)}.
+	 * 
+	 * @param flags
+	 *            The collision flags.
+	 * @return The traversal mask.
+	 */
+	public static int getTraversalMask(int flags) {
+		if ((flags & SOLID_FLAGS) != 0) {
+			return 0;
+		}
+		int mask = TileMap.EMPTY_TILE.getTraversalMask();
+		if ((flags & CollisionMap.WALL_NORTH) != 0) {
+			mask &= ~Tile.NORTH_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_EAST) != 0) {
+			mask &= ~Tile.EAST_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_SOUTH) != 0) {
+			mask &= ~Tile.SOUTH_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_WEST) != 0) {
+			mask &= ~Tile.WEST_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_NORTHEAST) != 0) {
+			mask &= ~Tile.NORTHEAST_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_SOUTHEAST) != 0) {
+			mask &= ~Tile.SOUTHEAST_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_SOUTHWEST) != 0) {
+			mask &= ~Tile.SOUTHWEST_TRAVERSAL_PERMITTED;
+		}
+		if ((flags & CollisionMap.WALL_NORTHWEST) != 0) {
+			mask &= ~Tile.NORTHWEST_TRAVERSAL_PERMITTED;
+		}
+		return mask;
+	}
+
 }
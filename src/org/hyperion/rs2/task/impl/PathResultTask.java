@@ -0,0 +1,19 @@
+package org.hyperion.rs2.task.impl;
+
+import org.hyperion.rs2.GameEngine;
+import org.hyperion.rs2.model.World;
+import org.hyperion.rs2.task.Task;
+
+/**
+ * A task which applies the paths found by the
+ * <code>PathFindingService</code> since the last cycle. It is executed before
+ * any tick tasks.
+ */
+public class PathResultTask implements Task {
+
+	@Override
+	public void execute(GameEngine context) {
+		World.getWorld().getPathFindingService().applyResults();
+	}
+
+}
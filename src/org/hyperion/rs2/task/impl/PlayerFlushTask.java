@@ -0,0 +1,32 @@
+package org.hyperion.rs2.task.impl;
+
+import org.hyperion.rs2.GameEngine;
+import org.hyperion.rs2.model.Player;
+import org.hyperion.rs2.task.Task;
+
+/**
+ * A task which sends a player the packets written during an update cycle.
+ */
+public class PlayerFlushTask implements Task {
+
+	/**
+	 * The player to flush.
+	 */
+	private final Player player;
+
+	/**
+	 * Creates a flush task.
+	 * 
+	 * @param player
+	 *            The player to flush.
+	 */
+	public PlayerFlushTask(Player player) {
+		this.player = player;
+	}
+
+	@Override
+	public void execute(GameEngine context) {
+		player.flush();
+	}
+
+}